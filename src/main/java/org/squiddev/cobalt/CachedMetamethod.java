@@ -26,12 +26,32 @@ package org.squiddev.cobalt;
 
 /**
  * A metamethod whose absence will be cached.
+ *
+ * Each metatable keeps a bitset of the metamethods it is known not to have (see
+ * {@link LuaTable#rawget(CachedMetamethod)}), so a failed lookup only needs to check a single bit. This is cleared
+ * whenever a string key is set in the table.
  */
 public enum CachedMetamethod {
 	INDEX(Constants.INDEX),
 	NEWINDEX(Constants.NEWINDEX),
 	LEN(Constants.LEN),
-	EQ(Constants.EQ);
+	EQ(Constants.EQ),
+	ADD(Constants.ADD),
+	SUB(Constants.SUB),
+	MUL(Constants.MUL),
+	DIV(Constants.DIV),
+	MOD(Constants.MOD),
+	POW(Constants.POW),
+	UNM(Constants.UNM),
+	CONCAT(Constants.CONCAT),
+	LT(Constants.LT),
+	LE(Constants.LE),
+	CALL(Constants.CALL),
+	TOSTRING(Constants.TOSTRING),
+	METATABLE(Constants.METATABLE),
+	MODE(Constants.MODE);
+
+	private static final CachedMetamethod[] VALUES = values();
 
 	private final LuaString key;
 
@@ -42,4 +62,17 @@ public enum CachedMetamethod {
 	public LuaString getKey() {
 		return key;
 	}
+
+	/**
+	 * Find the cached metamethod with the given key.
+	 *
+	 * @param key The metamethod's name, such as {@link Constants#ADD}.
+	 * @return The corresponding metamethod, or {@code null} if its absence is not cached.
+	 */
+	public static CachedMetamethod of(LuaValue key) {
+		for (CachedMetamethod metamethod : VALUES) {
+			if (metamethod.key.equals(key)) return metamethod;
+		}
+		return null;
+	}
 }
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A cache of values computed from a key, such as compiled patterns or parsed format strings.
+ *
+ * The cache is limited by the total size of the values it holds, as given by a weigher function. The least recently
+ * used values are discarded once this is exceeded, and values larger than the whole cache are never stored. As a state
+ * may only be used by one thread at a time, this class is not thread safe.
+ *
+ * @param <K> The type of keys in this cache.
+ * @param <V> The type of values in this cache.
+ * @see LuaState#patternCache
+ * @see LuaState#formatCache
+ * @see LuaState.Builder#patternCacheSize(int)
+ * @see LuaState.Builder#formatCacheSize(int)
+ */
+public final class LruCache<K, V> {
+	private final int size;
+	private final ToIntFunction<? super V> weigher;
+	private final Map<K, V> values = new LinkedHashMap<>(16, 0.75f, true);
+	private int used;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param size    The total size of the cached values, or 0 to disable caching.
+	 * @param weigher A function to compute the size of a value.
+	 */
+	public LruCache(int size, ToIntFunction<? super V> weigher) {
+		if (size < 0) throw new IllegalArgumentException("size must be >= 0");
+		this.size = size;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Get the value for a key, computing and caching it if it is not present.
+	 *
+	 * @param key    The key to look up.
+	 * @param create The function to compute a new value.
+	 * @return The cached or newly created value.
+	 */
+	public V get(K key, Function<? super K, ? extends V> create) {
+		V value = values.get(key);
+		if (value != null) {
+			hits++;
+			return value;
+		}
+
+		misses++;
+		value = create.apply(key);
+
+		int valueSize = weigher.applyAsInt(value);
+		if (valueSize > size) return value;
+
+		used += valueSize;
+		values.put(key, value);
+
+		Iterator<V> iterator = values.values().iterator();
+		while (used > size) {
+			used -= weigher.applyAsInt(iterator.next());
+			iterator.remove();
+		}
+		return value;
+	}
+
+	/**
+	 * Get the maximum total size of the values this cache can hold.
+	 *
+	 * @return The size of this cache.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the total size of the values currently in this cache.
+	 *
+	 * @return The size of the cached values.
+	 */
+	public int used() {
+		return used;
+	}
+
+	/**
+	 * Get the number of times a cached value was reused.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of times a value had to be computed.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+}
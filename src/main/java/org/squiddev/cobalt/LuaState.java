@@ -27,6 +27,8 @@ package org.squiddev.cobalt;
 import org.squiddev.cobalt.compiler.LoadState;
 import org.squiddev.cobalt.compiler.LuaC;
 import org.squiddev.cobalt.debug.DebugHandler;
+import org.squiddev.cobalt.lib.FormatTemplate;
+import org.squiddev.cobalt.lib.LuaPattern;
 import org.squiddev.cobalt.lib.platform.FileResourceManipulator;
 import org.squiddev.cobalt.lib.platform.ResourceManipulator;
 
@@ -107,6 +109,33 @@ public final class LuaState {
 	 */
 	public final TimeZone timezone;
 
+	/**
+	 * The number of calls after which a Lua function is compiled to JVM bytecode, or {@code -1} if compilation is
+	 * disabled.
+	 */
+	public final int compileThreshold;
+
+	/**
+	 * The cache of short strings for this state.
+	 *
+	 * @see Builder#stringCacheSize(int)
+	 */
+	public final StringCache stringCache;
+
+	/**
+	 * The cache of compiled patterns for this state.
+	 *
+	 * @see Builder#patternCacheSize(int)
+	 */
+	public final LruCache<LuaString, LuaPattern> patternCache;
+
+	/**
+	 * The cache of parsed {@code string.format} format strings for this state.
+	 *
+	 * @see Builder#formatCacheSize(int)
+	 */
+	public final LruCache<LuaString, FormatTemplate> formatCache;
+
 	/**
 	 * The random instance for this state.
 	 */
@@ -152,6 +181,10 @@ public final class LuaState {
 		this.random = builder.random;
 		this.debug = builder.debug;
 		this.timezone = builder.timezone;
+		this.compileThreshold = builder.compileThreshold;
+		this.stringCache = new StringCache(builder.stringCacheSize);
+		this.patternCache = new LruCache<>(builder.patternCacheSize, LuaPattern::size);
+		this.formatCache = new LruCache<>(builder.formatCacheSize, FormatTemplate::size);
 		this.threader = new YieldThreader(builder.coroutineExecutor);
 	}
 
@@ -230,6 +263,10 @@ public final class LuaState {
 		private DebugHandler debug = DebugHandler.INSTANCE;
 		private TimeZone timezone = TimeZone.getDefault();
 		private Executor coroutineExecutor = defaultCoroutineExecutor;
+		private int compileThreshold = -1;
+		private int stringCacheSize = LuaString.RECENT_STRINGS_CACHE_SIZE;
+		private int patternCacheSize = 64 * 1024;
+		private int formatCacheSize = 64 * 1024;
 
 		/**
 		 * Build a Lua state from this builder
@@ -406,5 +443,63 @@ public final class LuaState {
 			this.coroutineExecutor = coroutineExecutor;
 			return this;
 		}
+
+		/**
+		 * Set the number of calls after which a Lua function is compiled to JVM bytecode.
+		 *
+		 * Compiled functions skip the interpreter's dispatch loop, but are only used when no debug hooks are set and the
+		 * default {@link DebugHandler} is used.
+		 *
+		 * @param compileThreshold The number of calls before compiling, {@code 0} to compile every function when first
+		 *                         called, or {@code -1} to disable compilation.
+		 * @return This builder
+		 */
+		public Builder compileThreshold(int compileThreshold) {
+			if (compileThreshold < -1) throw new IllegalArgumentException("compileThreshold must be >= -1");
+			this.compileThreshold = compileThreshold;
+			return this;
+		}
+
+		/**
+		 * Set the number of short strings this state caches. Strings created by the interpreter and string library
+		 * are looked up in this cache, allowing frequently created strings to share one instance.
+		 *
+		 * @param stringCacheSize The size of the cache, rounded up to a power of two, or {@code 0} to disable it.
+		 * @return This builder
+		 * @see LuaState#stringCache
+		 */
+		public Builder stringCacheSize(int stringCacheSize) {
+			if (stringCacheSize < 0) throw new IllegalArgumentException("stringCacheSize must be >= 0");
+			this.stringCacheSize = stringCacheSize;
+			return this;
+		}
+
+		/**
+		 * Set the total size of the compiled patterns this state caches. Patterns used by the string library are
+		 * compiled once and reused while they remain in the cache.
+		 *
+		 * @param patternCacheSize The size of the cache in bytes, or {@code 0} to disable it.
+		 * @return This builder
+		 * @see LuaState#patternCache
+		 */
+		public Builder patternCacheSize(int patternCacheSize) {
+			if (patternCacheSize < 0) throw new IllegalArgumentException("patternCacheSize must be >= 0");
+			this.patternCacheSize = patternCacheSize;
+			return this;
+		}
+
+		/**
+		 * Set the total size of the format strings this state caches. Format strings passed to {@code string.format}
+		 * are parsed once and reused while they remain in the cache.
+		 *
+		 * @param formatCacheSize The size of the cache in bytes, or {@code 0} to disable it.
+		 * @return This builder
+		 * @see LuaState#formatCache
+		 */
+		public Builder formatCacheSize(int formatCacheSize) {
+			if (formatCacheSize < 0) throw new IllegalArgumentException("formatCacheSize must be >= 0");
+			this.formatCacheSize = formatCacheSize;
+			return this;
+		}
 	}
 }
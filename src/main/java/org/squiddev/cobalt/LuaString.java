@@ -30,6 +30,7 @@ import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import static org.squiddev.cobalt.Constants.NIL;
 
@@ -66,6 +67,20 @@ public final class LuaString extends LuaValue {
 	 */
 	public static final int RECENT_STRINGS_MAX_LENGTH = 32;
 
+	/**
+	 * Minimum length of a concatenation result to be given spare capacity at the end of its backing array.
+	 *
+	 * @see #concat(LuaValue[], int, int, int)
+	 */
+	public static final int APPEND_MIN_LENGTH = 256;
+
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	private static final int APPEND_TAIL = 1;
+	private static final int APPEND_GROW = 2;
+
+	private static final AtomicIntegerFieldUpdater<LuaString> APPENDABLE = AtomicIntegerFieldUpdater.newUpdater(LuaString.class, "appendable");
+
 	/**
 	 * The bytes for the string
 	 */
@@ -83,6 +98,16 @@ public final class LuaString extends LuaValue {
 
 	private int hashCode;
 
+	/**
+	 * {@link #APPEND_TAIL} if the bytes after the end of this string in {@link #bytes} are unused, and so this string
+	 * may be extended in place. At most one string sharing a backing array owns its tail at once, and ownership is
+	 * passed on to the extended string.
+	 *
+	 * {@link #APPEND_GROW} if this string is the result of a concatenation but has no spare space, so concatenating
+	 * onto it should allocate some. Otherwise 0.
+	 */
+	private volatile int appendable;
+
 	private static class Cache {
 		/**
 		 * Simple cache of recently created strings that are short.
@@ -90,6 +115,9 @@ public final class LuaString extends LuaValue {
 		 * that have been recently constructed.  If a string is being constructed frequently
 		 * from different contexts, it will generally may show up as a cache hit and resolve
 		 * to the same value.
+		 *
+		 * This is shared between all states, so code with access to a {@link LuaState} should prefer
+		 * {@link LuaState#stringCache}.
 		 */
 		public final LuaString[] recentShortStrings = new LuaString[RECENT_STRINGS_CACHE_SIZE];
 
@@ -130,19 +158,115 @@ public final class LuaString extends LuaValue {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	public static LuaString valueOf(byte[] bytes, int off, int len) {
-		if (bytes.length < RECENT_STRINGS_MAX_LENGTH) {
-			// Short string.  Reuse the backing and check the cache of recent strings before returning.
-			return Cache.instance.get(new LuaString(bytes, off, len));
-		} else if (len >= bytes.length / 2) {
-			// Reuse backing only when more than half the bytes are part of the result.
+		LuaString string = create(bytes, off, len);
+		// Only strings with a short backing array are cached, so we never keep a large array alive.
+		return string.bytes.length < RECENT_STRINGS_MAX_LENGTH ? Cache.instance.get(string) : string;
+	}
+
+	/**
+	 * Construct a {@link LuaString} from part of a byte array, without consulting any cache.
+	 *
+	 * @param bytes byte buffer
+	 * @param off   offset into the byte buffer
+	 * @param len   length of the byte buffer
+	 * @return {@link LuaString} wrapping the byte buffer, or a copy of the used section.
+	 * @see StringCache#valueOf(byte[], int, int)
+	 */
+	static LuaString create(byte[] bytes, int off, int len) {
+		if (bytes.length < RECENT_STRINGS_MAX_LENGTH || len >= bytes.length / 2) {
+			// Reuse backing when the string is short, or when more than half the bytes are part of the result.
 			return new LuaString(bytes, off, len);
 		} else {
 			// Short result relative to the source.  Copy only the bytes that are actually to be used.
 			final byte[] b = new byte[len];
 			System.arraycopy(bytes, off, b, 0, len);
-			LuaString string = new LuaString(b, 0, len);
-			return len < RECENT_STRINGS_MAX_LENGTH ? Cache.instance.get(string) : string;
+			return new LuaString(b, 0, len);
+		}
+	}
+
+	/**
+	 * Concatenate a sequence of strings together.
+	 *
+	 * When the first string is itself the result of a concatenation, long results are given spare capacity at the end
+	 * of their backing array. When such a string is the first argument of a later concatenation, the remaining strings
+	 * are copied into that spare space rather than copying the whole string again. This means repeatedly appending to
+	 * a string (such as {@code s = s .. x}) takes amortised linear, rather than quadratic, time, while a one-off
+	 * concatenation is sized exactly.
+	 *
+	 * @param strings The array holding the strings to concatenate. Every value in the range must be a {@link LuaString}.
+	 * @param offset  The index of the first string in the array.
+	 * @param count   The number of strings to concatenate.
+	 * @param length  The total length of the strings.
+	 * @return The concatenated string.
+	 */
+	public static LuaString concat(LuaValue[] strings, int offset, int count, int length) {
+		LuaString first = (LuaString) strings[offset];
+
+		byte[] buffer;
+		int start, position, i;
+		if (first.claimTail(length)) {
+			buffer = first.bytes;
+			start = first.offset;
+			position = start + first.length;
+			i = 1;
+		} else {
+			buffer = new byte[concatCapacity(first, length)];
+			start = position = i = 0;
+		}
+
+		for (; i < count; i++) position = ((LuaString) strings[offset + i]).copyTo(buffer, position);
+		return concatResult(buffer, start, length);
+	}
+
+	/**
+	 * Concatenate two strings together.
+	 *
+	 * @param left  The left string
+	 * @param right The right string
+	 * @return The concatenated string.
+	 * @see #concat(LuaValue[], int, int, int)
+	 */
+	public static LuaString concat(LuaString left, LuaString right) {
+		int length = left.length + right.length;
+		if (left.claimTail(length)) {
+			right.copyTo(left.bytes, left.offset + left.length);
+			return concatResult(left.bytes, left.offset, length);
 		}
+
+		byte[] buffer = new byte[concatCapacity(left, length)];
+		right.copyTo(buffer, left.copyTo(buffer, 0));
+		return concatResult(buffer, 0, length);
+	}
+
+	/**
+	 * Attempt to take ownership of the spare space after this string.
+	 *
+	 * @param length The length this string will be extended to.
+	 * @return If the space was claimed, and so may be written to.
+	 */
+	private boolean claimTail(int length) {
+		return appendable == APPEND_TAIL && bytes.length - offset >= length && APPENDABLE.compareAndSet(this, APPEND_TAIL, 0);
+	}
+
+	/**
+	 * Get the size of a new backing array for a concatenation. Spare space is only added when appending to a string
+	 * which was itself built by concatenation, so strings which are never appended to again do not waste memory.
+	 *
+	 * @param first  The first string being concatenated.
+	 * @param length The length of the result.
+	 * @return The size of the new array.
+	 */
+	private static int concatCapacity(LuaString first, int length) {
+		return length < APPEND_MIN_LENGTH || first.appendable == 0
+			? length : (int) Math.min(length + (long) (length >> 1), MAX_ARRAY_LENGTH);
+	}
+
+	private static LuaString concatResult(byte[] buffer, int start, int length) {
+		if (buffer.length < RECENT_STRINGS_MAX_LENGTH) return Cache.instance.get(new LuaString(buffer, start, length));
+
+		LuaString result = new LuaString(buffer, start, length);
+		result.appendable = start + length < buffer.length ? APPEND_TAIL : APPEND_GROW;
+		return result;
 	}
 
 	/**
@@ -510,12 +634,8 @@ public final class LuaString extends LuaValue {
 	 * @return index of first match found, or -1 if not found.
 	 */
 	public int indexOf(byte b, int start) {
-		for (int i = 0, j = offset + start; i < length; ++i) {
-			if (bytes[j++] == b) {
-				return i;
-			}
-		}
-		return -1;
+		int index = StringSearch.indexOf(bytes, offset + start, offset + length, b);
+		return index == -1 ? -1 : index - offset;
 	}
 
 	/**
@@ -524,16 +644,14 @@ public final class LuaString extends LuaValue {
 	 * @param s     the string to search for
 	 * @param start the first index in the string
 	 * @return index of first match found, or -1 if not found.
+	 * @see StringSearch
 	 */
 	public int indexOf(LuaString s, int start) {
-		final int slen = s.length();
-		final int limit = offset + length - slen;
-		for (int i = offset + start; i <= limit; ++i) {
-			if (equals(bytes, i, s.bytes, s.offset, slen)) {
-				return i - offset;
-			}
+		if (s.length >= StringSearch.SKIP_MIN_LENGTH && length - start >= StringSearch.SKIP_MIN_SEARCH) {
+			return new StringSearch(s).indexOf(this, start);
+		} else {
+			return StringSearch.scan(this, s, start);
 		}
-		return -1;
 	}
 
 	/**
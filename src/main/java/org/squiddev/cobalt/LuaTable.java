@@ -27,9 +27,21 @@ package org.squiddev.cobalt;
 import org.squiddev.cobalt.function.LuaFunction;
 import org.squiddev.cobalt.lib.LuaLibrary;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.ValueFactory.*;
@@ -53,7 +65,7 @@ import static org.squiddev.cobalt.ValueFactory.*;
  * <li>{@link LuaTable#rawset(LuaValue, LuaValue)}</li>
  * </ul>
  *
- * To iterate over key-value pairs from Java, use
+ * To iterate over key-value pairs from Java, use {@link #entryIterator()} or {@link #entrySpliterator()}, or
  * <pre> {@code
  * LuaValue k = LuaValue.NIL;
  * while ( true ) {
@@ -81,19 +93,73 @@ import static org.squiddev.cobalt.ValueFactory.*;
  */
 public final class LuaTable extends LuaValue {
 	private static final Object[] EMPTY_ARRAY = new Object[0];
-	private static final Node[] EMPTY_NODES = new Node[0];
+	private static final int[] EMPTY_CHAIN = new int[0];
 	private static final LuaString N = valueOf("n");
 
+	/**
+	 * The bit pattern used to represent nil in {@link #numbers}. This is a NaN which is never produced by arithmetic,
+	 * as we store all NaNs as {@link Double#NaN}.
+	 */
+	private static final long NIL_NUMBER_BITS = 0x7ff8000000000001L;
+	private static final double NIL_NUMBER = Double.longBitsToDouble(NIL_NUMBER_BITS);
+
+	/**
+	 * The array part of this table, or {@code null} if it is stored in {@link #numbers} instead.
+	 */
 	private Object[] array = EMPTY_ARRAY;
-	private Node[] nodes = EMPTY_NODES;
+
+	/**
+	 * The array part of this table when every value in it is a number, stored without boxing. When the table is
+	 * rehashed, an array part which only holds numbers is moved here. Storing any other value moves it back to
+	 * {@link #array}.
+	 */
+	private double[] numbers;
+
+	/*
+	 * The hash part of the table is stored as parallel arrays, rather than as an array of nodes. Free slots have a key
+	 * and value of NIL. Keys which collide are linked together by chain, with -1 marking the end of a chain.
+	 */
+	private Object[] keys = EMPTY_ARRAY;
+	private Object[] values = EMPTY_ARRAY;
+	private int[] chain = EMPTY_CHAIN;
 	private int lastFree = 0;
 
+	/**
+	 * The shape this table's hash part follows, or {@code null} if it owns its {@link #keys} and {@link #chain}. While
+	 * set, those arrays belong to the shape and must not be modified.
+	 *
+	 * @see Shape
+	 */
+	private Shape shape;
+
 	private boolean weakKeys;
 	private boolean weakValues;
 
+	/**
+	 * The queue our weak references are registered with, or {@code null} if this table has never been weak. This
+	 * allows us to clear entries once their key or value has been collected, rather than waiting until we happen to
+	 * look at them.
+	 */
+	private ReferenceQueue<Object> deadReferences;
+
 	private int metatableFlags;
 	private LuaTable metatable;
 
+	/**
+	 * The length of this table, when its positive integer keys are exactly {@code 1..border}, or {@code -1} if that is
+	 * not known to be the case. This is kept up to date by appending to and removing from the end of the list, and
+	 * cleared by any other change to the integer keys. In this case {@link #length()}'s search would find this same
+	 * border, so it can be returned directly.
+	 */
+	private int border;
+
+	/**
+	 * The site this table was created at, if it was sampled to provide sizing feedback.
+	 *
+	 * @see AllocationSite
+	 */
+	private AllocationSite site;
+
 	/**
 	 * Construct empty table
 	 */
@@ -113,6 +179,18 @@ public final class LuaTable extends LuaValue {
 		resize(narray, nhash, false);
 	}
 
+	private LuaTable(int narray, int nhash, boolean numbers) {
+		super(TTABLE);
+		if (numbers && narray > 0) {
+			resize(0, nhash, false);
+			array = null;
+			this.numbers = new double[narray];
+			Arrays.fill(this.numbers, NIL_NUMBER);
+		} else {
+			resize(narray, nhash, false);
+		}
+	}
+
 	/**
 	 * Construct table with named and unnamed parts.
 	 *
@@ -185,18 +263,137 @@ public final class LuaTable extends LuaValue {
 	 * @param nArray the number of array slots to preallocate in the table.
 	 */
 	public void presize(int nArray) {
-		if (nArray > array.length) {
-			array = setArrayVector(array, 1 << log2(nArray), false, weakValues);
+		if (nArray > arrayLength()) {
+			if (array == null) {
+				numbers = setNumberVector(numbers, 1 << log2(nArray));
+			} else {
+				array = setArrayVector(array, 1 << log2(nArray), false);
+			}
+		}
+	}
+
+	//region Bulk operations
+
+	/**
+	 * Construct a list from an array of numbers, which are stored without boxing.
+	 *
+	 * @param numbers The values of the list. This array is now owned by the table, and must not be modified.
+	 * @return The constructed table.
+	 * @see ValueFactory#listOf(double[])
+	 */
+	static LuaTable ofNumbers(double[] numbers) {
+		LuaTable table = new LuaTable();
+		if (numbers.length == 0) return table;
+
+		// Canonicalise NaNs, so they cannot be mistaken for nil.
+		for (int i = 0; i < numbers.length; i++) {
+			if (Double.isNaN(numbers[i])) numbers[i] = Double.NaN;
+		}
+
+		table.array = null;
+		table.numbers = numbers;
+		table.border = numbers.length;
+		return table;
+	}
+
+	/**
+	 * Construct a list from an array of values.
+	 *
+	 * @param values The values of the list, each of which must be a {@link LuaValue}. This array is now owned by the
+	 *               table, and must not be modified.
+	 * @return The constructed table.
+	 * @see ValueFactory#listOf(LuaValue...)
+	 */
+	static LuaTable ofValues(Object[] values) {
+		LuaTable table = new LuaTable();
+		if (values.length == 0) return table;
+
+		int border = values.length;
+		for (Object value : values) {
+			if (((LuaValue) value).isNil()) border = -1;
+		}
+
+		table.array = values;
+		table.border = border;
+		return table;
+	}
+
+	/**
+	 * Set several values in this table without metatag processing. This is equivalent to calling
+	 * {@link #rawset(LuaValue, LuaValue)} on each entry, but resizes the table at most once.
+	 *
+	 * @param entries The entries to set.
+	 */
+	public void rawsetAll(Map<? extends LuaValue, ? extends LuaValue> entries) {
+		// Count how many entries will end up in the hash part, including the existing ones. This may overestimate
+		// if a key is already present, but that is harmless.
+		int arrayLength = arrayLength(), hashCount = 0;
+		for (LuaValue key : entries.keySet()) {
+			if (!(key instanceof LuaInteger) || ((LuaInteger) key).v < 1 || ((LuaInteger) key).v > arrayLength) {
+				hashCount++;
+			}
+		}
+
+		if (hashCount > 0) {
+			for (int i = 0; i < keys.length; i++) {
+				if (!key(i).isNil() && !value(i).isNil()) hashCount++;
+			}
+
+			if (hashCount > keys.length) resize(arrayLength, hashCount, false);
+		}
+
+		for (Map.Entry<? extends LuaValue, ? extends LuaValue> entry : entries.entrySet()) {
+			rawset(entry.getKey(), entry.getValue());
 		}
 	}
 
+	/**
+	 * Copy a range of this table's list into an array of numbers.
+	 *
+	 * @param start  The first index to copy.
+	 * @param dest   The array to copy into.
+	 * @param offset The position in {@code dest} to copy to.
+	 * @param length The number of values to copy.
+	 * @throws LuaError If any of the values is not a number.
+	 */
+	public void copyTo(int start, double[] dest, int offset, int length) throws LuaError {
+		int i = 0;
+
+		// Copy directly out of the array part when possible.
+		double[] numbers = this.numbers;
+		if (numbers != null && start > 0) {
+			int available = Math.min(length, numbers.length - (start - 1));
+			for (; i < available; i++) {
+				double value = numbers[start - 1 + i];
+				if (isNilNumber(value)) break;
+				dest[offset + i] = value;
+			}
+		}
+
+		for (; i < length; i++) dest[offset + i] = rawget(start + i).checkDouble();
+	}
+
+	/**
+	 * Copy a range of this table's list into an array of values, without metatag processing.
+	 *
+	 * @param start  The first index to copy.
+	 * @param dest   The array to copy into.
+	 * @param offset The position in {@code dest} to copy to.
+	 * @param length The number of values to copy.
+	 */
+	public void copyTo(int start, LuaValue[] dest, int offset, int length) {
+		for (int i = 0; i < length; i++) dest[offset + i] = rawget(start + i);
+	}
+
+	//endregion
+
 	/**
 	 * Get the length of the array part of the table.
 	 *
 	 * @return length of the array part, does not relate to count of objects in the table.
 	 */
 	public int getArrayLength() {
-		return array.length;
+		return arrayLength();
 	}
 
 	/**
@@ -205,7 +402,7 @@ public final class LuaTable extends LuaValue {
 	 * @return length of the hash part, does not relate to count of objects in the table.
 	 */
 	public int getHashLength() {
-		return nodes.length;
+		return keys.length;
 	}
 
 	@Override
@@ -219,7 +416,7 @@ public final class LuaTable extends LuaValue {
 		boolean newWeakKeys = false, newWeakValues = false;
 
 		if (mt != null) {
-			LuaValue mode = mt.rawget(Constants.MODE);
+			LuaValue mode = mt.rawget(CachedMetamethod.MODE);
 			if (mode.isString()) {
 				String m = mode.toString();
 				if (m.indexOf('k') >= 0) newWeakKeys = true;
@@ -230,6 +427,9 @@ public final class LuaTable extends LuaValue {
 		if (newWeakKeys != weakKeys || newWeakValues != weakValues) {
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
+			if ((weakKeys || weakValues) && deadReferences == null) deadReferences = new ReferenceQueue<>();
+			// Values may have been collected while the table was weak, so the border may no longer be accurate.
+			border = -1;
 			rehash(null, true);
 		}
 	}
@@ -238,6 +438,9 @@ public final class LuaTable extends LuaValue {
 		if (newWeakKeys != weakKeys || newWeakValues != weakValues) {
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
+			if ((weakKeys || weakValues) && deadReferences == null) deadReferences = new ReferenceQueue<>();
+			// Values may have been collected while the table was weak, so the border may no longer be accurate.
+			border = -1;
 			rehash(null, true);
 		}
 	}
@@ -328,16 +531,14 @@ public final class LuaTable extends LuaValue {
 
 	@Override
 	public LuaValue getn() {
-		for (int n = getArrayLength(); n > 0; --n) {
-			if (!rawget(n).isNil()) {
-				return LuaInteger.valueOf(n);
-			}
-		}
-		return ZERO;
+		return LuaInteger.valueOf(length());
 	}
 
 
 	public int length() {
+		// Weak values may be collected, so we cannot rely on the border.
+		if (border >= 0 && !weakValues) return border;
+
 		int a = getArrayLength();
 		int n = a + 1, m = 0;
 		while (!rawget(n).isNil()) {
@@ -364,13 +565,11 @@ public final class LuaTable extends LuaValue {
 	 */
 	public double maxn() {
 		double n = 0;
-		for (int i = 0; i < array.length; i++) {
-			if (!strengthen(array[i]).isNil()) {
-				n = i + 1;
-			}
+		for (int i = 0, size = arrayLength(); i < size; i++) {
+			if (arrayHas(i)) n = i + 1;
 		}
-		for (Node node : nodes) {
-			LuaValue value = node.key();
+		for (int i = 0; i < keys.length; i++) {
+			LuaValue value = key(i);
 			if (value.type() == Constants.TNUMBER) {
 				double key = value.toDouble();
 				if (key > n) n = key;
@@ -410,21 +609,114 @@ public final class LuaTable extends LuaValue {
 		int i = findIndex(key);
 		if (i < 0) throw new LuaError("invalid key to 'next'");
 
-		for (; i < array.length; i++) {
-			LuaValue value = strengthen(array[i]);
+		int arrayLength = arrayLength();
+		for (; i < arrayLength; i++) {
+			LuaValue value = arrayGet(i);
 			if (!value.isNil()) return varargsOf(valueOf(i + 1), value);
 		}
 
-		i -= array.length;
-		for (; i < nodes.length; i++) {
-			Node node = nodes[i];
-			LuaValue value = node.value();
-			if (!node.key().isNil() && !value.isNil()) return varargsOf(node.key(), value);
+		i -= arrayLength;
+		for (; i < keys.length; i++) {
+			LuaValue value = value(i);
+			LuaValue nodeKey = key(i);
+			if (!nodeKey.isNil() && !value.isNil()) return varargsOf(nodeKey, value);
 		}
 
 		return NIL;
 	}
 
+	/**
+	 * Find the next key-value pair in a traversal of this table. This behaves like {@link #next(LuaValue)}, but
+	 * writes the entry directly to an array and accepts the position of the previous key, avoiding the need to look
+	 * it up again.
+	 *
+	 * @param key    The previous key, or {@link Constants#NIL} to start at the beginning.
+	 * @param cursor The position of {@code key}, as returned by the previous call to this method. This is only a hint:
+	 *               if {@code key} is no longer at this position, it will be looked up as normal.
+	 * @param out    The array to write the next entry to.
+	 * @param offset The index in {@code out} to write the key to. The value is written to {@code offset + 1}.
+	 * @return The position of the entry written to {@code out}, or {@code -1} if there are no more entries.
+	 * @throws LuaError If the supplied key is invalid.
+	 * @see #next(LuaValue)
+	 */
+	public int next(LuaValue key, int cursor, LuaValue[] out, int offset) throws LuaError {
+		int i;
+		if (key.isNil()) {
+			i = 0;
+		} else if (cursor >= 0 && isAt(key, cursor)) {
+			i = cursor + 1;
+		} else {
+			i = findIndex(key);
+			if (i < 0) throw new LuaError("invalid key to 'next'");
+		}
+
+		int arrayLength = arrayLength();
+		for (; i < arrayLength; i++) {
+			LuaValue value = arrayGet(i);
+			if (!value.isNil()) {
+				out[offset] = valueOf(i + 1);
+				out[offset + 1] = value;
+				return i;
+			}
+		}
+
+		for (int j = i - arrayLength, size = keys.length; j < size; j++) {
+			LuaValue nodeKey = key(j);
+			LuaValue value = value(j);
+			if (!nodeKey.isNil() && !value.isNil()) {
+				out[offset] = nodeKey;
+				out[offset + 1] = value;
+				return arrayLength + j;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Determine whether a key is stored at a given traversal position.
+	 *
+	 * @param key    The key to check.
+	 * @param cursor The traversal position, as returned by {@link #next(LuaValue, int, LuaValue[], int)}.
+	 * @return Whether this key is found at this position.
+	 */
+	private boolean isAt(LuaValue key, int cursor) {
+		int arrayLength = arrayLength();
+		if (cursor < arrayLength) return key instanceof LuaInteger && ((LuaInteger) key).v == cursor + 1;
+
+		cursor -= arrayLength;
+		return cursor < keys.length && keys[cursor] == key;
+	}
+
+	/**
+	 * Create an iterator over the entries of this table. This visits entries in the same order as
+	 * {@link #next(LuaValue)}, but walks the table's storage directly rather than looking up the previous key on each
+	 * step.
+	 *
+	 * As with {@link #next(LuaValue)}, existing fields may be assigned to (or cleared) during iteration. If the table
+	 * is resized, the iterator will throw a {@link ConcurrentModificationException}.
+	 *
+	 * @return An iterator over this table's entries.
+	 * @see EntryIterator#advance()
+	 */
+	public EntryIterator entryIterator() {
+		return new EntryIterator(this, 0, arrayLength() + keys.length);
+	}
+
+	/**
+	 * Create a {@link Spliterator} over the entries of this table, suitable for use with
+	 * {@link java.util.stream.StreamSupport#stream(Spliterator, boolean)}. The table's storage is split into ranges,
+	 * allowing the array and hash parts to be processed in parallel.
+	 *
+	 * The table must not be modified while being traversed in parallel.
+	 *
+	 * @return A spliterator over this table's entries.
+	 * @see #entryIterator()
+	 */
+	public Spliterator<Map.Entry<LuaValue, LuaValue>> entrySpliterator() {
+		return new EntrySpliterator(entryIterator());
+	}
+
 	/**
 	 * Returns the index of this key for table traversals + 1.
 	 *
@@ -437,23 +729,12 @@ public final class LuaTable extends LuaValue {
 
 		// Its in the array part so just return that
 		int arrayIndex = arraySlot(key);
-		if (arrayIndex > 0 && arrayIndex <= array.length) return arrayIndex;
+		int arrayLength = arrayLength();
+		if (arrayIndex > 0 && arrayIndex <= arrayLength) return arrayIndex;
 
 		// Must be in the main part so try to find it in the chain.
-		int idx = hashSlot(key);
-		Node node = nodes[idx];
-		while (true) {
-			if (node.key().equals(key)) {
-				return idx + array.length + 1;
-			}
-
-			if (node.next >= 0) {
-				idx = node.next;
-				node = nodes[node.next];
-			} else {
-				return -1;
-			}
-		}
+		int idx = findSlot(key);
+		return idx < 0 ? -1 : idx + arrayLength + 1;
 	}
 
 	/**
@@ -542,10 +823,13 @@ public final class LuaTable extends LuaValue {
 	 * @return slot to use
 	 */
 	private int hashSlot(LuaValue key) {
-		return hashSlot(key, nodes.length - 1);
+		return hashSlot(key, keys.length - 1);
 	}
 
 	private void dropWeakArrayValues() {
+		// Numbers are never weak, so there is nothing to drop.
+		if (array == null) return;
+
 		for (int i = 0; i < array.length; ++i) {
 			Object x = array[i];
 			if (x != NIL && strengthen(x).isNil()) array[i] = NIL;
@@ -642,8 +926,6 @@ public final class LuaTable extends LuaValue {
 
 	// ----------------- sort support -----------------------------
 	//
-	// implemented heap sort from wikipedia
-	//
 	// Only sorts the contiguous array part.
 	//
 
@@ -655,19 +937,65 @@ public final class LuaTable extends LuaValue {
 	 */
 	public int prepSort() throws LuaError {
 		if (weakValues) dropWeakArrayValues();
-		int n = array.length;
-		while (n > 0 && array[n - 1] == NIL) {
+		int n = arrayLength();
+		while (n > 0 && !arrayHas(n - 1)) {
 			--n;
 		}
 
 		return n;
 	}
 
+	/**
+	 * Sort the first {@code n} elements of the array part using Lua's default ordering, if they are all numbers or all
+	 * strings. This avoids boxing values or dispatching through {@link OperationHelper#lt(LuaState, LuaValue, LuaValue)}
+	 * for every comparison.
+	 *
+	 * @param n The number of elements to sort, as returned by {@link #prepSort()}.
+	 * @return Whether the elements were sorted. If not, they must be sorted using {@link OperationHelper#lt(LuaState,
+	 * LuaValue, LuaValue)} instead.
+	 */
+	public boolean sortPrimitive(int n) {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			// NaN is not ordered, and nil cannot be compared, so leave those to the general sort.
+			for (int i = 0; i < n; i++) {
+				if (Double.isNaN(numbers[i])) return false;
+			}
+
+			Arrays.sort(numbers, 0, n);
+			return true;
+		}
+
+		Object[] array = this.array;
+		boolean strings = true, doubles = true;
+		for (int i = 0; i < n && (strings || doubles); i++) {
+			Object value = array[i];
+			if (!(value instanceof LuaString)) strings = false;
+			if (!(value instanceof LuaNumber) || Double.isNaN(((LuaNumber) value).toDouble())) doubles = false;
+		}
+
+		if (strings) {
+			Arrays.sort(array, 0, n, (a, b) -> ((LuaString) a).compare((LuaString) b));
+		} else if (doubles) {
+			Arrays.sort(array, 0, n, (a, b) -> Double.compare(((LuaNumber) a).toDouble(), ((LuaNumber) b).toDouble()));
+		} else {
+			return false;
+		}
+
+		return true;
+	}
+
 	public boolean compare(LuaState state, int i, int j, LuaValue cmpfunc) throws LuaError, UnwindThrowable {
+		double[] numbers = this.numbers;
+		if (numbers != null && cmpfunc.isNil()) {
+			double a = numbers[i], b = numbers[j];
+			return !isNilNumber(a) && !isNilNumber(b) && a < b;
+		}
+
 		LuaValue a, b;
 
-		a = strengthen(array[i]);
-		b = strengthen(array[j]);
+		a = arrayGet(i);
+		b = arrayGet(j);
 
 		if (a.isNil() || b.isNil()) {
 			return false;
@@ -680,9 +1008,22 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void swap(int i, int j) {
-		Object a = array[i];
-		array[i] = array[j];
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			double a = numbers[i];
+			numbers[i] = numbers[j];
+			numbers[j] = a;
+			return;
+		}
+
+		Object[] array = this.array;
+		Object a = array[i], b = array[j];
+		array[i] = b;
 		array[j] = a;
+		if (weakValues) {
+			moveWeak(b, -1 - i);
+			moveWeak(a, -1 - j);
+		}
 	}
 
 	/**
@@ -741,13 +1082,13 @@ public final class LuaTable extends LuaValue {
 	/**
 	 * Resize the table
 	 */
-	private static Object[] setArrayVector(Object[] oldArray, int n, boolean metaChange, boolean weakValues) {
+	private Object[] setArrayVector(Object[] oldArray, int n, boolean metaChange) {
 		Object[] newArray = new Object[n];
 		int len = Math.min(n, oldArray.length);
 		if (metaChange) {
 			for (int i = 0; i < len; i++) {
 				LuaValue value = strengthen(oldArray[i]);
-				newArray[i] = weakValues ? weaken(value) : value;
+				newArray[i] = weakValues ? weaken(value, -1 - i, false) : value;
 			}
 		} else {
 			System.arraycopy(oldArray, 0, newArray, 0, Math.min(n, oldArray.length));
@@ -759,6 +1100,12 @@ public final class LuaTable extends LuaValue {
 		return newArray;
 	}
 
+	private static double[] setNumberVector(double[] oldNumbers, int n) {
+		double[] newNumbers = Arrays.copyOf(oldNumbers, n);
+		if (n > oldNumbers.length) Arrays.fill(newNumbers, oldNumbers.length, n, NIL_NUMBER);
+		return newNumbers;
+	}
+
 	private static int countInt(LuaValue key, int[] nums) {
 		int idx = arraySlot(key);
 		if (idx != 0) {
@@ -783,14 +1130,13 @@ public final class LuaTable extends LuaValue {
 		for (lg = 0, ttlg = 1; lg <= 31; lg++, ttlg *= 2) {
 			int lc = 0;
 			int lim = ttlg;
-			if (lim > array.length) {
-				lim = array.length; // Adjust upper limit
+			if (lim > arrayLength()) {
+				lim = arrayLength(); // Adjust upper limit
 				if (i > lim) break;
 			}
 
 			for (; i <= lim; i++) {
-				LuaValue value = strengthen(array[i - 1]);
-				if (!value.isNil()) lc++;
+				if (arrayHas(i - 1)) lc++;
 			}
 			nums[lg] += lc;
 			ause += lc;
@@ -800,39 +1146,85 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private void setNodeVector(int size) {
+		shape = null;
 		if (size == 0) {
-			nodes = EMPTY_NODES;
+			keys = values = EMPTY_ARRAY;
+			chain = EMPTY_CHAIN;
 			lastFree = 0;
 		} else {
 			int lsize = log2(size);
 			size = 1 << lsize;
-			Node[] nodes = this.nodes = new Node[size];
-			for (int i = 0; i < size; i++) nodes[i] = new Node(weakKeys, weakValues);
+			Object[] values = this.values = new Object[size];
+			Arrays.fill(values, NIL);
+
+			// Small tables start off sharing an empty shape. Weak tables may lose entries behind our back, and so
+			// cannot follow a shape.
+			if (lsize < Shape.ROOTS.length && !weakKeys && !weakValues) {
+				useShape(Shape.ROOTS[lsize]);
+				return;
+			}
+
+			Object[] keys = this.keys = new Object[size];
+			int[] chain = this.chain = new int[size];
+			Arrays.fill(keys, NIL);
+			Arrays.fill(chain, -1);
 
 			// All positions are free
 			lastFree = size - 1;
 		}
 	}
 
+	/**
+	 * Switch this table to a new shape, moving any values which were displaced by the added key.
+	 *
+	 * @param shape The shape to switch to.
+	 * @return The slot of the key added by this shape.
+	 */
+	private int useShape(Shape shape) {
+		if (shape.moveFrom >= 0) {
+			values[shape.moveTo] = values[shape.moveFrom];
+			values[shape.moveFrom] = NIL;
+		}
+
+		this.shape = shape;
+		keys = shape.keys;
+		chain = shape.chain;
+		lastFree = shape.lastFree;
+		return shape.slot;
+	}
+
+	/**
+	 * Stop following a shape, taking a private copy of the key layout so it can be modified.
+	 */
+	private void unshare() {
+		shape = null;
+		keys = keys.clone();
+		chain = chain.clone();
+	}
+
 	private void resize(int newArraySize, int newHashSize, boolean modeChange) {
-		int oldArraySize = array.length;
-		int oldHashSize = nodes.length;
+		// Shrinking the array part moves values into the hash part, which requires them to be boxed.
+		if (numbers != null && newArraySize < numbers.length) boxNumbers();
 
-		if (newArraySize != 0 && newHashSize != 0 && newArraySize == oldArraySize && newHashSize == oldHashSize && !modeChange) {
-			throw new IllegalStateException("Attempting to resize with no change");
-		}
+		int oldArraySize = arrayLength();
+		int oldHashSize = keys.length;
 
 		// Array part must grow
 		if (newArraySize > oldArraySize) {
-			array = setArrayVector(array, newArraySize, modeChange, weakValues);
+			if (array == null) {
+				numbers = setNumberVector(numbers, newArraySize);
+			} else {
+				array = setArrayVector(array, newArraySize, modeChange);
+			}
 		}
 
-		Node[] oldNode = nodes;
+		Object[] oldKeys = keys;
+		Object[] oldValues = values;
 		setNodeVector(newHashSize);
 
 		if (newArraySize < oldArraySize) {
 			Object[] oldArray = array;
-			array = setArrayVector(oldArray, newArraySize, modeChange, weakValues);
+			array = setArrayVector(oldArray, newArraySize, modeChange);
 
 			// Copy values out of array part into the hash
 			for (int i = newArraySize; i < oldArraySize; i++) {
@@ -840,24 +1232,25 @@ public final class LuaTable extends LuaValue {
 				if (!value.isNil()) rawset(i + 1, value);
 			}
 
-		} else if (newArraySize == oldArraySize && modeChange) {
+		} else if (newArraySize == oldArraySize && modeChange && array != null) {
 			Object[] values = array;
 			for (int i = 0; i < oldArraySize; i++) {
 				LuaValue value = strengthen(values[i]);
-				values[i] = weakValues ? weaken(value) : value;
+				values[i] = weakValues ? weaken(value, -1 - i, false) : value;
 			}
 		}
 
-		// Re-insert elements from hash part
+		// Re-insert elements from hash part. The old entries may have been stored with a different weak mode, so we
+		// always strengthen them.
 		for (int i = oldHashSize - 1; i >= 0; i--) {
-			Node old = oldNode[i];
-			LuaValue key = old.key();
-			LuaValue value = old.value();
+			LuaValue key = strengthen(oldKeys[i]);
+			LuaValue value = strengthen(oldValues[i]);
 			if (!key.isNil() && !value.isNil()) rawset(key, value);
 		}
 	}
 
 	private void rehash(LuaValue extraKey, boolean mode) {
+		dropDeadReferences();
 		if (weakValues) dropWeakArrayValues();
 
 		int[] nums = new int[32]; // Counts for various functions
@@ -868,11 +1261,10 @@ public final class LuaTable extends LuaValue {
 		// Count the number of hash values that can be moved to the array, as well as the total count.
 		// See numusehash in ltable.c
 		{
-			int i = nodes.length;
+			int i = keys.length;
 			while (--i >= 0) {
-				Node node = nodes[i];
-				LuaValue key = node.key();
-				if (!key.isNil()) {
+				LuaValue key = key(i);
+				if (!key.isNil() && !value(i).isNil()) {
 					arrayCount += countInt(key, nums);
 					totalCount++;
 				}
@@ -909,21 +1301,108 @@ public final class LuaTable extends LuaValue {
 		}
 
 		resize(arraySize, totalCount - arrayCount, mode);
+		if (array != null) unboxNumbers();
+		if (site != null) site.record(this);
+	}
+
+	/**
+	 * Move the array part to {@link #numbers} if it only contains numbers.
+	 */
+	private void unboxNumbers() {
+		Object[] array = this.array;
+		boolean any = false;
+		for (Object value : array) {
+			if (value instanceof LuaNumber) {
+				any = true;
+			} else if (value != NIL) {
+				return;
+			}
+		}
+		if (!any) return;
+
+		double[] numbers = new double[array.length];
+		for (int i = 0; i < array.length; i++) {
+			Object value = array[i];
+			numbers[i] = value == NIL ? NIL_NUMBER : unbox((LuaValue) value);
+		}
+
+		this.numbers = numbers;
+		this.array = null;
+	}
+
+	/**
+	 * Move the array part from {@link #numbers} back to {@link #array}, so it can hold values other than numbers.
+	 */
+	private void boxNumbers() {
+		double[] numbers = this.numbers;
+		Object[] array = new Object[numbers.length];
+		for (int i = 0; i < numbers.length; i++) array[i] = box(numbers[i]);
+
+		this.array = array;
+		this.numbers = null;
 	}
 	//endregion
 
 	//region Getting/setting
 
+	private int arrayLength() {
+		Object[] array = this.array;
+		return array != null ? array.length : numbers.length;
+	}
+
+	private LuaValue arrayGet(int index) {
+		Object[] array = this.array;
+		return array != null ? strengthen(array[index]) : box(numbers[index]);
+	}
+
+	private boolean arrayHas(int index) {
+		Object[] array = this.array;
+		return array != null ? !strengthen(array[index]).isNil() : !isNilNumber(numbers[index]);
+	}
+
+	private void arraySet(int index, LuaValue value) {
+		Object[] array = this.array;
+		if (array == null) {
+			if (value instanceof LuaNumber) {
+				numbers[index] = unbox(value);
+				return;
+			} else if (value.isNil()) {
+				numbers[index] = NIL_NUMBER;
+				return;
+			}
+
+			boxNumbers();
+			array = this.array;
+		}
+
+		array[index] = weakValues ? weakValue(array[index], value, -1 - index) : value;
+	}
+
+	private static double unbox(LuaValue value) {
+		if (value instanceof LuaInteger) return ((LuaInteger) value).v;
+
+		double number = ((LuaDouble) value).v;
+		return Double.isNaN(number) ? Double.NaN : number;
+	}
+
+	private static LuaValue box(double number) {
+		return isNilNumber(number) ? NIL : LuaDouble.valueOf(number);
+	}
+
+	private static boolean isNilNumber(double number) {
+		return Double.doubleToRawLongBits(number) == NIL_NUMBER_BITS;
+	}
+
 	/**
 	 * Get the first free slot in the map
 	 *
 	 * @return The first slot in the map
 	 */
 	private int getFreePos() {
-		if (nodes.length == 0) return -1;
+		Object[] keys = this.keys;
+		if (keys.length == 0) return -1;
 		while (lastFree >= 0) {
-			Node last = nodes[lastFree--];
-			if (last.key == NIL) {
+			if (keys[lastFree--] == NIL) {
 				return lastFree + 1;
 			}
 		}
@@ -939,134 +1418,211 @@ public final class LuaTable extends LuaValue {
 	 * colliding node is in its main position and the new key goes to an empty position.
 	 *
 	 * @param key The key to set
+	 * @return The slot the key was inserted into, or {@code -1} if the table was rehashed instead.
 	 * @throws IllegalArgumentException If this key cannot be used.
 	 */
-	private Node newKey(LuaValue key) {
+	private int newKey(LuaValue key) {
 		if (key.isNil()) throw new IllegalArgumentException("table index is nil");
+		dropDeadReferences();
 
 		// Rehash and let the rawgetter handle it
-		if (nodes.length == 0) {
+		if (keys.length == 0) {
 			rehash(key, false);
-			return null;
+			return -1;
 		}
 
-		Node mainNode = nodes[hashSlot(key)];
-		LuaValue mainKey = mainNode.key();
-		if (!mainKey.isNil() && !mainNode.value().isNil()) {
+		Shape shape = this.shape;
+		if (shape != null) {
+			Shape next = key instanceof LuaString && ((LuaString) key).length <= LuaString.RECENT_STRINGS_MAX_LENGTH
+				? shape.add((LuaString) key) : null;
+			if (next == Shape.FULL) {
+				rehash(key, false);
+				return -1;
+			} else if (next != null) {
+				return useShape(next);
+			}
+
+			unshare();
+		}
+
+		Object[] keys = this.keys, values = this.values;
+		int[] chain = this.chain;
+
+		int mainPos = hashSlot(key);
+		LuaValue mainKey = key(mainPos);
+		if (!mainKey.isNil() && !value(mainPos).isNil()) {
 			// If we've got a collision then
 			final int freePos = getFreePos();
 
 			if (freePos < 0) {
 				rehash(key, false);
-				return null;
+				return -1;
 			}
 
-			final Node freeNode = nodes[freePos];
-
 			int otherPos = hashSlot(mainKey);
-			Node otherNode = nodes[otherPos];
-
-			if (otherNode != mainNode) {
+			if (otherPos != mainPos) {
 				// If the colliding position isn't at its main position then we move it to a free position
 
 				// Walk the chain to find the node just before the desired one
-				while (nodes[otherNode.next] != mainNode) {
-					otherNode = nodes[otherNode.next];
-				}
+				while (chain[otherPos] != mainPos) otherPos = chain[otherPos];
 
 				// Rechain other to point to the free position
-				otherNode.next = freePos;
+				chain[otherPos] = freePos;
 
 				// Copy colliding node into free position
-				freeNode.key = mainNode.key;
-				freeNode.value = mainNode.value;
-				freeNode.next = mainNode.next;
+				keys[freePos] = keys[mainPos];
+				values[freePos] = values[mainPos];
+				chain[freePos] = chain[mainPos];
+				if (weakKeys) moveWeak(keys[freePos], freePos);
+				if (weakValues) moveWeak(values[freePos], freePos);
 
 				// Clear main node
-				mainNode.next = -1;
-				mainNode.key = NIL;
-				mainNode.value = NIL;
+				chain[mainPos] = -1;
+				keys[mainPos] = NIL;
+				values[mainPos] = NIL;
 			} else {
 				// Colliding node is in the main position so we will assign to a free position.
 
-				if (mainNode.next != -1) {
-					// We're inserting "after" the first node in the linked list so change the
-					// next node.
-					freeNode.next = mainNode.next;
-				} else {
-					assert freeNode.next == -1;
-				}
+				// We're inserting "after" the first node in the linked list so change the next node.
+				assert chain[mainPos] != -1 || chain[freePos] == -1;
+				chain[freePos] = chain[mainPos];
 
 				// Insert after the main node
-				mainNode.next = freePos;
+				chain[mainPos] = freePos;
 
-				mainNode = freeNode;
+				mainPos = freePos;
 			}
 		}
 
-		mainNode.key = weakKeys ? weaken(key) : key;
+		keys[mainPos] = weakKeys ? weaken(key, mainPos, true) : key;
 
-		return mainNode;
+		return mainPos;
 	}
 
-	private Node rawgetNode(int search) {
-		if (nodes.length == 0) return null;
+	/**
+	 * Get the key in a slot of the hash part, converting it to a strong reference if required. If the key has been
+	 * collected, then this clears the value (marking the slot as "dead").
+	 *
+	 * @param slot The slot in the hash part.
+	 * @return The slot's key.
+	 */
+	private LuaValue key(int slot) {
+		Object key = keys[slot];
+		if (key == NIL || !weakKeys) return (LuaValue) key;
+
+		LuaValue strengthened = strengthen(key);
+		if (strengthened.isNil()) values[slot] = NIL; // We preserve the key so we can check it is nil
 
-		Node node = nodes[hashmod(search, nodes.length - 1)];
-		while (true) {
-			LuaValue key = node.key();
-			if (key instanceof LuaInteger && ((LuaInteger) key).v == search) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
-		}
+		return strengthened;
 	}
 
-	private Node rawgetNode(LuaValue search) {
-		if (nodes.length == 0) return null;
+	/**
+	 * Get the value in a slot of the hash part, converting it to a strong reference if required.
+	 *
+	 * @param slot The slot in the hash part.
+	 * @return The slot's value.
+	 */
+	private LuaValue value(int slot) {
+		Object value = values[slot];
+		if (value == NIL || !weakValues) return (LuaValue) value;
 
-		int slot = hashSlot(search);
-		Node node = nodes[slot];
-		while (true) {
-			LuaValue key = node.key();
-			if (key.equals(search)) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
-		}
+		LuaValue strengthened = strengthen(value);
+		if (strengthened.isNil()) values[slot] = NIL;
+		return strengthened;
+	}
+
+	private int findSlot(int search) {
+		Object[] keys = this.keys;
+		if (keys.length == 0) return -1;
+
+		// Numbers are never weakened, so we can compare against the stored key directly.
+		int[] chain = this.chain;
+		int slot = hashmod(search, keys.length - 1);
+		do {
+			Object key = keys[slot];
+			if (key instanceof LuaInteger && ((LuaInteger) key).v == search) return slot;
+			slot = chain[slot];
+		} while (slot != -1);
+
+		return -1;
+	}
+
+	private int findSlot(LuaValue search) {
+		Object[] keys = this.keys;
+		if (keys.length == 0) return -1;
+
+		int[] chain = this.chain;
+		int slot = hashSlot(search, keys.length - 1);
+		do {
+			Object key = keys[slot];
+			if (key == search || key(slot).equals(search)) return slot;
+			slot = chain[slot];
+		} while (slot != -1);
+
+		return -1;
+	}
+
+	/**
+	 * Find the slot of a string key in the hash part. Strings are never weakened, so unlike
+	 * {@link #findSlot(LuaValue)} we compare against the stored key directly.
+	 *
+	 * @param search The key to find.
+	 * @return The slot of this key, or {@code -1} if not present.
+	 */
+	private int findSlot(LuaString search) {
+		Object[] keys = this.keys;
+		if (keys.length == 0) return -1;
+
+		int[] chain = this.chain;
+		int slot = hashpow2(search.hashCode(), keys.length - 1);
+		do {
+			Object key = keys[slot];
+			if (key == search || search.equals(key)) return slot;
+			slot = chain[slot];
+		} while (slot != -1);
+
+		return -1;
 	}
 
 	public LuaValue rawget(int search) {
-		if (search > 0 && search <= array.length) {
-			return strengthen(array[search - 1]);
-		} else if (nodes.length == 0) {
-			return NIL;
-		} else {
-			Node node = rawgetNode(search);
-			return node == null ? NIL : node.value();
+		Object[] array = this.array;
+		if (array != null) {
+			if (search > 0 && search <= array.length) return strengthen(array[search - 1]);
+		} else if (search > 0 && search <= numbers.length) {
+			return box(numbers[search - 1]);
 		}
+
+		int slot = findSlot(search);
+		return slot < 0 ? NIL : value(slot);
+	}
+
+	/**
+	 * Get a value in a table without metatag processing.
+	 *
+	 * This is equivalent to {@link #rawget(LuaValue)}, but avoids checking the key's type.
+	 *
+	 * @param search The key to look up
+	 * @return {@link LuaValue} for that key, or {@link Constants#NIL} if not found
+	 */
+	public LuaValue rawget(LuaString search) {
+		int slot = findSlot(search);
+		return slot < 0 ? NIL : value(slot);
 	}
 
 	public LuaValue rawget(LuaValue search) {
 		if (search instanceof LuaInteger) return rawget(((LuaInteger) search).v);
 
-		Node node = rawgetNode(search);
-		return node == null ? NIL : node.value();
+		int slot = findSlot(search);
+		return slot < 0 ? NIL : value(slot);
 	}
 
 	public LuaValue rawget(CachedMetamethod search) {
 		int flag = 1 << search.ordinal();
 		if ((metatableFlags & flag) != 0) return NIL;
 
-		Node node = rawgetNode(search.getKey());
-		if (node != null) {
-			LuaValue value = node.value();
+		int slot = findSlot(search.getKey());
+		if (slot >= 0) {
+			LuaValue value = value(slot);
 			if (!value.isNil()) return value;
 		}
 
@@ -1075,22 +1631,40 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void rawset(int key, LuaValue value) {
+		// Keep the border in sync with the common t[#t + 1] = x and t[#t] = nil patterns, and forget it if any other
+		// change would leave a gap.
+		int border = this.border;
+		if (border >= 0 && key > 0) {
+			if (value.isNil()) {
+				if (key == border) {
+					this.border = key - 1;
+				} else if (key < border) {
+					this.border = -1;
+				}
+			} else if (key == border + 1) {
+				this.border = key;
+			} else if (key > border) {
+				this.border = -1;
+			}
+		}
+
 		LuaValue valueOf = null;
 		do {
-			if (key > 0 && key <= array.length) {
-				array[key - 1] = weakValues ? weaken(value) : value;
+			if (key > 0 && key <= arrayLength()) {
+				arraySet(key - 1, value);
 				return;
 			}
 
 			if (valueOf == null) valueOf = valueOf(key);
 
-			Node node = rawgetNode(valueOf);
-			if (node == null) node = newKey(valueOf);
+			int slot = findSlot(valueOf);
+			if (slot < 0) slot = newKey(valueOf);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				// Shapes assume every key has a value, so removing one requires a layout of our own.
+				if (shape != null && value.isNil()) unshare();
+				values[slot] = weakValues ? weakValue(values[slot], value, slot) : value;
 				return;
 			}
 		} while (true);
@@ -1103,13 +1677,14 @@ public final class LuaTable extends LuaValue {
 		}
 
 		do {
-			Node node = rawgetNode(key);
-			if (node == null) node = newKey(key);
+			int slot = findSlot(key);
+			if (slot < 0) slot = newKey(key);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				// Shapes assume every key has a value, so removing one requires a layout of our own.
+				if (shape != null && value.isNil()) unshare();
+				values[slot] = weakValues ? weakValue(values[slot], value, slot) : value;
 				metatableFlags = 0;
 				return;
 			}
@@ -1120,62 +1695,133 @@ public final class LuaTable extends LuaValue {
 	//region Weak references
 
 	/**
-	 * Self-sent message to convert a value to its weak counterpart
+	 * Convert a value to its weak counterpart, registering it with {@link #deadReferences}.
 	 *
-	 * @param value value to convert
+	 * @param value The value to convert
+	 * @param slot  The slot this value will be stored in: an index into the hash part, or {@code -1 - index} for the
+	 *              array part.
+	 * @param key   Whether this value is a key in the hash part.
 	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
 	 */
-	private static Object weaken(LuaValue value) {
+	private Object weaken(LuaValue value, int slot, boolean key) {
 		switch (value.type()) {
 			case TFUNCTION:
 			case TTHREAD:
 			case TTABLE:
-				return new WeakReference<>(value);
+				return new WeakSlot(value, deadReferences, slot, key);
 			case TUSERDATA:
-				return new WeakUserdata((LuaUserdata) value);
+				return new WeakUserdata((LuaUserdata) value, deadReferences, slot, key);
 			default:
 				return value;
 		}
 	}
 
 	/**
-	 * Unwrap a LuaValue from a WeakReference and/or WeakUserdata.
+	 * Convert a value to its weak counterpart, reusing the existing reference if the same value is being stored again.
+	 *
+	 * @param old   The previous contents of this slot.
+	 * @param value The value to convert
+	 * @param slot  The slot this value will be stored in.
+	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
+	 * @see #weaken(LuaValue, int, boolean)
+	 */
+	private Object weakValue(Object old, LuaValue value, int slot) {
+		if (old.getClass() == WeakSlot.class && ((WeakSlot) old).get() == value) {
+			((WeakSlot) old).slot = slot;
+			return old;
+		}
+
+		return weaken(value, slot, false);
+	}
+
+	/**
+	 * Update the slot of a weak reference after it has been moved.
+	 *
+	 * @param ref  The (possibly) weak reference.
+	 * @param slot The new slot.
+	 */
+	private static void moveWeak(Object ref, int slot) {
+		if (ref instanceof WeakSlot) ((WeakSlot) ref).slot = slot;
+	}
+
+	/**
+	 * Clear any entries whose key or value has been collected.
+	 *
+	 * This does not remove dead keys from the hash part, as they may be part of another key's chain. Instead we clear
+	 * their value, so the slot may be reused and the value can be collected. The key will be removed the next time
+	 * the table is rehashed.
+	 */
+	private void dropDeadReferences() {
+		ReferenceQueue<Object> queue = deadReferences;
+		if (queue == null) return;
+
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) {
+			WeakSlot dead = (WeakSlot) ref;
+			int slot = dead.slot;
+			if (slot < 0) {
+				int index = -1 - slot;
+				Object[] array = this.array;
+				if (array != null && index < array.length && array[index] == dead) array[index] = NIL;
+			} else if (slot < keys.length && (dead.key ? keys[slot] : values[slot]) == dead) {
+				values[slot] = NIL;
+			}
+		}
+	}
+
+	/**
+	 * Unwrap a LuaValue from a {@link WeakSlot}.
 	 *
 	 * @param ref reference to convert
 	 * @return LuaValue or null
-	 * @see #weaken(LuaValue)
+	 * @see #weaken(LuaValue, int, boolean)
 	 */
-	@SuppressWarnings("unchecked")
 	static LuaValue strengthen(Object ref) {
-		if (ref instanceof WeakReference) {
-			LuaValue value = ((WeakReference<LuaValue>) ref).get();
-			return value == null ? NIL : value;
-		} else if (ref instanceof WeakUserdata) {
-			return ((WeakUserdata) ref).strongValue();
-		} else {
-			return (LuaValue) ref;
+		return ref instanceof WeakSlot ? ((WeakSlot) ref).strongValue() : (LuaValue) ref;
+	}
+
+	/**
+	 * A weak reference stored in the table, which remembers where it is stored. When the referent is collected, this
+	 * is added to the table's {@link #deadReferences} queue, allowing us to find and clear the entry.
+	 *
+	 * The slot is only a hint: entries which have moved since will be found when they are next accessed instead.
+	 */
+	private static class WeakSlot extends WeakReference<Object> {
+		int slot;
+		final boolean key;
+
+		WeakSlot(Object referent, ReferenceQueue<Object> queue, int slot, boolean key) {
+			super(referent, queue);
+			this.slot = slot;
+			this.key = key;
+		}
+
+		LuaValue strongValue() {
+			Object value = get();
+			return value == null ? NIL : (LuaValue) value;
 		}
 	}
 
 	/**
-	 * Internal class to implement weak userdata values.
+	 * Internal class to implement weak userdata values. The userdata is alive as long as its instance is, so we track
+	 * that rather than the {@link LuaUserdata} itself.
 	 */
-	private static final class WeakUserdata {
+	private static final class WeakUserdata extends WeakSlot {
 		private WeakReference<LuaValue> ref;
-		private final WeakReference<Object> ob;
 		private final LuaTable mt;
 
-		private WeakUserdata(LuaUserdata value) {
+		private WeakUserdata(LuaUserdata value, ReferenceQueue<Object> queue, int slot, boolean key) {
+			super(value.instance, queue, slot, key);
 			ref = new WeakReference<>(value);
-			ob = new WeakReference<>(value.instance);
 			mt = value.metatable;
 		}
 
-		public LuaValue strongValue() {
+		@Override
+		LuaValue strongValue() {
 			LuaValue u = ref.get();
 			if (u != null) return u;
 
-			Object o = ob.get();
+			Object o = get();
 			if (o != null) {
 				LuaValue ud = userdataOf(o, mt);
 				ref = new WeakReference<>(ud);
@@ -1188,56 +1834,441 @@ public final class LuaTable extends LuaValue {
 	//endregion
 
 	/**
-	 * Represents a node in the hash element of the table.
+	 * Caches the location of a string key within a table's hash part, allowing repeated lookups of the same key to skip
+	 * hashing and walking the node chain. This is used by the interpreter to implement inline caches for global and
+	 * field accesses.
+	 *
+	 * Rather than remembering a specific table, we store the slot where the key was last found and the exact key object
+	 * stored there. A key can only occur once within a table, so if any table contains this key object in the cached
+	 * slot, then that node holds the value we are looking for. This means one cache can be shared by many tables with
+	 * the same layout, and does not keep any table alive.
 	 */
-	private static final class Node {
-		private final boolean weakKey;
-		private final boolean weakValue;
-		Object value = NIL;
-		Object key = NIL;
-		int next = -1;
+	public static final class KeyCache {
+		private final LuaString key;
+		private int slot;
+		private Object slotKey;
+
+		public KeyCache(LuaString key) {
+			this.key = key;
+		}
+
+		/**
+		 * Get a value from a table without metatag processing. This is equivalent to {@link LuaTable#rawget(LuaString)}.
+		 *
+		 * @param table The table to look up this key in.
+		 * @return {@link LuaValue} for this key, or {@link Constants#NIL} if not found
+		 */
+		public LuaValue get(LuaTable table) {
+			Object[] keys = table.keys;
+			int slot = this.slot;
+			if (slot < keys.length && keys[slot] == slotKey) return table.value(slot);
+
+			slot = table.findSlot(key);
+			if (slot < 0) return NIL;
+
+			this.slot = slot;
+			this.slotKey = keys[slot];
+			return table.value(slot);
+		}
+	}
 
-		Node(boolean weakKey, boolean weakValue) {
-			this.weakKey = weakKey;
-			this.weakValue = weakValue;
+	/**
+	 * An iterator over the entries of a table, created with {@link #entryIterator()}.
+	 *
+	 * This can either be used as a normal {@link Iterator}, or (to avoid allocating an entry for each element) by
+	 * calling {@link #advance()} and then reading {@link #key()} and {@link #value()}.
+	 */
+	public static final class EntryIterator implements Iterator<Map.Entry<LuaValue, LuaValue>> {
+		private final LuaTable table;
+		private final int arrayLength;
+		private final Object[] values;
+
+		private int index;
+		private int end;
+
+		private int current = -1;
+		private LuaValue key;
+		private LuaValue value;
+
+		private boolean peeked;
+		private boolean hasPeeked;
+
+		EntryIterator(LuaTable table, int index, int end) {
+			this.table = table;
+			arrayLength = table.arrayLength();
+			values = table.values;
+			this.index = index;
+			this.end = end;
+		}
+
+		/**
+		 * Move to the next entry in the table.
+		 *
+		 * @return Whether there was another entry. If so, it can be read with {@link #key()} and {@link #value()}.
+		 * @throws ConcurrentModificationException If the table has been resized since this iterator was created.
+		 */
+		public boolean advance() {
+			if (peeked) {
+				peeked = false;
+				return hasPeeked;
+			}
+
+			// Both parts of the table are reallocated whenever it is resized, so we only need to check their size and
+			// identity.
+			LuaTable table = this.table;
+			int arrayLength = this.arrayLength;
+			if (table.arrayLength() != arrayLength || table.values != values) throw new ConcurrentModificationException();
+
+			for (int i = index, end = this.end; i < end; i++) {
+				LuaValue key, value;
+				if (i < arrayLength) {
+					// Integer keys are created lazily, as they are often not needed.
+					value = table.arrayGet(i);
+					if (value.isNil()) continue;
+					key = null;
+				} else {
+					key = table.key(i - arrayLength);
+					value = table.value(i - arrayLength);
+					if (key.isNil() || value.isNil()) continue;
+				}
+
+				index = i + 1;
+				current = i;
+				this.key = key;
+				this.value = value;
+				return true;
+			}
+
+			index = end;
+			current = -1;
+			key = value = null;
+			return false;
+		}
+
+		/**
+		 * Get the key of the current entry.
+		 *
+		 * @return The current key.
+		 * @throws IllegalStateException If {@link #advance()} has not returned {@code true}.
+		 */
+		public LuaValue key() {
+			if (current < 0) throw new IllegalStateException("No current entry");
+			LuaValue key = this.key;
+			return key != null ? key : (this.key = valueOf(current + 1));
+		}
+
+		/**
+		 * Get the value of the current entry.
+		 *
+		 * @return The current value.
+		 * @throws IllegalStateException If {@link #advance()} has not returned {@code true}.
+		 */
+		public LuaValue value() {
+			if (current < 0) throw new IllegalStateException("No current entry");
+			return value;
 		}
 
 		@Override
-		public String toString() {
-			String main = key + "=" + value;
-			if (next >= 0) main += "->" + next;
-			return main;
+		public boolean hasNext() {
+			if (!peeked) {
+				hasPeeked = advance();
+				peeked = true;
+			}
+			return hasPeeked;
 		}
 
+		@Override
+		public Map.Entry<LuaValue, LuaValue> next() {
+			if (!advance()) throw new NoSuchElementException();
+			return new AbstractMap.SimpleImmutableEntry<>(key(), value);
+		}
+	}
+
+	private static final class EntrySpliterator implements Spliterator<Map.Entry<LuaValue, LuaValue>> {
+		private final EntryIterator iterator;
+
+		EntrySpliterator(EntryIterator iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<LuaValue, LuaValue>> action) {
+			EntryIterator iterator = this.iterator;
+			if (!iterator.advance()) return false;
+			action.accept(new AbstractMap.SimpleImmutableEntry<>(iterator.key(), iterator.value));
+			return true;
+		}
+
+		@Override
+		public Spliterator<Map.Entry<LuaValue, LuaValue>> trySplit() {
+			EntryIterator iterator = this.iterator;
+			if (iterator.peeked) return null;
+
+			int start = iterator.index, mid = (start + iterator.end) >>> 1;
+			if (start >= mid) return null;
+
+			iterator.index = mid;
+			return new EntrySpliterator(new EntryIterator(iterator.table, start, mid));
+		}
+
+		@Override
+		public long estimateSize() {
+			return iterator.end - iterator.index;
+		}
+
+		@Override
+		public int characteristics() {
+			return DISTINCT | NONNULL;
+		}
+	}
+
+	/**
+	 * Collects sizing feedback for tables created by a single {@code OP_NEWTABLE} instruction, and uses it to presize
+	 * later tables from the same instruction.
+	 *
+	 * Tables are often filled by code after their constructor (loops, or field assignments in a "class" constructor),
+	 * and so grow through several rehashes. One in every eight tables created at a site is a sample: it starts at the
+	 * size the instruction asked for, remembers where it came from, and reports its size back each time it is
+	 * rehashed. A sample which is never rehashed counts as having needed no extra room.
+	 *
+	 * Other tables start at the smallest size reported by the last few samples. Being cautious means a single large
+	 * table does not make every later table from the site large, and the presize falls again as soon as later samples
+	 * stay small.
+	 */
+	public static final class AllocationSite {
+		private static final int SAMPLE_MASK = 7;
+		private static final int SAMPLES = 4;
+		private static final int MAX_ARRAY_SIZE = 1 << 10;
+		private static final int MAX_HASH_SIZE = 1 << 6;
+
+		private int created;
+
+		/**
+		 * The number of samples taken, and whether the most recent one has reported its size.
+		 */
+		private int samples;
+		private boolean reported;
+
 		/**
-		 * Get the current key, converting it to a strong reference if
-		 * required. If it is nil then it clears the key and value (marking it
-		 * as "dead").
+		 * The array and hash sizes reported by the last {@link #SAMPLES} samples, and a bitmask of those whose array
+		 * part only held numbers.
+		 */
+		private final int[] arraySizes = new int[SAMPLES];
+		private final int[] hashSizes = new int[SAMPLES];
+		private int numberSamples;
+
+		private int arraySize;
+		private int hashSize;
+		private boolean numbers;
+
+		/**
+		 * Construct a new table from this site.
 		 *
-		 * @return The entry's key.
+		 * @param narray The array size requested by the instruction.
+		 * @param nhash  The hash size requested by the instruction.
+		 * @return The newly created table.
 		 */
-		LuaValue key() {
-			Object key = this.key;
-			if (key == NIL || !weakKey) return (LuaValue) key;
+		public LuaTable create(int narray, int nhash) {
+			if ((created++ & SAMPLE_MASK) != 0) {
+				return new LuaTable(Math.max(narray, arraySize), Math.max(nhash, hashSize), numbers);
+			}
 
-			LuaValue strengthened = strengthen(key);
-			if (strengthened.isNil()) this.value = NIL; // We preserve the key so we can check it is nil
+			if (samples > 0 && !reported) record(0, 0, false);
+			samples++;
+			reported = false;
 
-			return strengthened;
+			LuaTable table = new LuaTable(narray, nhash);
+			table.site = this;
+			return table;
+		}
+
+		void record(LuaTable table) {
+			record(Math.min(table.arrayLength(), MAX_ARRAY_SIZE), Math.min(table.keys.length, MAX_HASH_SIZE), table.array == null);
+			reported = true;
+		}
+
+		private void record(int arraySize, int hashSize, boolean numbers) {
+			int sample = (samples - 1) % SAMPLES;
+			arraySizes[sample] = arraySize;
+			hashSizes[sample] = hashSize;
+			if (numbers) {
+				numberSamples |= 1 << sample;
+			} else {
+				numberSamples &= ~(1 << sample);
+			}
+
+			int count = Math.min(samples, SAMPLES);
+			int minArray = Integer.MAX_VALUE, minHash = Integer.MAX_VALUE;
+			for (int i = 0; i < count; i++) {
+				minArray = Math.min(minArray, arraySizes[i]);
+				minHash = Math.min(minHash, hashSizes[i]);
+			}
+
+			this.arraySize = minArray;
+			this.hashSize = minHash;
+			this.numbers = minArray > 0 && numberSamples == (1 << count) - 1;
+		}
+	}
+
+	/**
+	 * The layout of a table's hash part when all its keys are short strings.
+	 *
+	 * Tables built by the same code generally have the same keys, inserted in the same order, and so end up with
+	 * identical {@link #keys} and {@link #chain} arrays. Rather than each table storing its own copy, they share an
+	 * immutable shape, and only store their values. Adding a key moves the table to a child shape, which is
+	 * computed once and then cached on the parent.
+	 *
+	 * Shapes follow exactly the same placement rules as {@link #newKey(LuaValue)}, so the layout (and thus iteration
+	 * order) of a table is the same whether or not it uses a shape. This relies on every key having a non-nil value:
+	 * tables switch to their own layout when a value is removed, or a key which does not fit in a shape is added.
+	 *
+	 * Shapes are shared between all Lua states, so may be used from several threads at once. Each shape holds its
+	 * children weakly (apart from the most recently used one), so shapes and their keys are freed once no table uses
+	 * them, and a program using string-keyed tables as dictionaries does not slowly fill the heap.
+	 */
+	private static final class Shape {
+		private static final int MAX_TRANSITIONS = 16;
+
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<Shape, ConcurrentHashMap> TRANSITIONS =
+			AtomicReferenceFieldUpdater.newUpdater(Shape.class, ConcurrentHashMap.class, "transitions");
+
+		/**
+		 * Returned from {@link #add(LuaString)} when there is no room for another key, and the table must be
+		 * rehashed.
+		 */
+		static final Shape FULL = new Shape(null, EMPTY_ARRAY, EMPTY_CHAIN, 0, -1, -1, -1);
+
+		/**
+		 * The empty shape for each hash size, indexed by its log2.
+		 */
+		static final Shape[] ROOTS = new Shape[6];
+
+		static {
+			for (int i = 0; i < ROOTS.length; i++) {
+				int size = 1 << i;
+				Object[] keys = new Object[size];
+				int[] chain = new int[size];
+				Arrays.fill(keys, NIL);
+				Arrays.fill(chain, -1);
+				ROOTS[i] = new Shape(null, keys, chain, size - 1, -1, -1, -1);
+			}
+		}
+
+		final LuaString key;
+		final Object[] keys;
+		final int[] chain;
+		final int lastFree;
+
+		/**
+		 * The slot {@link #key} was added at.
+		 */
+		final int slot;
+
+		/**
+		 * The slots an existing value was moved from and to when adding {@link #key}, or {@code -1}.
+		 */
+		final int moveFrom, moveTo;
+
+		private volatile Shape lastTransition;
+		private volatile ConcurrentHashMap<LuaString, WeakReference<Shape>> transitions;
+
+		private Shape(LuaString key, Object[] keys, int[] chain, int lastFree, int slot, int moveFrom, int moveTo) {
+			this.key = key;
+			this.keys = keys;
+			this.chain = chain;
+			this.lastFree = lastFree;
+			this.slot = slot;
+			this.moveFrom = moveFrom;
+			this.moveTo = moveTo;
+		}
+
+		/**
+		 * Get the shape with an additional key.
+		 *
+		 * @param key The key to add. This must not already be in this shape.
+		 * @return The new shape, {@link #FULL} if there is no room for this key, or {@code null} if this shape has
+		 * too many children.
+		 */
+		@SuppressWarnings("unchecked")
+		Shape add(LuaString key) {
+			// Tables built by the same constructor will hit the same transition each time, so skip the map.
+			Shape next = lastTransition;
+			if (next != null && next.key.equals(key)) return next;
+
+			ConcurrentHashMap<LuaString, WeakReference<Shape>> transitions = this.transitions;
+			if (transitions == null) {
+				TRANSITIONS.compareAndSet(this, null, new ConcurrentHashMap<>(4));
+				transitions = this.transitions;
+			}
+
+			WeakReference<Shape> existing = transitions.get(key);
+			next = existing == null ? null : existing.get();
+			if (next == null) {
+				if (existing == null && transitions.size() >= MAX_TRANSITIONS) {
+					transitions.values().removeIf(x -> x.get() == null);
+					if (transitions.size() >= MAX_TRANSITIONS) return null;
+				}
+
+				// If another thread creates this shape at the same time, the two are equivalent, so it does not
+				// matter which one ends up in the map.
+				next = create(key);
+				transitions.put(key, new WeakReference<>(next));
+			}
+
+			if (next != FULL) lastTransition = next;
+			return next;
 		}
 
 		/**
-		 * Get the current value, converting it to a strong reference if required.
+		 * Insert a key into a copy of this shape's layout. This mirrors {@link #newKey(LuaValue)}, with the knowledge
+		 * that every present key has a value.
 		 *
-		 * @return The entry's value.
+		 * @param key The key to add.
+		 * @return The new shape, or {@link #FULL} if there is no free slot.
 		 */
-		LuaValue value() {
-			Object value = this.value;
-			if (value == NIL || !weakValue) return (LuaValue) value;
+		private Shape create(LuaString key) {
+			int mask = keys.length - 1;
+			int mainPos = hashpow2(key.hashCode(), mask);
+			int lastFree = this.lastFree, moveFrom = -1, moveTo = -1;
+
+			Object[] keys = this.keys.clone();
+			int[] chain = this.chain.clone();
+
+			Object mainKey = keys[mainPos];
+			if (mainKey != NIL) {
+				int freePos = -1;
+				while (lastFree >= 0) {
+					if (keys[lastFree--] == NIL) {
+						freePos = lastFree + 1;
+						break;
+					}
+				}
+
+				if (freePos < 0) return FULL;
+
+				int otherPos = hashSlot((LuaValue) mainKey, mask);
+				if (otherPos != mainPos) {
+					// Move the colliding key to the free slot.
+					while (chain[otherPos] != mainPos) otherPos = chain[otherPos];
+					chain[otherPos] = freePos;
+
+					keys[freePos] = mainKey;
+					chain[freePos] = chain[mainPos];
+					chain[mainPos] = -1;
+
+					moveFrom = mainPos;
+					moveTo = freePos;
+				} else {
+					// Insert the new key after the colliding one.
+					chain[freePos] = chain[mainPos];
+					chain[mainPos] = freePos;
+					mainPos = freePos;
+				}
+			}
 
-			LuaValue strengthened = strengthen(value);
-			if (strengthened.isNil()) this.value = NIL;
-			return strengthened;
+			keys[mainPos] = key;
+			return new Shape(key, keys, chain, lastFree, mainPos, moveFrom, moveTo);
 		}
 	}
 }
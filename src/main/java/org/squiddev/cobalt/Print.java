@@ -24,6 +24,7 @@
  */
 package org.squiddev.cobalt;
 
+import org.squiddev.cobalt.debug.TypeProfiler;
 import org.squiddev.cobalt.function.LuaClosure;
 
 import java.io.ByteArrayOutputStream;
@@ -159,6 +160,25 @@ public class Print {
 		}
 	}
 
+	/**
+	 * Print the code in a prototype, annotating each instruction with the types observed by a profiler.
+	 *
+	 * @param ps       the {@link PrintStream} to print to
+	 * @param f        the {@link Prototype}
+	 * @param profiler the profiler to read observed types from
+	 */
+	public static void printCode(PrintStream ps, Prototype f, TypeProfiler profiler) {
+		TypeProfiler.FunctionProfile profile = profiler.getProfile(f);
+		int[] code = f.code;
+		int pc, n = code.length;
+		for (pc = 0; pc < n; pc++) {
+			printOpcode(ps, f, pc);
+			TypeProfiler.Site site = profile == null ? null : profile.getSite(pc);
+			if (site != null) ps.print("\t; " + site);
+			ps.println();
+		}
+	}
+
 	/**
 	 * Print an opcode in a prototype
 	 *
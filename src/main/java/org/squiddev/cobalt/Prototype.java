@@ -24,6 +24,7 @@
  */
 package org.squiddev.cobalt;
 
+import org.squiddev.cobalt.function.CompiledFunction;
 import org.squiddev.cobalt.function.LocalVariable;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
 
@@ -60,6 +61,19 @@ public final class Prototype {
 	public int is_vararg;
 	public int maxstacksize;
 
+	/* number of times this function has been called, used to decide when to compile it */
+	public int calls;
+	/* the compiled version of this function, or null if it has not been compiled */
+	public CompiledFunction compiled;
+	/* a copy of code which the interpreter rewrites to specialised instructions, or null if not yet executed */
+	public int[] quickened;
+	/* number of times each specialised instruction has fallen back to its generic form, indexed by instruction. Created when first needed. */
+	public byte[] quickenMisses;
+	/* caches for global and field lookups, indexed by instruction. Created when such instructions are quickened. */
+	public LuaTable.KeyCache[] keyCaches;
+	/* sizing feedback for tables created by OP_NEWTABLE, indexed by instruction. Created when first needed. */
+	public LuaTable.AllocationSite[] allocationSites;
+
 	public LuaString sourceShort() {
 		return getShortName(source);
 	}
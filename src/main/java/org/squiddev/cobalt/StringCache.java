@@ -0,0 +1,166 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+/**
+ * A small cache of recently created short strings, used to share {@link LuaString} instances with the same contents.
+ *
+ * This is simply an array of strings, indexed by their hash code. If a string is being constructed frequently it will
+ * generally be found here, allowing the copy to be discarded and the cached instance (whose hash code has already
+ * been computed) to be used instead.
+ *
+ * Each {@link LuaState} has its own cache, available as {@link LuaState#stringCache}, so states running on different
+ * threads do not evict each other's strings. As a state may only be used by one thread at a time, this class is not
+ * thread safe.
+ *
+ * @see LuaState.Builder#stringCacheSize(int)
+ * @see LuaString#valueOf(byte[], int, int)
+ */
+public final class StringCache {
+	private final LuaString[] strings;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Create a new string cache.
+	 *
+	 * @param size The number of strings to cache. This is rounded up to a power of two, and may be 0 to disable
+	 *             caching.
+	 */
+	public StringCache(int size) {
+		if (size < 0) throw new IllegalArgumentException("size must be >= 0");
+		strings = new LuaString[size <= 1 ? size : Integer.highestOneBit(size - 1) << 1];
+	}
+
+	/**
+	 * Construct a {@link LuaString} around a byte array without copying the contents, returning a cached instance if
+	 * there is one. This behaves the same as {@link LuaString#valueOf(byte[], int, int)}.
+	 *
+	 * The array is used directly after this is called, so clients must not change contents.
+	 *
+	 * @param bytes  byte buffer
+	 * @param offset offset into the byte buffer
+	 * @param length length of the byte buffer
+	 * @return {@link LuaString} wrapping the byte buffer
+	 */
+	public LuaString valueOf(byte[] bytes, int offset, int length) {
+		LuaString string = LuaString.create(bytes, offset, length);
+		return string.bytes.length < LuaString.RECENT_STRINGS_MAX_LENGTH ? get(string) : string;
+	}
+
+	/**
+	 * Construct a {@link LuaString} around a byte array without copying the contents, returning a cached instance if
+	 * there is one.
+	 *
+	 * The array is used directly after this is called, so clients must not change contents.
+	 *
+	 * @param bytes byte buffer
+	 * @return {@link LuaString} wrapping the byte buffer
+	 * @see #valueOf(byte[], int, int)
+	 */
+	public LuaString valueOf(byte[] bytes) {
+		return valueOf(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Concatenate a sequence of strings together, returning a cached instance if there is one.
+	 *
+	 * @param strings The array holding the strings to concatenate. Every value in the range must be a {@link LuaString}.
+	 * @param offset  The index of the first string in the array.
+	 * @param count   The number of strings to concatenate.
+	 * @param length  The total length of the strings.
+	 * @return The concatenated string.
+	 * @see LuaString#concat(LuaValue[], int, int, int)
+	 */
+	public LuaString concat(LuaValue[] strings, int offset, int count, int length) {
+		if (length >= LuaString.RECENT_STRINGS_MAX_LENGTH) return LuaString.concat(strings, offset, count, length);
+
+		byte[] buffer = new byte[length];
+		for (int i = 0, position = 0; i < count; i++) {
+			position = ((LuaString) strings[offset + i]).copyTo(buffer, position);
+		}
+		return valueOf(buffer);
+	}
+
+	/**
+	 * Concatenate two strings together, returning a cached instance if there is one.
+	 *
+	 * @param left  The left string
+	 * @param right The right string
+	 * @return The concatenated string.
+	 * @see LuaString#concat(LuaString, LuaString)
+	 */
+	public LuaString concat(LuaString left, LuaString right) {
+		int length = left.length + right.length;
+		if (length >= LuaString.RECENT_STRINGS_MAX_LENGTH) return LuaString.concat(left, right);
+
+		byte[] buffer = new byte[length];
+		right.copyTo(buffer, left.copyTo(buffer, 0));
+		return valueOf(buffer);
+	}
+
+	private LuaString get(LuaString string) {
+		LuaString[] strings = this.strings;
+		if (strings.length == 0) return string;
+
+		int index = string.hashCode() & (strings.length - 1);
+		LuaString cached = strings[index];
+		if (cached != null && string.raweq(cached)) {
+			hits++;
+			return cached;
+		}
+
+		misses++;
+		strings[index] = string;
+		return string;
+	}
+
+	/**
+	 * Get the number of strings this cache can hold.
+	 *
+	 * @return The size of this cache.
+	 */
+	public int size() {
+		return strings.length;
+	}
+
+	/**
+	 * Get the number of times a cached string was returned.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of times a short string was not found in the cache.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import java.util.Arrays;
+
+/**
+ * Searches strings for a fixed sequence of bytes.
+ *
+ * Short needles are found by scanning for their first byte and then comparing the remainder. Longer ones use the
+ * Boyer-Moore-Horspool algorithm, which compares the last byte of the needle against each window and uses a table of
+ * shifts to skip over windows which cannot match. Building this table has a cost, so callers which search for the
+ * same string repeatedly should create a {@link StringSearch} once and reuse it.
+ *
+ * @see LuaString#indexOf(LuaString, int)
+ */
+public final class StringSearch {
+	/**
+	 * The minimum needle length for which the skip table is used.
+	 */
+	static final int SKIP_MIN_LENGTH = 4;
+
+	/**
+	 * The minimum number of bytes to search through before {@link LuaString#indexOf(LuaString, int)} builds a skip
+	 * table.
+	 */
+	static final int SKIP_MIN_SEARCH = 256;
+
+	private final LuaString needle;
+	private final int[] skip;
+
+	/**
+	 * Create a searcher for a string.
+	 *
+	 * @param needle The string to search for.
+	 */
+	public StringSearch(LuaString needle) {
+		this.needle = needle;
+
+		int length = needle.length;
+		if (length < SKIP_MIN_LENGTH) {
+			skip = null;
+			return;
+		}
+
+		int[] skip = this.skip = new int[256];
+		Arrays.fill(skip, length);
+
+		byte[] bytes = needle.bytes;
+		for (int i = 0, offset = needle.offset; i < length - 1; i++) {
+			skip[bytes[offset + i] & 0xFF] = length - 1 - i;
+		}
+	}
+
+	/**
+	 * Get the string this searches for.
+	 *
+	 * @return The needle string.
+	 */
+	public LuaString needle() {
+		return needle;
+	}
+
+	/**
+	 * Find the first occurrence of the needle in a string.
+	 *
+	 * @param haystack The string to search in.
+	 * @param start    The first index in {@code haystack} to consider.
+	 * @return The index of the first match found, or {@code -1} if not found.
+	 */
+	public int indexOf(LuaString haystack, int start) {
+		return skip == null ? scan(haystack, needle, start) : horspool(haystack, needle, skip, start);
+	}
+
+	/**
+	 * Find the first occurrence of a byte in part of an array.
+	 *
+	 * @param bytes The array to search.
+	 * @param start The first index to consider.
+	 * @param limit The index to stop at (exclusive).
+	 * @param b     The byte to look for.
+	 * @return The index of the byte, or {@code -1} if not found.
+	 */
+	static int indexOf(byte[] bytes, int start, int limit, byte b) {
+		for (int i = start; i < limit; i++) {
+			if (bytes[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find a string by scanning for its first byte, then comparing the remaining bytes.
+	 */
+	static int scan(LuaString haystack, LuaString needle, int start) {
+		final int length = needle.length;
+		if (length == 0) return start <= haystack.length ? start : -1;
+
+		final byte[] hBytes = haystack.bytes, nBytes = needle.bytes;
+		final int hOffset = haystack.offset, nOffset = needle.offset;
+		final int limit = hOffset + haystack.length - length + 1;
+		final byte first = nBytes[nOffset];
+
+		int i = hOffset + start;
+		while (i < limit) {
+			i = indexOf(hBytes, i, limit, first);
+			if (i == -1) return -1;
+
+			int j = 1;
+			while (j < length && hBytes[i + j] == nBytes[nOffset + j]) j++;
+			if (j == length) return i - hOffset;
+
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find a string using the Boyer-Moore-Horspool algorithm.
+	 */
+	static int horspool(LuaString haystack, LuaString needle, int[] skip, int start) {
+		final byte[] hBytes = haystack.bytes, nBytes = needle.bytes;
+		final int hOffset = haystack.offset, nOffset = needle.offset;
+		final int last = needle.length - 1;
+		final int limit = hOffset + haystack.length - last;
+		final byte lastByte = nBytes[nOffset + last];
+
+		int i = hOffset + start;
+		while (i < limit) {
+			byte b = hBytes[i + last];
+			if (b == lastByte) {
+				int j = 0;
+				while (j < last && hBytes[i + j] == nBytes[nOffset + j]) j++;
+				if (j == last) return i - hOffset;
+			}
+			i += skip[b & 0xFF];
+		}
+		return -1;
+	}
+}
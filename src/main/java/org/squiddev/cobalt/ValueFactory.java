@@ -24,6 +24,10 @@
  */
 package org.squiddev.cobalt;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
 public class ValueFactory {
 	/**
 	 * Convert java boolean to a {@link LuaValue}.
@@ -127,7 +131,52 @@ public class ValueFactory {
 	 * @return new {@link LuaTable} instance with sequential elements coming from the array.
 	 */
 	public static LuaTable listOf(LuaValue... unnamedValues) {
-		return new LuaTable(null, unnamedValues, null);
+		return LuaTable.ofValues(Arrays.copyOf(unnamedValues, unnamedValues.length, Object[].class));
+	}
+
+	/**
+	 * Construct a {@link LuaTable} initialized with supplied array values.
+	 *
+	 * @param unnamedValues {@link Collection} containing the values to use in initialization
+	 * @return new {@link LuaTable} instance with sequential elements coming from the collection.
+	 */
+	public static LuaTable listOf(Collection<? extends LuaValue> unnamedValues) {
+		return LuaTable.ofValues(unnamedValues.toArray());
+	}
+
+	/**
+	 * Construct a {@link LuaTable} initialized with supplied numbers. These are stored without boxing.
+	 *
+	 * @param unnamedValues array of numbers containing the values to use in initialization
+	 * @return new {@link LuaTable} instance with sequential elements coming from the array.
+	 */
+	public static LuaTable listOf(double[] unnamedValues) {
+		return LuaTable.ofNumbers(unnamedValues.clone());
+	}
+
+	/**
+	 * Construct a {@link LuaTable} initialized with supplied numbers. These are stored without boxing.
+	 *
+	 * @param unnamedValues array of numbers containing the values to use in initialization
+	 * @return new {@link LuaTable} instance with sequential elements coming from the array.
+	 */
+	public static LuaTable listOf(int[] unnamedValues) {
+		double[] numbers = new double[unnamedValues.length];
+		for (int i = 0; i < numbers.length; i++) numbers[i] = unnamedValues[i];
+		return LuaTable.ofNumbers(numbers);
+	}
+
+	/**
+	 * Construct a {@link LuaTable} initialized with supplied numbers. These are stored without boxing, and so values
+	 * larger than 2^53 will lose precision.
+	 *
+	 * @param unnamedValues array of numbers containing the values to use in initialization
+	 * @return new {@link LuaTable} instance with sequential elements coming from the array.
+	 */
+	public static LuaTable listOf(long[] unnamedValues) {
+		double[] numbers = new double[unnamedValues.length];
+		for (int i = 0; i < numbers.length; i++) numbers[i] = unnamedValues[i];
+		return LuaTable.ofNumbers(numbers);
 	}
 
 	/**
@@ -153,6 +202,18 @@ public class ValueFactory {
 		return new LuaTable(namedValues, null, null);
 	}
 
+	/**
+	 * Construct a {@link LuaTable} initialized with the entries of a map.
+	 *
+	 * @param namedValues {@link Map} containing the keys and values to use in initialization
+	 * @return new {@link LuaTable} instance with the keys and values from the map.
+	 */
+	public static LuaTable tableOf(Map<? extends LuaValue, ? extends LuaValue> namedValues) {
+		LuaTable table = new LuaTable();
+		table.rawsetAll(namedValues);
+		return table;
+	}
+
 	/**
 	 * Construct a {@link LuaTable} initialized with supplied named values and sequential elements.
 	 * The named values will be assigned first, and the sequential elements will be assigned later,
@@ -122,14 +122,35 @@ public final class DebugFrame {
 	public LuaClosure closure;
 
 	/**
-	 * The stack for this info
+	 * The stack for this info. This is the thread's register stack, shared with other frames, so is not indexed from
+	 * 0: register {@code i} of this frame lives at {@code stack[base + i]}, and only the function's
+	 * {@code maxstacksize} registers from {@link #base} belong to it. This is {@code null} if the frame has no
+	 * registers. Prefer {@link #getRegister(int)} and {@link #setRegister(int, LuaValue)} outside the interpreter.
+	 *
+	 * @see DebugState#allocateStack(DebugFrame, int)
 	 */
 	public LuaValue[] stack;
 
 	/**
-	 * The {@link Upvalue} equivalent of {@link #stack}
+	 * The open upvalues which point into this frame's registers, ordered by descending stack index. This is
+	 * {@code null} until a closure captures one of this frame's locals, so returning from a frame which never did
+	 * requires no work.
+	 */
+	public Upvalue openUpvalues;
+
+	/**
+	 * The index of this frame's first register within {@link #stack}. This is only meaningful while {@link #stack} is
+	 * set.
 	 */
-	public Upvalue[] stackUpvalues;
+	public int base;
+
+	/**
+	 * The positions reached by generic for loops over {@code next}, indexed by the loop's first register. These are
+	 * only hints, so are not cleared when the frame is reused.
+	 *
+	 * @see LuaTable#next(LuaValue, int, LuaValue[], int)
+	 */
+	public int[] cursors;
 
 	public Object state;
 
@@ -153,19 +174,16 @@ public final class DebugFrame {
 	}
 
 	/**
-	 * Set this debug frame to hold some Lua closure
+	 * Set this debug frame to hold some Lua closure. The frame's registers should already have been allocated with
+	 * {@link DebugState#allocateStack(DebugFrame, int)}.
 	 *
-	 * @param closure       the function called
-	 * @param varargs       The arguments to this function
-	 * @param stack         The current lua stack
-	 * @param stackUpvalues The upvalues on this stack
+	 * @param closure the function called
+	 * @param varargs The arguments to this function
 	 */
-	public void setFunction(LuaClosure closure, Varargs varargs, LuaValue[] stack, Upvalue[] stackUpvalues) {
+	public void setClosure(LuaClosure closure, Varargs varargs) {
 		this.func = closure;
 		this.closure = closure;
 		this.varargs = varargs;
-		this.stack = stack;
-		this.stackUpvalues = stackUpvalues;
 	}
 
 	/**
@@ -183,14 +201,15 @@ public final class DebugFrame {
 	}
 
 	public void cleanup() {
-		LuaInterpreter.closeAll(stackUpvalues);
+		if (openUpvalues != null) LuaInterpreter.closeAll(this, base);
 	}
 
 	void clear() {
 		func = null;
 		closure = null;
 		stack = null;
-		stackUpvalues = null;
+		openUpvalues = null;
+		base = 0;
 		state = null;
 		varargs = extras = null;
 		flags = 0;
@@ -237,6 +256,37 @@ public final class DebugFrame {
 		return index > 0 && index <= closure.getPrototype().maxstacksize ? TEMPORARY : null;
 	}
 
+	/**
+	 * Get the value of one of this frame's registers.
+	 *
+	 * @param index The register to get, starting at 0.
+	 * @return The register's value.
+	 * @throws IndexOutOfBoundsException If this frame has no registers, or the index is outside them.
+	 * @see #stack
+	 */
+	public LuaValue getRegister(int index) {
+		return stack[registerIndex(index)];
+	}
+
+	/**
+	 * Set the value of one of this frame's registers.
+	 *
+	 * @param index The register to set, starting at 0.
+	 * @param value The register's new value.
+	 * @throws IndexOutOfBoundsException If this frame has no registers, or the index is outside them.
+	 * @see #stack
+	 */
+	public void setRegister(int index, LuaValue value) {
+		stack[registerIndex(index)] = value;
+	}
+
+	private int registerIndex(int index) {
+		if (stack == null || index < 0 || index >= closure.getPrototype().maxstacksize) {
+			throw new IndexOutOfBoundsException("Register " + index + " is out of bounds");
+		}
+		return base + index;
+	}
+
 	@SuppressWarnings("unchecked")
 	public Varargs resume(LuaState state, Varargs args) throws LuaError, UnwindThrowable {
 		if (func instanceof Resumable<?>) {
@@ -26,8 +26,15 @@ package org.squiddev.cobalt.debug;
 
 import org.squiddev.cobalt.LuaError;
 import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.LuaValue;
 import org.squiddev.cobalt.UnwindThrowable;
 import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.LuaInterpreter;
+
+import java.util.Arrays;
+
+import static org.squiddev.cobalt.Constants.NIL;
+import static org.squiddev.cobalt.Constants.NILS;
 
 import static org.squiddev.cobalt.debug.DebugFrame.*;
 
@@ -49,6 +56,25 @@ public final class DebugState {
 
 	private static final DebugFrame[] EMPTY = new DebugFrame[0];
 
+	/**
+	 * The minimum size of a segment of the register stack.
+	 */
+	private static final int MIN_REGISTERS = 256;
+
+	/**
+	 * The maximum size we will grow a segment of the register stack to, unless a single frame requires more.
+	 */
+	private static final int MAX_REGISTERS = 1 << 16;
+
+	/**
+	 * The number of spare registers allocated above each Lua frame. These hold the results of a call which do not fit
+	 * within the calling function's own registers, allowing them to be passed to another function without constructing
+	 * a {@link org.squiddev.cobalt.Varargs}.
+	 */
+	public static final int EXTRA_REGISTERS = 8;
+
+	private static final LuaValue[] NO_REGISTERS = new LuaValue[0];
+
 	/**
 	 * The thread's lua state
 	 */
@@ -73,6 +99,26 @@ public final class DebugState {
 	 */
 	private DebugFrame[] stack = EMPTY;
 
+	/**
+	 * The segment of the register stack which Lua frames are currently allocated from. Free registers are always
+	 * {@link org.squiddev.cobalt.Constants#NIL}.
+	 *
+	 * Rather than growing the segment (and so moving any registers which are in use), we start a new one once it is
+	 * full. Frames further down the stack continue to use the previous segment.
+	 */
+	private LuaValue[] registers = NO_REGISTERS;
+
+	/**
+	 * The first free slot in {@link #registers}.
+	 */
+	private int registerTop;
+
+	/**
+	 * An unused segment of the register stack, kept to avoid reallocating when calls repeatedly cross a segment
+	 * boundary.
+	 */
+	private LuaValue[] spareRegisters;
+
 	/**
 	 * The hook function to call
 	 */
@@ -144,15 +190,64 @@ public final class DebugState {
 	}
 
 	/**
-	 * Pop a debug info off the stack
+	 * Pop a debug info off the stack, releasing any registers it holds.
 	 */
 	public void popInfo() {
 		DebugFrame frame = stack[top--];
 		if ((frame.flags & (FLAG_JAVA | FLAG_FRESH)) != 0) javaCount--;
 		assert javaCount >= 0;
+		if (frame.stack != null) releaseStack(frame);
 		frame.clear();
 	}
 
+	/**
+	 * Allocate registers for a Lua function. This sets the frame's {@link DebugFrame#stack} and
+	 * {@link DebugFrame#base}. All allocated registers will be nil.
+	 *
+	 * A further {@link #EXTRA_REGISTERS} are reserved after the requested registers.
+	 *
+	 * Registers are released when the frame is popped with {@link #popInfo()}.
+	 *
+	 * @param frame The frame to allocate registers for. This should be the top frame.
+	 * @param size  The number of registers to allocate.
+	 */
+	public void allocateStack(DebugFrame frame, int size) {
+		size += EXTRA_REGISTERS;
+		int base = registerTop;
+		if (base + size > registers.length) {
+			LuaValue[] next = spareRegisters;
+			if (next == null || next.length < size) {
+				int length = Math.max(size, Math.min(MAX_REGISTERS, Math.max(MIN_REGISTERS, registers.length * 2)));
+				next = new LuaValue[length];
+				Arrays.fill(next, NIL);
+			}
+
+			registers = next;
+			spareRegisters = null;
+			base = 0;
+		}
+
+		frame.stack = registers;
+		frame.base = base;
+		registerTop = base + size;
+	}
+
+	private void releaseStack(DebugFrame frame) {
+		LuaValue[] stack = frame.stack;
+		int base = frame.base;
+		int size = frame.closure.getPrototype().maxstacksize;
+
+		if (frame.openUpvalues != null) LuaInterpreter.closeAll(frame, base);
+		System.arraycopy(NILS, 0, stack, base, size);
+		System.arraycopy(NILS, 0, stack, base + size, EXTRA_REGISTERS);
+
+		if (stack != registers) {
+			spareRegisters = registers;
+			registers = stack;
+		}
+		registerTop = base;
+	}
+
 	/**
 	 * Setup the hook
 	 *
@@ -0,0 +1,348 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.debug;
+
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LuaClosure;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static org.squiddev.cobalt.Lua.*;
+
+/**
+ * A {@link DebugHandler} which records the types observed by individual instructions, to determine which sites may
+ * benefit from specialisation.
+ *
+ * For each {@link Prototype} and instruction, this records:
+ * <ul>
+ *   <li>The operand types of arithmetic, comparison, length and concatenation instructions.</li>
+ *   <li>The receiver and key types of {@link Lua#OP_GETTABLE}, {@link Lua#OP_SELF} and {@link Lua#OP_SETTABLE}, and
+ *   how often a lookup found a value without needing a metamethod.</li>
+ *   <li>The distinct functions called by {@link Lua#OP_CALL} and {@link Lua#OP_TAILCALL}.</li>
+ * </ul>
+ *
+ * Profiling is enabled by passing a profiler to {@link LuaState.Builder#debug(DebugHandler)}, and so has no cost
+ * otherwise. As with any custom debug handler, compiled functions are not used while profiling. A profiler should
+ * only be used with a single {@link LuaState}.
+ *
+ * @see org.squiddev.cobalt.Print#printCode(java.io.PrintStream, Prototype, TypeProfiler)
+ */
+public class TypeProfiler extends DebugHandler {
+	/**
+	 * The bit used in type masks for integers. Other values use {@code 1 << value.type()}.
+	 *
+	 * @see #typeMask(LuaValue)
+	 */
+	public static final int INTEGER = 1 << Constants.TVALUE;
+
+	/**
+	 * The maximum number of call targets tracked by a site. Sites calling more functions than this are considered
+	 * megamorphic.
+	 */
+	public static final int MAX_TARGETS = 4;
+
+	private final Map<Prototype, FunctionProfile> profiles = new WeakHashMap<>();
+	private Prototype lastPrototype;
+	private FunctionProfile lastProfile;
+
+	@Override
+	public void onInstruction(DebugState ds, DebugFrame di, int pc) throws LuaError, UnwindThrowable {
+		LuaClosure closure = di.closure;
+		if (closure != null) record(closure.getPrototype(), di.stack, di.base, pc);
+		super.onInstruction(ds, di, pc);
+	}
+
+	/**
+	 * Get the profile for a function.
+	 *
+	 * @param prototype The function's prototype.
+	 * @return This function's profile, or {@code null} if it has not been executed.
+	 */
+	public FunctionProfile getProfile(Prototype prototype) {
+		return profiles.get(prototype);
+	}
+
+	/**
+	 * Discard all recorded profiles.
+	 */
+	public void reset() {
+		profiles.clear();
+		lastPrototype = null;
+		lastProfile = null;
+	}
+
+	private void record(Prototype p, LuaValue[] stack, int base, int pc) {
+		FunctionProfile profile;
+		if (p == lastPrototype) {
+			profile = lastProfile;
+		} else {
+			profile = profiles.computeIfAbsent(p, FunctionProfile::new);
+			lastPrototype = p;
+			lastProfile = profile;
+		}
+
+		int i = p.code[pc];
+		int op = GET_OPCODE(i);
+		switch (op) {
+			case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW:
+			case OP_EQ: case OP_LT: case OP_LE:
+				profile.site(pc, op).record(rk(p, stack, base, GETARG_B(i)), rk(p, stack, base, GETARG_C(i)));
+				break;
+			case OP_UNM: case OP_LEN:
+				profile.site(pc, op).record(stack[base + GETARG_B(i)], null);
+				break;
+			case OP_CONCAT:
+				profile.site(pc, op).record(stack[base + GETARG_B(i)], stack[base + GETARG_C(i)]);
+				break;
+			case OP_GETTABLE: case OP_SELF: {
+				LuaValue table = stack[base + GETARG_B(i)], key = rk(p, stack, base, GETARG_C(i));
+				Site site = profile.site(pc, op);
+				site.record(table, key);
+				if (table instanceof LuaTable && !key.isNil() && !((LuaTable) table).rawget(key).isNil()) {
+					site.hits++;
+				} else {
+					site.misses++;
+				}
+				break;
+			}
+			case OP_SETTABLE:
+				profile.site(pc, op).record(stack[base + GETARG_A(i)], rk(p, stack, base, GETARG_B(i)));
+				break;
+			case OP_CALL: case OP_TAILCALL: {
+				LuaValue function = stack[base + GETARG_A(i)];
+				Site site = profile.site(pc, op);
+				site.record(function, null);
+				site.recordTarget(function instanceof LuaClosure ? ((LuaClosure) function).getPrototype() : function);
+				break;
+			}
+		}
+	}
+
+	private static LuaValue rk(Prototype p, LuaValue[] stack, int base, int x) {
+		return ISK(x) ? p.k[INDEXK(x)] : stack[base + x];
+	}
+
+	/**
+	 * Get the bit representing this value's type.
+	 *
+	 * @param value The value to get the type of.
+	 * @return {@link #INTEGER} for integers, otherwise {@code 1 << value.type()}.
+	 */
+	public static int typeMask(LuaValue value) {
+		return value instanceof LuaInteger ? INTEGER : 1 << value.type();
+	}
+
+	/**
+	 * Get a human-readable description of a type mask.
+	 *
+	 * @param mask The mask to describe.
+	 * @return The names of the types in this mask, separated by {@code |}.
+	 */
+	public static String typeNames(int mask) {
+		if (mask == 0) return "none";
+
+		StringBuilder builder = new StringBuilder();
+		if ((mask & INTEGER) != 0) builder.append("integer");
+		for (int type = 0; type < Constants.TVALUE; type++) {
+			if ((mask & (1 << type)) == 0) continue;
+			if (builder.length() > 0) builder.append('|');
+			builder.append(type == Constants.TNUMBER ? "double" : Constants.TYPE_NAMES[type]);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * The profile for a single function, holding a {@link Site} for each profiled instruction.
+	 */
+	public static final class FunctionProfile {
+		private final Prototype prototype;
+		private final Site[] sites;
+
+		FunctionProfile(Prototype prototype) {
+			this.prototype = prototype;
+			this.sites = new Site[prototype.code.length];
+		}
+
+		public Prototype getPrototype() {
+			return prototype;
+		}
+
+		/**
+		 * Get the profile for an instruction.
+		 *
+		 * @param pc The index of this instruction.
+		 * @return This instruction's profile, or {@code null} if it is not profiled or has not been executed.
+		 */
+		public Site getSite(int pc) {
+			return pc >= 0 && pc < sites.length ? sites[pc] : null;
+		}
+
+		Site site(int pc, int opcode) {
+			Site site = sites[pc];
+			return site != null ? site : (sites[pc] = new Site(opcode));
+		}
+	}
+
+	/**
+	 * The types and targets observed by a single instruction.
+	 *
+	 * The meaning of each operand depends on the instruction: for binary operators they are the left and right
+	 * operands, for table accesses the table and key, and for calls the first operand is the called value.
+	 */
+	public static final class Site {
+		private final int opcode;
+		private long count;
+		private int left;
+		private int right;
+		private long hits;
+		private long misses;
+		private final Object[] targets = new Object[MAX_TARGETS];
+		private int targetCount;
+
+		Site(int opcode) {
+			this.opcode = opcode;
+		}
+
+		void record(LuaValue left, LuaValue right) {
+			count++;
+			this.left |= typeMask(left);
+			if (right != null) this.right |= typeMask(right);
+		}
+
+		void recordTarget(Object target) {
+			int count = targetCount;
+			if (count > MAX_TARGETS) return;
+			for (int i = 0; i < count; i++) {
+				if (targets[i] == target) return;
+			}
+
+			if (count < MAX_TARGETS) targets[count] = target;
+			targetCount = count + 1;
+		}
+
+		/**
+		 * Get the opcode of this instruction.
+		 *
+		 * @return This instruction's opcode.
+		 * @see Lua#GET_OPCODE(int)
+		 */
+		public int getOpcode() {
+			return opcode;
+		}
+
+		/**
+		 * Get the number of times this instruction was executed.
+		 *
+		 * @return The execution count.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get the types observed for an operand.
+		 *
+		 * @param operand The operand, either 0 or 1.
+		 * @return The observed types, as a mask of {@link #typeMask(LuaValue)}.
+		 * @see #typeNames(int)
+		 */
+		public int getTypes(int operand) {
+			switch (operand) {
+				case 0:
+					return left;
+				case 1:
+					return right;
+				default:
+					throw new IllegalArgumentException("Invalid operand " + operand);
+			}
+		}
+
+		/**
+		 * Get the number of table lookups which found a value without using a metamethod.
+		 *
+		 * @return The number of hits.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * Get the number of table lookups which found no value, or were not performed on a table.
+		 *
+		 * @return The number of misses.
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * Get the number of distinct functions called by this instruction. Lua functions are considered the same if
+		 * they share a {@link Prototype}.
+		 *
+		 * @return The number of call targets, or {@code MAX_TARGETS + 1} if this site is megamorphic.
+		 */
+		public int getTargetCount() {
+			return targetCount;
+		}
+
+		public boolean isMonomorphic() {
+			return targetCount == 1;
+		}
+
+		public boolean isMegamorphic() {
+			return targetCount > MAX_TARGETS;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder().append("count=").append(count);
+			switch (opcode) {
+				case OP_GETTABLE: case OP_SELF:
+					builder.append(" table=").append(typeNames(left)).append(" key=").append(typeNames(right));
+					builder.append(" hits=").append(hits).append(" misses=").append(misses);
+					break;
+				case OP_SETTABLE:
+					builder.append(" table=").append(typeNames(left)).append(" key=").append(typeNames(right));
+					break;
+				case OP_CALL: case OP_TAILCALL:
+					builder.append(" function=").append(typeNames(left)).append(" targets=");
+					if (isMegamorphic()) {
+						builder.append("megamorphic");
+					} else {
+						builder.append(targetCount);
+					}
+					break;
+				case OP_UNM: case OP_LEN:
+					builder.append(" operand=").append(typeNames(left));
+					break;
+				default:
+					builder.append(" left=").append(typeNames(left)).append(" right=").append(typeNames(right));
+					break;
+			}
+			return builder.toString();
+		}
+	}
+}
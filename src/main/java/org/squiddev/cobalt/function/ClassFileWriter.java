@@ -0,0 +1,386 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, providing just enough functionality for the {@link FunctionCompiler}.
+ *
+ * We emit version 49 class files, which means the JVM will verify them using type inference and so we do not need to
+ * compute stack map frames.
+ */
+final class ClassFileWriter {
+	private static final int VERSION = 49;
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	static final int ACONST_NULL = 0x01;
+	static final int ICONST_0 = 0x03;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC_W = 0x13;
+	static final int ILOAD = 0x15;
+	static final int ALOAD = 0x19;
+	static final int AALOAD = 0x32;
+	static final int ISTORE = 0x36;
+	static final int ASTORE = 0x3a;
+	static final int AASTORE = 0x53;
+	static final int POP = 0x57;
+	static final int DUP = 0x59;
+	static final int IADD = 0x60;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int GOTO = 0xa7;
+	static final int TABLESWITCH = 0xaa;
+	static final int RETURN = 0xb1;
+	static final int GETSTATIC = 0xb2;
+	static final int GETFIELD = 0xb4;
+	static final int PUTFIELD = 0xb5;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int NEW = 0xbb;
+	static final int ATHROW = 0xbf;
+	static final int CHECKCAST = 0xc0;
+	static final int INSTANCEOF = 0xc1;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	private final ByteBuffer pool = new ByteBuffer();
+	private final Map<String, Integer> poolEntries = new HashMap<>();
+	private int poolSize = 1;
+
+	private final String name;
+	private final String superName;
+	private final List<MethodWriter> methods = new ArrayList<>();
+
+	ClassFileWriter(String name, String superName) {
+		this.name = name;
+		this.superName = superName;
+	}
+
+	MethodWriter method(int access, String name, String descriptor, int maxStack, int maxLocals) {
+		MethodWriter method = new MethodWriter(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+		methods.add(method);
+		return method;
+	}
+
+	byte[] toByteArray() {
+		int thisClass = classRef(name);
+		int superClass = classRef(superName);
+		int code = utf8("Code");
+
+		ByteBuffer out = new ByteBuffer();
+		out.u4(0xCAFEBABE);
+		out.u2(0);
+		out.u2(VERSION);
+		out.u2(poolSize);
+		out.bytes(pool);
+		out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.u2(thisClass);
+		out.u2(superClass);
+		out.u2(0); // Interfaces
+		out.u2(0); // Fields
+
+		out.u2(methods.size());
+		for (MethodWriter method : methods) {
+			method.resolve();
+
+			out.u2(method.access);
+			out.u2(method.name);
+			out.u2(method.descriptor);
+			out.u2(1); // Attributes
+
+			out.u2(code);
+			out.u4(12 + method.code.size);
+			out.u2(method.maxStack);
+			out.u2(method.maxLocals);
+			out.u4(method.code.size);
+			out.bytes(method.code);
+			out.u2(0); // Exception table
+			out.u2(0); // Attributes
+		}
+
+		out.u2(0); // Attributes
+
+		return Arrays.copyOf(out.data, out.size);
+	}
+
+	//region Constant pool
+	private int utf8(String value) {
+		Integer existing = poolEntries.get("U" + value);
+		if (existing != null) return existing;
+
+		pool.u1(CONSTANT_UTF8);
+		pool.u2(value.length());
+		for (int i = 0; i < value.length(); i++) pool.u1(value.charAt(i));
+		return add("U" + value);
+	}
+
+	int integer(int value) {
+		Integer existing = poolEntries.get("I" + value);
+		if (existing != null) return existing;
+
+		pool.u1(CONSTANT_INTEGER);
+		pool.u4(value);
+		return add("I" + value);
+	}
+
+	int classRef(String name) {
+		Integer existing = poolEntries.get("C" + name);
+		if (existing != null) return existing;
+
+		int nameIndex = utf8(name);
+		pool.u1(CONSTANT_CLASS);
+		pool.u2(nameIndex);
+		return add("C" + name);
+	}
+
+	private int nameAndType(String name, String descriptor) {
+		String key = "N" + name + ":" + descriptor;
+		Integer existing = poolEntries.get(key);
+		if (existing != null) return existing;
+
+		int nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+		pool.u1(CONSTANT_NAME_AND_TYPE);
+		pool.u2(nameIndex);
+		pool.u2(descriptorIndex);
+		return add(key);
+	}
+
+	int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_FIELDREF, "F", owner, name, descriptor);
+	}
+
+	int methodRef(String owner, String name, String descriptor) {
+		return memberRef(CONSTANT_METHODREF, "M", owner, name, descriptor);
+	}
+
+	private int memberRef(int tag, String prefix, String owner, String name, String descriptor) {
+		String key = prefix + owner + "." + name + ":" + descriptor;
+		Integer existing = poolEntries.get(key);
+		if (existing != null) return existing;
+
+		int ownerIndex = classRef(owner), typeIndex = nameAndType(name, descriptor);
+		pool.u1(tag);
+		pool.u2(ownerIndex);
+		pool.u2(typeIndex);
+		return add(key);
+	}
+
+	private int add(String key) {
+		if (poolSize >= 0xFFFF) throw new IllegalStateException("Constant pool too large");
+		int index = poolSize++;
+		poolEntries.put(key, index);
+		return index;
+	}
+	//endregion
+
+	/**
+	 * A position within a method's code, which may be jumped to.
+	 */
+	static final class Label {
+		int position = -1;
+	}
+
+	final class MethodWriter {
+		private final int access;
+		private final int name;
+		private final int descriptor;
+		private final int maxStack;
+		private final int maxLocals;
+
+		private final ByteBuffer code = new ByteBuffer();
+		private final List<Jump> jumps = new ArrayList<>();
+
+		private MethodWriter(int access, int name, int descriptor, int maxStack, int maxLocals) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		int size() {
+			return code.size;
+		}
+
+		void insn(int opcode) {
+			code.u1(opcode);
+		}
+
+		void varInsn(int opcode, int slot) {
+			code.u1(opcode);
+			code.u1(slot);
+		}
+
+		void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				code.u1(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				code.u1(BIPUSH);
+				code.u1(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				code.u1(SIPUSH);
+				code.u2(value);
+			} else {
+				code.u1(LDC_W);
+				code.u2(integer(value));
+			}
+		}
+
+		void typeInsn(int opcode, String type) {
+			code.u1(opcode);
+			code.u2(classRef(type));
+		}
+
+		void fieldInsn(int opcode, String owner, String name, String descriptor) {
+			code.u1(opcode);
+			code.u2(fieldRef(owner, name, descriptor));
+		}
+
+		void methodInsn(int opcode, String owner, String name, String descriptor) {
+			code.u1(opcode);
+			code.u2(methodRef(owner, name, descriptor));
+		}
+
+		void jump(int opcode, Label label) {
+			int position = code.size;
+			code.u1(opcode);
+			jumps.add(new Jump(position, code.size, label, false));
+			code.u2(0);
+		}
+
+		void tableSwitch(Label fallback, Label[] labels) {
+			int position = code.size;
+			code.u1(TABLESWITCH);
+			while ((code.size & 3) != 0) code.u1(0);
+
+			jumps.add(new Jump(position, code.size, fallback, true));
+			code.u4(0);
+			code.u4(0);
+			code.u4(labels.length - 1);
+			for (Label label : labels) {
+				jumps.add(new Jump(position, code.size, label, true));
+				code.u4(0);
+			}
+		}
+
+		void mark(Label label) {
+			label.position = code.size;
+		}
+
+		private void resolve() {
+			if (code.size > 0xFFFF) throw new IllegalStateException("Method too large");
+
+			for (Jump jump : jumps) {
+				if (jump.label.position < 0) throw new IllegalStateException("Unmarked label");
+
+				int offset = jump.label.position - jump.position;
+				if (jump.wide) {
+					code.set4(jump.patch, offset);
+				} else {
+					if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+						throw new IllegalStateException("Jump offset too large");
+					}
+					code.set2(jump.patch, offset);
+				}
+			}
+			jumps.clear();
+		}
+	}
+
+	private static final class Jump {
+		final int position;
+		final int patch;
+		final Label label;
+		final boolean wide;
+
+		Jump(int position, int patch, Label label, boolean wide) {
+			this.position = position;
+			this.patch = patch;
+			this.label = label;
+			this.wide = wide;
+		}
+	}
+
+	private static final class ByteBuffer {
+		byte[] data = new byte[256];
+		int size;
+
+		private void ensure(int extra) {
+			if (size + extra > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+		}
+
+		void u1(int value) {
+			ensure(1);
+			data[size++] = (byte) value;
+		}
+
+		void u2(int value) {
+			ensure(2);
+			data[size++] = (byte) (value >> 8);
+			data[size++] = (byte) value;
+		}
+
+		void u4(int value) {
+			ensure(4);
+			data[size++] = (byte) (value >> 24);
+			data[size++] = (byte) (value >> 16);
+			data[size++] = (byte) (value >> 8);
+			data[size++] = (byte) value;
+		}
+
+		void bytes(ByteBuffer other) {
+			ensure(other.size);
+			System.arraycopy(other.data, 0, data, size, other.size);
+			size += other.size;
+		}
+
+		void set2(int position, int value) {
+			data[position] = (byte) (value >> 8);
+			data[position + 1] = (byte) value;
+		}
+
+		void set4(int position, int value) {
+			data[position] = (byte) (value >> 24);
+			data[position + 1] = (byte) (value >> 16);
+			data[position + 2] = (byte) (value >> 8);
+			data[position + 3] = (byte) value;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.debug.DebugHandler;
+import org.squiddev.cobalt.debug.DebugState;
+
+import static org.squiddev.cobalt.Constants.*;
+import static org.squiddev.cobalt.Lua.*;
+import static org.squiddev.cobalt.LuaDouble.valueOf;
+
+/**
+ * The base class for {@link Prototype}s which have been compiled to JVM bytecode by the {@link FunctionCompiler}.
+ *
+ * Compiled functions share their {@link DebugFrame} with the {@link LuaInterpreter}: registers are stored in
+ * {@link DebugFrame#stack} and {@link DebugFrame#pc} is updated before any instruction which may error or yield. This
+ * means control can be handed back to the interpreter at any instruction boundary. We do so when calling or returning
+ * to another Lua function, when a debug hook is enabled, and when resuming after a yield.
+ *
+ * The static methods on this class provide runtime support for the generated code, and should not be used elsewhere.
+ */
+public abstract class CompiledFunction {
+	protected CompiledFunction() {
+	}
+
+	/**
+	 * Execute a function, starting from the frame's current {@link DebugFrame#pc}.
+	 *
+	 * This continues until we reach an instruction which must be handled by the interpreter, at which point
+	 * {@link DebugFrame#pc} will point to the next instruction to execute.
+	 *
+	 * @param state    The current Lua state.
+	 * @param ds       The current thread's debug state.
+	 * @param di       The frame for this function.
+	 * @param function The function being executed.
+	 * @throws LuaError        On a runtime error.
+	 * @throws UnwindThrowable If this function yielded.
+	 */
+	public abstract void execute(LuaState state, DebugState ds, DebugFrame di, LuaInterpretedFunction function) throws LuaError, UnwindThrowable;
+
+	/**
+	 * Determine whether compiled code can be executed. We cannot run with custom debug handlers, or with line or count
+	 * hooks, as compiled code does not call {@link DebugHandler#onInstruction(DebugState, DebugFrame, int)}.
+	 *
+	 * @param state The current Lua state.
+	 * @param ds    The current thread's debug state.
+	 * @return Whether compiled code can be executed.
+	 */
+	static boolean canExecute(LuaState state, DebugState ds) {
+		return state.debug == DebugHandler.INSTANCE && !isHooked(ds);
+	}
+
+	protected static boolean isHooked(DebugState ds) {
+		return ds.hookline || ds.hookcount > 0;
+	}
+
+	protected static RuntimeException invalidPc(int pc) {
+		return new IllegalStateException("Cannot execute compiled code from pc=" + pc);
+	}
+
+	protected static LuaValue getGlobal(LuaState state, LuaInterpretedFunction function, LuaValue key) throws LuaError, UnwindThrowable {
+		return OperationHelper.getTable(state, function.env, key);
+	}
+
+	protected static void setGlobal(LuaState state, LuaInterpretedFunction function, LuaValue key, LuaValue value) throws LuaError, UnwindThrowable {
+		OperationHelper.setTable(state, function.env, key, value);
+	}
+
+	protected static LuaTable newTable(LuaInterpretedFunction function, int pc, int narray, int nhash) {
+		return LuaInterpreter.newTable(function.p, pc, narray, nhash);
+	}
+
+	protected static LuaValue not(LuaValue value) {
+		return value.toBoolean() ? FALSE : TRUE;
+	}
+
+	protected static void concat(LuaState state, DebugFrame di, LuaValue[] stack, int a, int b, int c) throws LuaError, UnwindThrowable {
+		int base = di.base;
+		di.top = c + 1;
+		LuaInterpreter.concat(state, di, stack, base, di.top, c - b + 1);
+		stack[base + a] = stack[base + b];
+		di.top = b;
+	}
+
+	/**
+	 * Call a non-Lua function.
+	 *
+	 * @param state The current Lua state.
+	 * @param di    The current frame.
+	 * @param stack The current stack.
+	 * @param a     The function's register.
+	 * @param b     The number of arguments + 1, or 0 if the arguments extend to the top of the stack.
+	 * @param c     The number of results + 1, or 0 if the results should be stored in {@link DebugFrame#extras}.
+	 * @return {@code false} if this is a Lua function, and so must be called by the interpreter instead.
+	 * @throws LuaError        On a runtime error.
+	 * @throws UnwindThrowable If the function yielded.
+	 */
+	protected static boolean call(LuaState state, DebugFrame di, LuaValue[] stack, int a, int b, int c) throws LuaError, UnwindThrowable {
+		int base = di.base;
+		LuaValue val = stack[base + a];
+		if (val instanceof LuaInterpretedFunction) return false;
+
+		if (c == 1 || c == 2) {
+			LuaValue result;
+			switch (b) {
+				case 1:
+					result = OperationHelper.call(state, val, a);
+					break;
+				case 2:
+					result = OperationHelper.call(state, val, stack[base + a + 1], a);
+					break;
+				case 3:
+					result = OperationHelper.call(state, val, stack[base + a + 1], stack[base + a + 2], a);
+					break;
+				case 4:
+					result = OperationHelper.call(state, val, stack[base + a + 1], stack[base + a + 2], stack[base + a + 3], a);
+					break;
+				default:
+					result = null;
+					break;
+			}
+
+			if (result != null) {
+				if (c == 2) stack[base + a] = result;
+				return true;
+			}
+		}
+
+		Varargs args = b > 0 ?
+			ValueFactory.varargsOf(stack, base + a + 1, b - 1) : // exact arg count
+			ValueFactory.varargsOf(stack, base + a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
+		Varargs v = OperationHelper.invoke(state, val, args.asImmutable(), a);
+		if (c > 0) {
+			while (--c > 0) stack[base + a + c - 1] = v.arg(c);
+		} else {
+			di.top = a + v.count();
+			di.extras = v;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Execute a numeric for loop's step.
+	 *
+	 * @param stack The current stack.
+	 * @param a     The index of the loop's first register within the stack, including the frame's base.
+	 * @return Whether the loop should continue.
+	 * @throws LuaError If the loop variables are not numbers.
+	 */
+	protected static boolean forLoop(LuaValue[] stack, int a) throws LuaError {
+		LuaValue value = stack[a], limit = stack[a + 1], step = stack[a + 2];
+		if (value instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+			int iStep = ((LuaInteger) step).v, iLimit = ((LuaInteger) limit).v;
+			long idx = (long) ((LuaInteger) value).v + iStep;
+			if (0 < iStep ? idx <= iLimit : iLimit <= idx) {
+				stack[a + 3] = stack[a] = LuaInteger.valueOf((int) idx);
+				return true;
+			}
+
+			return false;
+		}
+
+		double dLimit = limit.checkDouble();
+		double dStep = step.checkDouble();
+		double idx = dStep + value.checkDouble();
+		if (0 < dStep ? idx <= dLimit : dLimit <= idx) {
+			stack[a + 3] = stack[a] = valueOf(idx);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Prepare a numeric for loop.
+	 *
+	 * @param stack The current stack.
+	 * @param a     The index of the loop's first register within the stack, including the frame's base.
+	 * @throws LuaError If the loop variables are not numbers.
+	 * @see LuaInterpreter#forPrep(LuaValue[], int)
+	 */
+	protected static void forPrep(LuaValue[] stack, int a) throws LuaError {
+		LuaInterpreter.forPrep(stack, a);
+	}
+
+	protected static boolean tforLoop(LuaState state, DebugFrame di, LuaValue[] stack, int a, int c) throws LuaError, UnwindThrowable {
+		int base = di.base;
+		int result = LuaInterpreter.tforLoop(di, stack, base, a, c);
+		if (result != LuaInterpreter.TFOR_CALL) return result == LuaInterpreter.TFOR_CONTINUE;
+
+		Varargs v = di.extras = OperationHelper.invoke(state, stack[base + a], ValueFactory.varargsOf(stack[base + a + 1], stack[base + a + 2]), a);
+		LuaValue val = v.first();
+		if (val.isNil()) return false;
+
+		stack[base + a + 2] = stack[base + a + 3] = val;
+		for (; c > 1; --c) stack[base + a + 2 + c] = v.arg(c);
+		di.extras = NONE;
+		return true;
+	}
+
+	protected static void setList(DebugFrame di, LuaValue[] stack, int a, int b, int c) throws LuaError {
+		int base = di.base;
+		int offset = (c - 1) * LFIELDS_PER_FLUSH;
+		LuaTable tbl = stack[base + a].checkTable();
+		if (b == 0) {
+			b = di.top - a - 1;
+			int m = b - di.extras.count();
+			int j = 1;
+			for (; j <= m; j++) tbl.rawset(offset + j, stack[base + a + j]);
+			for (; j <= b; j++) tbl.rawset(offset + j, di.extras.arg(j - m));
+		} else {
+			tbl.presize(offset + b);
+			for (int j = 1; j <= b; j++) tbl.rawset(offset + j, stack[base + a + j]);
+		}
+	}
+
+	protected static void close(DebugFrame di, int a) {
+		if (di.openUpvalues != null) LuaInterpreter.closeAll(di, di.base + a);
+	}
+
+	protected static void closure(LuaInterpretedFunction function, DebugFrame di, LuaValue[] stack, int a, int index, int pc) {
+		int[] code = function.p.code;
+		Upvalue[] upvalues = function.upvalues;
+		int base = di.base;
+
+		Prototype newp = function.p.p[index];
+		LuaInterpretedFunction newcl = new LuaInterpretedFunction(newp, function.env);
+		for (int j = 0, nup = newp.nups; j < nup; ++j) {
+			int i = code[pc++];
+			int b = (i >>> POS_B) & MAXARG_B;
+			newcl.upvalues[j] = (i & 4) != 0
+				? upvalues[b] // OP_GETUPVAL
+				: LuaInterpreter.findUpvalue(di, stack, base + b); // OP_MOVE
+		}
+		stack[base + a] = newcl;
+	}
+
+	protected static void vararg(DebugFrame di, LuaValue[] stack, Varargs varargs, int a, int b) {
+		if (b == 0) {
+			di.top = a + varargs.count();
+			di.extras = varargs;
+		} else {
+			int base = di.base;
+			for (int j = 1; j < b; ++j) stack[base + a + j - 1] = varargs.arg(j);
+		}
+	}
+}
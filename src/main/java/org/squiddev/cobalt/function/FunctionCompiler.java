@@ -0,0 +1,619 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.function.ClassFileWriter.Label;
+import org.squiddev.cobalt.function.ClassFileWriter.MethodWriter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.squiddev.cobalt.Lua.*;
+import static org.squiddev.cobalt.function.ClassFileWriter.*;
+
+/**
+ * Compiles a {@link Prototype} into a subclass of {@link CompiledFunction}.
+ *
+ * Each instruction is translated into a straight-line sequence of JVM bytecode, calling into {@link OperationHelper}
+ * or {@link CompiledFunction} to do the actual work. This removes the interpreter's dispatch overhead, and allows
+ * HotSpot to specialise each function individually.
+ *
+ * Registers are stored in the frame's stack rather than JVM locals, meaning the interpreter can take over execution at
+ * any instruction. Calls to Lua functions, returns and tail calls are always handled by the interpreter.
+ *
+ * @see CompiledFunction
+ */
+final class FunctionCompiler {
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private static final String STATE = "org/squiddev/cobalt/LuaState";
+	private static final String VALUE = "org/squiddev/cobalt/LuaValue";
+	private static final String TABLE = "org/squiddev/cobalt/LuaTable";
+	private static final String VARARGS = "org/squiddev/cobalt/Varargs";
+	private static final String PROTOTYPE = "org/squiddev/cobalt/Prototype";
+	private static final String CONSTANTS = "org/squiddev/cobalt/Constants";
+	private static final String OPERATION = "org/squiddev/cobalt/OperationHelper";
+	private static final String DEBUG_STATE = "org/squiddev/cobalt/debug/DebugState";
+	private static final String DEBUG_FRAME = "org/squiddev/cobalt/debug/DebugFrame";
+	private static final String FUNCTION = "org/squiddev/cobalt/function/LuaInterpretedFunction";
+	private static final String UPVALUE = "org/squiddev/cobalt/function/Upvalue";
+	private static final String COMPILED = "org/squiddev/cobalt/function/CompiledFunction";
+
+	private static final String D_STATE = "L" + STATE + ";";
+	private static final String D_VALUE = "L" + VALUE + ";";
+	private static final String D_DEBUG_STATE = "L" + DEBUG_STATE + ";";
+	private static final String D_DEBUG_FRAME = "L" + DEBUG_FRAME + ";";
+	private static final String D_FUNCTION = "L" + FUNCTION + ";";
+	private static final String D_STACK = "[" + D_VALUE;
+
+	private static final String EXECUTE_DESC = "(" + D_STATE + D_DEBUG_STATE + D_DEBUG_FRAME + D_FUNCTION + ")V";
+	private static final String ARITH_DESC = "(" + D_STATE + D_VALUE + D_VALUE + "II)" + D_VALUE;
+	private static final String COMPARE_DESC = "(" + D_STATE + D_VALUE + D_VALUE + ")Z";
+
+	private static final String[] ARITH_NAMES = {"add", "sub", "mul", "div", "mod", "pow"};
+
+	private static final int SLOT_STATE = 1;
+	private static final int SLOT_DS = 2;
+	private static final int SLOT_DI = 3;
+	private static final int SLOT_FUNCTION = 4;
+	private static final int SLOT_STACK = 5;
+	private static final int SLOT_K = 6;
+	private static final int SLOT_UPVALUES = 7;
+	private static final int SLOT_VARARGS = 8;
+	private static final int SLOT_BASE = 9;
+
+	private final Prototype p;
+	private final MethodWriter mw;
+	private final Label[] labels;
+	private final Label invalid = new Label();
+
+	private FunctionCompiler(Prototype p, MethodWriter mw) {
+		this.p = p;
+		this.mw = mw;
+		this.labels = new Label[p.code.length];
+	}
+
+	/**
+	 * Compile a prototype.
+	 *
+	 * @param p The prototype to compile.
+	 * @return The compiled function, or {@code null} if this prototype could not be compiled.
+	 */
+	static CompiledFunction compile(Prototype p) {
+		boolean[] data = findData(p);
+		if (data == null) return null;
+
+		String name = "org/squiddev/cobalt/function/compiled/Function" + counter.getAndIncrement();
+		try {
+			ClassFileWriter writer = new ClassFileWriter(name, COMPILED);
+
+			MethodWriter init = writer.method(ACC_PUBLIC, "<init>", "()V", 1, 1);
+			init.varInsn(ALOAD, 0);
+			init.methodInsn(INVOKESPECIAL, COMPILED, "<init>", "()V");
+			init.insn(RETURN);
+
+			MethodWriter execute = writer.method(ACC_PUBLIC, "execute", EXECUTE_DESC, 16, 10);
+			new FunctionCompiler(p, execute).write(data);
+
+			byte[] bytes = writer.toByteArray();
+			Class<?> klass = new Loader().define(name.replace('/', '.'), bytes);
+			return (CompiledFunction) klass.getConstructor().newInstance();
+		} catch (IllegalStateException | ReflectiveOperationException | LinkageError e) {
+			// The function is too large or failed to verify. Just fall back to the interpreter.
+			return null;
+		}
+	}
+
+	/**
+	 * Validate a prototype's bytecode, and find which words are operands for the previous instruction rather than
+	 * instructions themselves.
+	 *
+	 * @param p The prototype to check.
+	 * @return Which words in {@link Prototype#code} are data, or {@code null} if this function cannot be compiled.
+	 */
+	private static boolean[] findData(Prototype p) {
+		int[] code = p.code;
+		int n = code.length;
+		if (n == 0) return null;
+
+		boolean[] data = new boolean[n];
+		for (int pc = 0; pc < n; pc++) {
+			if (data[pc]) continue;
+
+			int i = code[pc];
+			switch (GET_OPCODE(i)) {
+				case OP_LOADBOOL:
+					if (GETARG_C(i) != 0 && pc + 2 >= n) return null;
+					break;
+				case OP_JMP:
+				case OP_FORLOOP:
+				case OP_FORPREP: {
+					int target = pc + 1 + GETARG_sBx(i);
+					if (target < 0 || target >= n) return null;
+					break;
+				}
+				case OP_EQ:
+				case OP_LT:
+				case OP_LE:
+				case OP_TEST:
+				case OP_TESTSET:
+				case OP_TFORLOOP:
+					// We assume the next instruction is a jump. This is true for all bytecode produced by luac.
+					if (pc + 2 >= n || GET_OPCODE(code[pc + 1]) != OP_JMP) return null;
+					break;
+				case OP_SETLIST:
+					if (GETARG_C(i) == 0) {
+						if (pc + 1 >= n) return null;
+						data[pc + 1] = true;
+					}
+					break;
+				case OP_CLOSURE: {
+					int index = GETARG_Bx(i);
+					if (index >= p.p.length) return null;
+					int nups = p.p[index].nups;
+					if (pc + nups >= n) return null;
+					for (int j = 1; j <= nups; j++) data[pc + j] = true;
+					break;
+				}
+				default:
+					if (GET_OPCODE(i) >= NUM_OPCODES) return null;
+					break;
+			}
+		}
+
+		return data;
+	}
+
+	private void write(boolean[] data) {
+		int[] code = p.code;
+		int n = code.length;
+		for (int pc = 0; pc < n; pc++) labels[pc] = data[pc] ? invalid : new Label();
+
+		// Load our frame into locals and jump to the current instruction.
+		mw.varInsn(ALOAD, SLOT_DI);
+		mw.fieldInsn(GETFIELD, DEBUG_FRAME, "stack", D_STACK);
+		mw.varInsn(ASTORE, SLOT_STACK);
+
+		mw.varInsn(ALOAD, SLOT_DI);
+		mw.fieldInsn(GETFIELD, DEBUG_FRAME, "base", "I");
+		mw.varInsn(ISTORE, SLOT_BASE);
+
+		mw.varInsn(ALOAD, SLOT_FUNCTION);
+		mw.fieldInsn(GETFIELD, FUNCTION, "p", "L" + PROTOTYPE + ";");
+		mw.fieldInsn(GETFIELD, PROTOTYPE, "k", D_STACK);
+		mw.varInsn(ASTORE, SLOT_K);
+
+		mw.varInsn(ALOAD, SLOT_FUNCTION);
+		mw.fieldInsn(GETFIELD, FUNCTION, "upvalues", "[L" + UPVALUE + ";");
+		mw.varInsn(ASTORE, SLOT_UPVALUES);
+
+		mw.varInsn(ALOAD, SLOT_DI);
+		mw.fieldInsn(GETFIELD, DEBUG_FRAME, "varargs", "L" + VARARGS + ";");
+		mw.varInsn(ASTORE, SLOT_VARARGS);
+
+		mw.varInsn(ALOAD, SLOT_DI);
+		mw.fieldInsn(GETFIELD, DEBUG_FRAME, "pc", "I");
+		mw.tableSwitch(invalid, labels);
+
+		for (int pc = 0; pc < n; pc++) {
+			if (data[pc]) continue;
+			mw.mark(labels[pc]);
+			writeInstruction(pc, code[pc]);
+		}
+
+		// Entering at, or falling through to, an invalid instruction.
+		mw.mark(invalid);
+		mw.varInsn(ALOAD, SLOT_DI);
+		mw.fieldInsn(GETFIELD, DEBUG_FRAME, "pc", "I");
+		mw.methodInsn(INVOKESTATIC, COMPILED, "invalidPc", "(I)Ljava/lang/RuntimeException;");
+		mw.insn(ATHROW);
+	}
+
+	private void writeInstruction(int pc, int i) {
+		int a = GETARG_A(i);
+		int b = GETARG_B(i);
+		int c = GETARG_C(i);
+
+		int op = GET_OPCODE(i);
+		switch (op) {
+			case OP_MOVE: // A B: R(A):= R(B)
+				beginStore(a);
+				loadRegister(b);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_LOADK: // A Bx: R(A):= Kst(Bx)
+				beginStore(a);
+				loadConstant(GETARG_Bx(i));
+				mw.insn(AASTORE);
+				break;
+
+			case OP_LOADBOOL: // A B C: R(A):= (Bool)B: if (C) pc++
+				beginStore(a);
+				mw.fieldInsn(GETSTATIC, CONSTANTS, b != 0 ? "TRUE" : "FALSE", "Lorg/squiddev/cobalt/LuaBoolean;");
+				mw.insn(AASTORE);
+				if (c != 0) mw.jump(GOTO, labels[pc + 2]);
+				break;
+
+			case OP_LOADNIL: { // A B: R(A):= ...:= R(B):= nil
+				int r = b;
+				do {
+					beginStore(r);
+					mw.fieldInsn(GETSTATIC, CONSTANTS, "NIL", D_VALUE);
+					mw.insn(AASTORE);
+				} while (--r >= a);
+				break;
+			}
+
+			case OP_GETUPVAL: // A B: R(A):= UpValue[B]
+				beginStore(a);
+				mw.varInsn(ALOAD, SLOT_UPVALUES);
+				mw.pushInt(b);
+				mw.insn(AALOAD);
+				mw.methodInsn(INVOKEVIRTUAL, UPVALUE, "getValue", "()" + D_VALUE);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_GETGLOBAL: // A Bx	R(A):= Gbl[Kst(Bx)]
+				setPc(pc);
+				beginStore(a);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				mw.varInsn(ALOAD, SLOT_FUNCTION);
+				loadConstant(GETARG_Bx(i));
+				mw.methodInsn(INVOKESTATIC, COMPILED, "getGlobal", "(" + D_STATE + D_FUNCTION + D_VALUE + ")" + D_VALUE);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_GETTABLE: // A B C: R(A):= R(B)[RK(C)]
+				setPc(pc);
+				beginStore(a);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				loadRegister(b);
+				loadRK(c);
+				mw.pushInt(b);
+				mw.methodInsn(INVOKESTATIC, OPERATION, "getTable", "(" + D_STATE + D_VALUE + D_VALUE + "I)" + D_VALUE);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_SETGLOBAL: // A Bx: Gbl[Kst(Bx)]:= R(A)
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				mw.varInsn(ALOAD, SLOT_FUNCTION);
+				loadConstant(GETARG_Bx(i));
+				loadRegister(a);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "setGlobal", "(" + D_STATE + D_FUNCTION + D_VALUE + D_VALUE + ")V");
+				break;
+
+			case OP_SETUPVAL: // A B: UpValue[B]:= R(A)
+				mw.varInsn(ALOAD, SLOT_UPVALUES);
+				mw.pushInt(b);
+				mw.insn(AALOAD);
+				loadRegister(a);
+				mw.methodInsn(INVOKEVIRTUAL, UPVALUE, "setValue", "(" + D_VALUE + ")V");
+				break;
+
+			case OP_SETTABLE: // A B C: R(A)[RK(B)]:= RK(C)
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				loadRegister(a);
+				loadRK(b);
+				loadRK(c);
+				mw.pushInt(a);
+				mw.methodInsn(INVOKESTATIC, OPERATION, "setTable", "(" + D_STATE + D_VALUE + D_VALUE + D_VALUE + "I)V");
+				break;
+
+			case OP_NEWTABLE: // A B C: R(A):= {} (size = B,C)
+				beginStore(a);
+				mw.varInsn(ALOAD, SLOT_FUNCTION);
+				mw.pushInt(pc);
+				mw.pushInt(b);
+				mw.pushInt(c);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "newTable", "(" + D_FUNCTION + "III)L" + TABLE + ";");
+				mw.insn(AASTORE);
+				break;
+
+			case OP_SELF: // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
+				setPc(pc);
+				beginStore(a + 1);
+				loadRegister(b);
+				mw.insn(AASTORE);
+
+				beginStore(a);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				loadRegister(a + 1);
+				loadRK(c);
+				mw.pushInt(b);
+				mw.methodInsn(INVOKESTATIC, OPERATION, "getTable", "(" + D_STATE + D_VALUE + D_VALUE + "I)" + D_VALUE);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_ADD: // A B C: R(A):= RK(B) + RK(C)
+			case OP_SUB: // A B C: R(A):= RK(B) - RK(C)
+			case OP_MUL: // A B C: R(A):= RK(B) * RK(C)
+			case OP_DIV: // A B C: R(A):= RK(B) / RK(C)
+			case OP_MOD: // A B C: R(A):= RK(B) % RK(C)
+			case OP_POW: // A B C: R(A):= RK(B) ^ RK(C)
+				setPc(pc);
+				beginStore(a);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				loadRK(b);
+				loadRK(c);
+				mw.pushInt(b);
+				mw.pushInt(c);
+				mw.methodInsn(INVOKESTATIC, OPERATION, ARITH_NAMES[op - OP_ADD], ARITH_DESC);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_UNM: // A B: R(A):= -R(B)
+				setPc(pc);
+				beginStore(a);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				loadRegister(b);
+				mw.pushInt(b);
+				mw.methodInsn(INVOKESTATIC, OPERATION, "neg", "(" + D_STATE + D_VALUE + "I)" + D_VALUE);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_NOT: // A B: R(A):= not R(B)
+				beginStore(a);
+				loadRegister(b);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "not", "(" + D_VALUE + ")" + D_VALUE);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_LEN: // A B: R(A):= length of R(B)
+				setPc(pc);
+				beginStore(a);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				loadRegister(b);
+				mw.pushInt(b);
+				mw.methodInsn(INVOKESTATIC, OPERATION, "length", "(" + D_STATE + D_VALUE + "I)" + D_VALUE);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_CONCAT: // A B C: R(A):= R(B).. ... ..R(C)
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				mw.varInsn(ALOAD, SLOT_DI);
+				mw.varInsn(ALOAD, SLOT_STACK);
+				mw.pushInt(a);
+				mw.pushInt(b);
+				mw.pushInt(c);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "concat", "(" + D_STATE + D_DEBUG_FRAME + D_STACK + "III)V");
+				break;
+
+			case OP_JMP: { // sBx: pc+=sBx
+				int target = pc + 1 + GETARG_sBx(i);
+				if (target <= pc) {
+					safepoint(pc, target);
+				} else {
+					mw.jump(GOTO, labels[target]);
+				}
+				break;
+			}
+
+			case OP_EQ: // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
+			case OP_LT: // A B C: if ((RK(B) <  RK(C)) ~= A) then pc++
+			case OP_LE: // A B C: if ((RK(B) <= RK(C)) ~= A) then pc++
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				loadRK(b);
+				loadRK(c);
+				mw.methodInsn(INVOKESTATIC, OPERATION, op == OP_EQ ? "eq" : op == OP_LT ? "lt" : "le", COMPARE_DESC);
+				// If the test passes, we fall through to the following jump. Otherwise we skip it.
+				mw.jump(a != 0 ? IFEQ : IFNE, labels[pc + 2]);
+				break;
+
+			case OP_TEST: // A C: if not (R(A) <=> C) then pc++
+				loadRegister(a);
+				mw.methodInsn(INVOKEVIRTUAL, VALUE, "toBoolean", "()Z");
+				mw.jump(c != 0 ? IFEQ : IFNE, labels[pc + 2]);
+				break;
+
+			case OP_TESTSET: // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
+				loadRegister(b);
+				mw.methodInsn(INVOKEVIRTUAL, VALUE, "toBoolean", "()Z");
+				mw.jump(c != 0 ? IFEQ : IFNE, labels[pc + 2]);
+				beginStore(a);
+				loadRegister(b);
+				mw.insn(AASTORE);
+				break;
+
+			case OP_CALL: { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				mw.varInsn(ALOAD, SLOT_DI);
+				mw.varInsn(ALOAD, SLOT_STACK);
+				mw.pushInt(a);
+				mw.pushInt(b);
+				mw.pushInt(c);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "call", "(" + D_STATE + D_DEBUG_FRAME + D_STACK + "III)Z");
+
+				// Lua functions are called by the interpreter, so return to it.
+				Label called = new Label();
+				mw.jump(IFNE, called);
+				mw.insn(RETURN);
+				mw.mark(called);
+
+				// The callee may have enabled debug hooks, in which case we must also return to the interpreter.
+				safepoint(pc, pc + 1);
+				break;
+			}
+
+			case OP_TAILCALL: // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
+			case OP_RETURN: // A B: return R(A), ... ,R(A+B-2) (see note)
+				exit(pc);
+				break;
+
+			case OP_FORLOOP: { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_STACK);
+				pushIndex(a);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "forLoop", "(" + D_STACK + "I)Z");
+				mw.jump(IFEQ, labels[pc + 1]);
+				safepoint(pc, pc + 1 + GETARG_sBx(i));
+				break;
+			}
+
+			case OP_FORPREP: // A sBx: R(A)-=R(A+2): pc+=sBx
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_STACK);
+				pushIndex(a);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "forPrep", "(" + D_STACK + "I)V");
+				mw.jump(GOTO, labels[pc + 1 + GETARG_sBx(i)]);
+				break;
+
+			case OP_TFORLOOP: // A C: R(A+3), ... ,R(A+2+C):= R(A)(R(A+1), R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3) else pc++
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_STATE);
+				mw.varInsn(ALOAD, SLOT_DI);
+				mw.varInsn(ALOAD, SLOT_STACK);
+				mw.pushInt(a);
+				mw.pushInt(c);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "tforLoop", "(" + D_STATE + D_DEBUG_FRAME + D_STACK + "II)Z");
+				mw.jump(IFEQ, labels[pc + 2]);
+				break;
+
+			case OP_SETLIST: // A B C: R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
+				setPc(pc);
+				mw.varInsn(ALOAD, SLOT_DI);
+				mw.varInsn(ALOAD, SLOT_STACK);
+				mw.pushInt(a);
+				mw.pushInt(b);
+				mw.pushInt(c == 0 ? p.code[pc + 1] : c);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "setList", "(" + D_DEBUG_FRAME + D_STACK + "III)V");
+				break;
+
+			case OP_CLOSE: // A : close all variables in the stack up to (>=) R(A)
+				mw.varInsn(ALOAD, SLOT_DI);
+				mw.pushInt(a);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "close", "(" + D_DEBUG_FRAME + "I)V");
+				break;
+
+			case OP_CLOSURE: // A Bx: R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
+				mw.varInsn(ALOAD, SLOT_FUNCTION);
+				mw.varInsn(ALOAD, SLOT_DI);
+				mw.varInsn(ALOAD, SLOT_STACK);
+				mw.pushInt(a);
+				mw.pushInt(GETARG_Bx(i));
+				mw.pushInt(pc + 1);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "closure", "(" + D_FUNCTION + D_DEBUG_FRAME + D_STACK + "III)V");
+				break;
+
+			case OP_VARARG: // A B: R(A), R(A+1), ..., R(A+B-1) = vararg
+				mw.varInsn(ALOAD, SLOT_DI);
+				mw.varInsn(ALOAD, SLOT_STACK);
+				mw.varInsn(ALOAD, SLOT_VARARGS);
+				mw.pushInt(a);
+				mw.pushInt(b);
+				mw.methodInsn(INVOKESTATIC, COMPILED, "vararg", "(" + D_DEBUG_FRAME + D_STACK + "L" + VARARGS + ";II)V");
+				break;
+
+			default:
+				throw new IllegalStateException("Unknown opcode " + op);
+		}
+	}
+
+	private void setPc(int pc) {
+		mw.varInsn(ALOAD, SLOT_DI);
+		mw.pushInt(pc);
+		mw.fieldInsn(PUTFIELD, DEBUG_FRAME, "pc", "I");
+	}
+
+	/**
+	 * Return to the interpreter, continuing execution at the given instruction.
+	 *
+	 * @param pc The instruction to continue at.
+	 */
+	private void exit(int pc) {
+		setPc(pc);
+		mw.insn(RETURN);
+	}
+
+	/**
+	 * Jump to a given instruction, or return to the interpreter if debug hooks have been enabled.
+	 *
+	 * @param from The instruction we are jumping from. This is used by the line hook to detect new lines and loops.
+	 * @param pc   The instruction to jump to.
+	 */
+	private void safepoint(int from, int pc) {
+		mw.varInsn(ALOAD, SLOT_DS);
+		mw.methodInsn(INVOKESTATIC, COMPILED, "isHooked", "(" + D_DEBUG_STATE + ")Z");
+		mw.jump(IFEQ, labels[pc]);
+
+		mw.varInsn(ALOAD, SLOT_DI);
+		mw.pushInt(from);
+		mw.fieldInsn(PUTFIELD, DEBUG_FRAME, "oldPc", "I");
+		exit(pc);
+	}
+
+	/**
+	 * Push the index of a register within the stack.
+	 *
+	 * @param register The register to push.
+	 */
+	private void pushIndex(int register) {
+		mw.varInsn(ILOAD, SLOT_BASE);
+		if (register != 0) {
+			mw.pushInt(register);
+			mw.insn(IADD);
+		}
+	}
+
+	private void beginStore(int register) {
+		mw.varInsn(ALOAD, SLOT_STACK);
+		pushIndex(register);
+	}
+
+	private void loadRegister(int register) {
+		mw.varInsn(ALOAD, SLOT_STACK);
+		pushIndex(register);
+		mw.insn(AALOAD);
+	}
+
+	private void loadConstant(int constant) {
+		mw.varInsn(ALOAD, SLOT_K);
+		mw.pushInt(constant);
+		mw.insn(AALOAD);
+	}
+
+	private void loadRK(int rk) {
+		if (rk > 0xff) {
+			loadConstant(rk & 0x0ff);
+		} else {
+			loadRegister(rk);
+		}
+	}
+
+	private static final class Loader extends ClassLoader {
+		Loader() {
+			super(FunctionCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -28,6 +28,7 @@ import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.debug.DebugFrame;
 import org.squiddev.cobalt.debug.DebugHandler;
 import org.squiddev.cobalt.debug.DebugState;
+import org.squiddev.cobalt.lib.BaseLib;
 
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.Lua.*;
@@ -38,103 +39,164 @@ import static org.squiddev.cobalt.debug.DebugFrame.*;
  * The main interpreter for {@link LuaInterpretedFunction}s.
  */
 public final class LuaInterpreter {
-	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, int flags) throws LuaError, UnwindThrowable {
-		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+	/*
+	 * Specialised versions of instructions, which the interpreter rewrites the generic instruction to once it has been
+	 * executed with suitable operands. These only appear in Prototype.quickened, and so are never seen by the debug
+	 * library, Print or DumpState. If a specialised instruction's assumptions no longer hold, it is rewritten back to the
+	 * generic form. Once an instruction has fallen back {@link #MAX_QUICKEN_MISSES} times it is left generic, so that
+	 * instructions which see mixed operands do not keep rewriting the shared code array.
+	 */
+	private static final int OP_GETTABLE_S = NUM_OPCODES; /* A B C R(A) := R(B)[K(C)], where R(B) is a table and K(C) a string, using an inline cache */
+	private static final int OP_SELF_S = NUM_OPCODES + 1; /* A B C R(A+1) := R(B); R(A) := R(B)[K(C)], as OP_GETTABLE_S */
+	private static final int OP_ADD_II = NUM_OPCODES + 2; /* A B C R(A) := RK(B) + RK(C), where both are integers */
+	private static final int OP_SUB_II = NUM_OPCODES + 3; /* A B C R(A) := RK(B) - RK(C), where both are integers */
+	private static final int OP_CALL_LUA = NUM_OPCODES + 4; /* A B C As OP_CALL, where R(A) is a non-variadic Lua function and B > 0 */
+	private static final int OP_GETGLOBAL_C = NUM_OPCODES + 5; /* A Bx R(A) := Gbl[Kst(Bx)], using an inline cache */
+	private static final int OP_FORLOOP_I = NUM_OPCODES + 6; /* A sBx As OP_FORLOOP, where R(A), R(A+1) and R(A+2) are integers */
+
+	private static final int MAX_QUICKEN_MISSES = 2;
+
+	/**
+	 * Results of {@link #tforLoop(DebugFrame, LuaValue[], int, int, int)}.
+	 */
+	static final int TFOR_CALL = 0, TFOR_CONTINUE = 1, TFOR_EXIT = 2;
 
-		return setupCall(state, function, NONE, stack, flags);
+	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, int flags) throws LuaError, UnwindThrowable {
+		DebugFrame di = pushFrame(state, function, flags);
+		return setupCall(state, function, di, NONE, flags);
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugFrame di = pushFrame(state, function, flags);
+		LuaValue[] stack = di.stack;
+		int base = di.base;
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, arg, stack, flags);
+				return setupCall(state, function, di, arg, flags);
 
 			default:
-				stack[0] = arg;
-				return setupCall(state, function, NONE, stack, flags);
+				stack[base] = arg;
+				return setupCall(state, function, di, NONE, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugFrame di = pushFrame(state, function, flags);
+		LuaValue[] stack = di.stack;
+		int base = di.base;
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2) : NONE, stack, flags);
+				return setupCall(state, function, di, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2) : NONE, flags);
 
 			case 1:
-				stack[0] = arg1;
-				return setupCall(state, function, arg2, stack, flags);
+				stack[base] = arg1;
+				return setupCall(state, function, di, arg2, flags);
 
 			default:
-				stack[0] = arg1;
-				stack[1] = arg2;
-				return setupCall(state, function, NONE, stack, flags);
+				stack[base] = arg1;
+				stack[base + 1] = arg2;
+				return setupCall(state, function, di, NONE, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, LuaValue arg3, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugFrame di = pushFrame(state, function, flags);
+		LuaValue[] stack = di.stack;
+		int base = di.base;
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2, arg3) : NONE, stack, flags);
+				return setupCall(state, function, di, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2, arg3) : NONE, flags);
 
 			case 1:
-				stack[0] = arg1;
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg2, arg3) : NONE, stack, flags);
+				stack[base] = arg1;
+				return setupCall(state, function, di, p.is_vararg != 0 ? ValueFactory.varargsOf(arg2, arg3) : NONE, flags);
 
 			case 2:
-				stack[0] = arg1;
-				stack[1] = arg2;
-				return setupCall(state, function, arg3, stack, flags);
+				stack[base] = arg1;
+				stack[base + 1] = arg2;
+				return setupCall(state, function, di, arg3, flags);
 
 			default:
-				stack[0] = arg1;
-				stack[1] = arg2;
-				stack[2] = arg3;
-				return setupCall(state, function, NONE, stack, flags);
+				stack[base] = arg1;
+				stack[base + 1] = arg2;
+				stack[base + 2] = arg3;
+				return setupCall(state, function, di, NONE, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
-		for (int i = 0; i < p.numparams; i++) stack[i] = varargs.arg(i + 1);
+		DebugFrame di = pushFrame(state, function, flags);
+		LuaValue[] stack = di.stack;
+		int base = di.base;
+		for (int i = 0; i < p.numparams; i++) stack[base + i] = varargs.arg(i + 1);
 
-		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
+		return setupCall(state, function, di, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, flags);
 	}
 
-	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
+	/**
+	 * Call a function with arguments from another function's registers, optionally followed by some additional values.
+	 * Parameters are copied directly into the new frame's registers: a {@link Varargs} is only constructed for any
+	 * additional arguments to a variadic function.
+	 */
+	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize, Varargs extra, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		int numParams = p.numparams;
+
+		DebugFrame di = pushFrame(state, function, flags);
+		LuaValue[] stack = di.stack;
+		int base = di.base;
+		int fromArgs = Math.min(argSize, numParams);
+		System.arraycopy(args, argStart, stack, base, fromArgs);
+		for (int i = fromArgs; i < numParams; i++) stack[base + i] = extra.arg(i - argSize + 1);
+
+		Varargs varargs = NONE;
+		int total = argSize + extra.count();
+		if (p.is_vararg != 0 && total > numParams) {
+			LuaValue[] rest = new LuaValue[total - numParams];
+			int i = numParams;
+			for (; i < argSize; i++) rest[i - numParams] = args[argStart + i];
+			for (; i < total; i++) rest[i - numParams] = extra.arg(i - argSize + 1);
+			varargs = ValueFactory.varargsOf(rest);
+		}
 
-		varargs = ValueFactory.varargsOf(args, argStart, argSize, varargs);
-		for (int i = 0; i < p.numparams; i++) stack[i] = varargs.arg(i + 1);
+		return setupCall(state, function, di, varargs, flags);
+	}
 
-		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
+	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize, int flags) throws LuaError, UnwindThrowable {
+		DebugFrame di = pushFrame(state, function, flags);
+		System.arraycopy(args, argStart, di.stack, di.base, Math.min(argSize, function.p.numparams));
+
+		return setupCall(state, function, di, NONE, flags);
 	}
 
-	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, LuaValue[] stack, int flags) throws LuaError, UnwindThrowable {
+	/**
+	 * Push a new frame for a Lua function and allocate its registers. All registers will be nil.
+	 */
+	private static DebugFrame pushFrame(LuaState state, LuaInterpretedFunction function, int flags) throws LuaError {
+		DebugState ds = DebugHandler.getDebugState(state);
+		DebugFrame di = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
+		ds.allocateStack(di, function.p.maxstacksize);
+		return di;
+	}
+
+	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, DebugFrame di, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		Upvalue[] upvalues = p.p.length > 0 ? new Upvalue[stack.length] : null;
-		if (p.is_vararg >= VARARG_NEEDSARG) stack[p.numparams] = new LuaTable(varargs);
+
+		// Compile this function once it has been called enough times.
+		if (p.compiled == null && state.compileThreshold >= 0 && p.calls <= state.compileThreshold) {
+			if (p.calls++ == state.compileThreshold) p.compiled = FunctionCompiler.compile(p);
+		}
+		if (p.is_vararg >= VARARG_NEEDSARG) di.stack[di.base + p.numparams] = new LuaTable(varargs);
 
 		DebugState ds = DebugHandler.getDebugState(state);
-		DebugFrame di = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
-		di.setFunction(function, varargs.asImmutable(), stack, upvalues);
+		di.setClosure(function, varargs.asImmutable());
 		di.flags |= flags;
 		di.extras = NONE;
 		di.pc = 0;
@@ -148,6 +210,8 @@ public final class LuaInterpreter {
 		return di;
 	}
 
+	// Specialised instructions fall through to their generic form when their fast path does not apply.
+	@SuppressWarnings("fallthrough")
 	static Varargs execute(final LuaState state, DebugFrame di, LuaInterpretedFunction function) throws LuaError, UnwindThrowable {
 		final DebugState ds = DebugHandler.getDebugState(state);
 		final DebugHandler handler = state.debug;
@@ -157,19 +221,31 @@ public final class LuaInterpreter {
 			// Fetch all info from the function
 			final Prototype p = function.p;
 			final Upvalue[] upvalues = function.upvalues;
-			final int[] code = p.code;
+			final int[] code = p.quickened == null ? p.quickened = p.code.clone() : p.quickened;
 			final LuaValue[] k = p.k;
 
 			// And from the debug info
 			final LuaValue[] stack = di.stack;
-			final Upvalue[] openups = di.stackUpvalues;
+			final int base = di.base;
 			final Varargs varargs = di.varargs;
 
 			int pc = di.pc;
 
+			// If this function has been compiled, run that until it reaches something only the interpreter can handle.
+			CompiledFunction compiled = p.compiled;
+			if (compiled != null && CompiledFunction.canExecute(state, ds)) {
+				compiled.execute(state, ds, di, function);
+				pc = di.pc;
+			}
+
+			// When no hooks are active we skip the per-instruction hook entirely. di.pc is then only written by
+			// instructions which may call other code, error or yield. We switch to the instrumented mode at safe
+			// points (calls and backward jumps) if a hook is installed part way through this function.
+			boolean hooked = isHooked(handler, ds, di);
+
 			// process instructions
 			while (true) {
-				handler.onInstruction(ds, di, pc);
+				if (hooked) handler.onInstruction(ds, di, pc);
 
 				// pull out instruction
 				int i = code[pc++];
@@ -178,145 +254,271 @@ public final class LuaInterpreter {
 				// process the instruction
 				switch (((i >> POS_OP) & MAX_OP)) {
 					case OP_MOVE: // A B: R(A):= R(B)
-						stack[a] = stack[(i >>> POS_B) & MAXARG_B];
+						stack[base + a] = stack[base + ((i >>> POS_B) & MAXARG_B)];
 						break;
 
 					case OP_LOADK: // A Bx: R(A):= Kst(Bx)
-						stack[a] = k[(i >>> POS_Bx) & MAXARG_Bx];
+						stack[base + a] = k[(i >>> POS_Bx) & MAXARG_Bx];
 						break;
 
 					case OP_LOADBOOL: // A B C: R(A):= (Bool)B: if (C) pc++
-						stack[a] = ((i >>> POS_B) & MAXARG_B) != 0 ? TRUE : FALSE;
+						stack[base + a] = ((i >>> POS_B) & MAXARG_B) != 0 ? TRUE : FALSE;
 						if (((i >>> POS_C) & MAXARG_C) != 0) pc++; // skip next instruction (if C)
 						break;
 
 					case OP_LOADNIL: { // A B: R(A):= ...:= R(B):= nil
 						int b = ((i >>> POS_B) & MAXARG_B);
 						do {
-							stack[b--] = NIL;
+							stack[base + b--] = NIL;
 						} while (b >= a);
 						break;
 					}
 
 					case OP_GETUPVAL: // A B: R(A):= UpValue[B]
-						stack[a] = upvalues[((i >>> POS_B) & MAXARG_B)].getValue();
+						stack[base + a] = upvalues[((i >>> POS_B) & MAXARG_B)].getValue();
 						break;
 
-					case OP_GETGLOBAL: // A Bx	R(A):= Gbl[Kst(Bx)]
-						stack[a] = OperationHelper.getTable(state, function.env, k[(i >>> POS_Bx) & MAXARG_Bx]);
+					case OP_GETGLOBAL_C: { // A Bx	R(A):= Gbl[Kst(Bx)]
+						LuaTable.KeyCache cache = p.keyCaches[pc - 1];
+						if (cache != null) {
+							LuaTable env = function.env;
+							LuaValue value = cache.get(env);
+							if (value.isNil()) {
+								di.pc = pc - 1;
+								value = OperationHelper.getTable(state, env, k[(i >>> POS_Bx) & MAXARG_Bx]);
+							}
+							stack[base + a] = value;
+							break;
+						}
+
+						i = unquicken(p, code, pc - 1, i, OP_GETGLOBAL);
+						// fall through
+					}
+
+					case OP_GETGLOBAL: { // A Bx	R(A):= Gbl[Kst(Bx)]
+						di.pc = pc - 1;
+						LuaValue key = k[(i >>> POS_Bx) & MAXARG_Bx];
+						stack[base + a] = OperationHelper.getTable(state, function.env, key);
+						if (key instanceof LuaString && canQuicken(p, pc - 1)) {
+							addKeyCache(p, pc - 1, (LuaString) key);
+							code[pc - 1] = setOpcode(i, OP_GETGLOBAL_C);
+						}
 						break;
+					}
+
+					case OP_GETTABLE_S: { // A B C: R(A):= R(B)[K(C)]
+						int b = (i >>> POS_B) & MAXARG_B;
+						LuaValue table = stack[base + b];
+						LuaTable.KeyCache cache = p.keyCaches[pc - 1];
+						if (table instanceof LuaTable && cache != null) {
+							LuaValue value = cache.get((LuaTable) table);
+							if (value.isNil()) {
+								di.pc = pc - 1;
+								value = OperationHelper.getTable(state, table, k[(i >>> POS_C) & 0x0ff], b);
+							}
+							stack[base + a] = value;
+							break;
+						}
+
+						i = unquicken(p, code, pc - 1, i, OP_GETTABLE);
+						// fall through
+					}
 
 					case OP_GETTABLE: { // A B C: R(A):= R(B)[RK(C)]
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.getTable(state, stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						LuaValue table = stack[base + b], key = c > 0xff ? k[c & 0x0ff] : stack[base + c];
+						stack[base + a] = OperationHelper.getTable(state, table, key, b);
+						if (table instanceof LuaTable && key instanceof LuaString && c > 0xff && canQuicken(p, pc - 1)) {
+							addKeyCache(p, pc - 1, (LuaString) key);
+							code[pc - 1] = setOpcode(i, OP_GETTABLE_S);
+						}
 						break;
 					}
 
 					case OP_SETGLOBAL: // A Bx: Gbl[Kst(Bx)]:= R(A)
-						OperationHelper.setTable(state, function.env, k[(i >>> POS_Bx) & MAXARG_Bx], stack[a]);
+						di.pc = pc - 1;
+						OperationHelper.setTable(state, function.env, k[(i >>> POS_Bx) & MAXARG_Bx], stack[base + a]);
 						break;
 
 					case OP_SETUPVAL: // A B: UpValue[B]:= R(A)
-						upvalues[(i >>> POS_B) & MAXARG_B].setValue(stack[a]);
+						upvalues[(i >>> POS_B) & MAXARG_B].setValue(stack[base + a]);
 						break;
 
 					case OP_SETTABLE: { // A B C: R(A)[RK(B)]:= RK(C)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
-						OperationHelper.setTable(state, stack[a], b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], a);
+						OperationHelper.setTable(state, stack[base + a], b > 0xff ? k[b & 0x0ff] : stack[base + b], c > 0xff ? k[c & 0x0ff] : stack[base + c], a);
 						break;
 					}
 
 					case OP_NEWTABLE: // A B C: R(A):= {} (size = B,C)
-						stack[a] = new LuaTable((i >>> POS_B) & MAXARG_B, (i >>> POS_C) & MAXARG_C);
+						stack[base + a] = newTable(p, pc - 1, (i >>> POS_B) & MAXARG_B, (i >>> POS_C) & MAXARG_C);
 						break;
 
+					case OP_SELF_S: { // A B C: R(A+1):= R(B): R(A):= R(B)[K(C)]
+						int b = (i >>> POS_B) & MAXARG_B;
+						LuaValue o = stack[base + b];
+						LuaTable.KeyCache cache = p.keyCaches[pc - 1];
+						if (o instanceof LuaTable && cache != null) {
+							LuaValue value = cache.get((LuaTable) o);
+							stack[base + a + 1] = o;
+							if (value.isNil()) {
+								di.pc = pc - 1;
+								value = OperationHelper.getTable(state, o, k[(i >>> POS_C) & 0x0ff], b);
+							}
+							stack[base + a] = value;
+							break;
+						}
+
+						i = unquicken(p, code, pc - 1, i, OP_SELF);
+						// fall through
+					}
+
 					case OP_SELF: { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						LuaValue o = stack[a + 1] = stack[b];
-						stack[a] = OperationHelper.getTable(state, o, c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						LuaValue o = stack[base + a + 1] = stack[base + b];
+						LuaValue key = c > 0xff ? k[c & 0x0ff] : stack[base + c];
+						stack[base + a] = OperationHelper.getTable(state, o, key, b);
+						if (o instanceof LuaTable && key instanceof LuaString && c > 0xff && canQuicken(p, pc - 1)) {
+							addKeyCache(p, pc - 1, (LuaString) key);
+							code[pc - 1] = setOpcode(i, OP_SELF_S);
+						}
 						break;
 					}
 
+					case OP_ADD_II: { // A B C: R(A):= RK(B) + RK(C)
+						int b = (i >>> POS_B) & MAXARG_B;
+						int c = (i >> POS_C) & MAXARG_C;
+						LuaValue left = b > 0xff ? k[b & 0x0ff] : stack[base + b], right = c > 0xff ? k[c & 0x0ff] : stack[base + c];
+						if (left instanceof LuaInteger && right instanceof LuaInteger) {
+							int x = ((LuaInteger) left).v, y = ((LuaInteger) right).v;
+							int r = x + y;
+							stack[base + a] = ((x ^ r) & (y ^ r)) >= 0 ? LuaInteger.valueOf(r) : OperationHelper.add(state, left, right, b, c);
+							break;
+						}
+
+						i = unquicken(p, code, pc - 1, i, OP_ADD);
+						// fall through
+					}
+
 					case OP_ADD: { // A B C: R(A):= RK(B) + RK(C)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.add(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b, c);
+						LuaValue left = b > 0xff ? k[b & 0x0ff] : stack[base + b], right = c > 0xff ? k[c & 0x0ff] : stack[base + c];
+						stack[base + a] = OperationHelper.add(state, left, right, b, c);
+						if (left instanceof LuaInteger && right instanceof LuaInteger && canQuicken(p, pc - 1)) {
+							code[pc - 1] = setOpcode(i, OP_ADD_II);
+						}
 						break;
 					}
 
+					case OP_SUB_II: { // A B C: R(A):= RK(B) - RK(C)
+						int b = (i >>> POS_B) & MAXARG_B;
+						int c = (i >> POS_C) & MAXARG_C;
+						LuaValue left = b > 0xff ? k[b & 0x0ff] : stack[base + b], right = c > 0xff ? k[c & 0x0ff] : stack[base + c];
+						if (left instanceof LuaInteger && right instanceof LuaInteger) {
+							int x = ((LuaInteger) left).v, y = ((LuaInteger) right).v;
+							int r = x - y;
+							stack[base + a] = ((x ^ y) & (x ^ r)) >= 0 ? LuaInteger.valueOf(r) : OperationHelper.sub(state, left, right, b, c);
+							break;
+						}
+
+						i = unquicken(p, code, pc - 1, i, OP_SUB);
+						// fall through
+					}
+
 					case OP_SUB: { // A B C: R(A):= RK(B) - RK(C)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.sub(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b, c);
+						LuaValue left = b > 0xff ? k[b & 0x0ff] : stack[base + b], right = c > 0xff ? k[c & 0x0ff] : stack[base + c];
+						stack[base + a] = OperationHelper.sub(state, left, right, b, c);
+						if (left instanceof LuaInteger && right instanceof LuaInteger && canQuicken(p, pc - 1)) {
+							code[pc - 1] = setOpcode(i, OP_SUB_II);
+						}
 						break;
 					}
 
 					case OP_MUL: { // A B C: R(A):= RK(B) * RK(C)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.mul(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b, c);
+						stack[base + a] = OperationHelper.mul(state, b > 0xff ? k[b & 0x0ff] : stack[base + b], c > 0xff ? k[c & 0x0ff] : stack[base + c], b, c);
 						break;
 					}
 
 					case OP_DIV: { // A B C: R(A):= RK(B) / RK(C)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.div(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b, c);
+						stack[base + a] = OperationHelper.div(state, b > 0xff ? k[b & 0x0ff] : stack[base + b], c > 0xff ? k[c & 0x0ff] : stack[base + c], b, c);
 						break;
 					}
 
 					case OP_MOD: { // A B C: R(A):= RK(B) % RK(C)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.mod(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b, c);
+						stack[base + a] = OperationHelper.mod(state, b > 0xff ? k[b & 0x0ff] : stack[base + b], c > 0xff ? k[c & 0x0ff] : stack[base + c], b, c);
 						break;
 					}
 
 					case OP_POW: { // A B C: R(A):= RK(B) ^ RK(C)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.pow(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b, c);
+						stack[base + a] = OperationHelper.pow(state, b > 0xff ? k[b & 0x0ff] : stack[base + b], c > 0xff ? k[c & 0x0ff] : stack[base + c], b, c);
 						break;
 					}
 
 					case OP_UNM: { // A B: R(A):= -R(B)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
-						stack[a] = OperationHelper.neg(state, b > 0xff ? k[b & 0x0ff] : stack[b], b);
+						stack[base + a] = OperationHelper.neg(state, b > 0xff ? k[b & 0x0ff] : stack[base + b], b);
 						break;
 					}
 
 					case OP_NOT: // A B: R(A):= not R(B)
-						stack[a] = stack[(i >>> POS_B) & MAXARG_B].toBoolean() ? FALSE : TRUE;
+						stack[base + a] = stack[base + ((i >>> POS_B) & MAXARG_B)].toBoolean() ? FALSE : TRUE;
 						break;
 
 					case OP_LEN: { // A B: R(A):= length of R(B)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
-						stack[a] = OperationHelper.length(state, stack[b], b);
+						stack[base + a] = OperationHelper.length(state, stack[base + b], b);
 						break;
 					}
 
 					case OP_CONCAT: { // A B C: R(A):= R(B).. ... ..R(C)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 
 						di.top = c + 1;
-						concat(state, di, stack, di.top, c - b + 1);
-						stack[a] = stack[b];
+						concat(state, di, stack, base, di.top, c - b + 1);
+						stack[base + a] = stack[base + b];
 						di.top = b;
 						break;
 					}
 
-					case OP_JMP: // sBx: pc+=sBx
-						pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+					case OP_JMP: { // sBx: pc+=sBx
+						int offset = ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+						if (offset < 0 && !hooked) hooked = checkHooks(handler, ds, di, pc - 1);
+						pc += offset;
 						break;
+					}
 
 					case OP_EQ: { // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						if (OperationHelper.eq(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
+						if (OperationHelper.eq(state, b > 0xff ? k[b & 0x0ff] : stack[base + b], c > 0xff ? k[c & 0x0ff] : stack[base + c]) == (a != 0)) {
 							// We assume the next instruction is a jump and read the branch from there.
 							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
 						}
@@ -325,9 +527,10 @@ public final class LuaInterpreter {
 					}
 
 					case OP_LT: { // A B C: if ((RK(B) <  RK(C)) ~= A) then pc++
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						if (OperationHelper.lt(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
+						if (OperationHelper.lt(state, b > 0xff ? k[b & 0x0ff] : stack[base + b], c > 0xff ? k[c & 0x0ff] : stack[base + c]) == (a != 0)) {
 							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
 						}
 						pc++;
@@ -335,9 +538,10 @@ public final class LuaInterpreter {
 					}
 
 					case OP_LE: { // A B C: if ((RK(B) <= RK(C)) ~= A) then pc++
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						if (OperationHelper.le(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
+						if (OperationHelper.le(state, b > 0xff ? k[b & 0x0ff] : stack[base + b], c > 0xff ? k[c & 0x0ff] : stack[base + c]) == (a != 0)) {
 							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
 						}
 						pc++;
@@ -345,7 +549,7 @@ public final class LuaInterpreter {
 					}
 
 					case OP_TEST: // A C: if not (R(A) <=> C) then pc++
-						if (stack[a].toBoolean() == (((i >> POS_C) & MAXARG_C) != 0)) {
+						if (stack[base + a].toBoolean() == (((i >> POS_C) & MAXARG_C) != 0)) {
 							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
 						}
 						pc++;
@@ -355,39 +559,57 @@ public final class LuaInterpreter {
 						/* note: doc appears to be reversed */
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
-						LuaValue val = stack[b];
+						LuaValue val = stack[base + b];
 						if (val.toBoolean() == (c != 0)) {
-							stack[a] = val;
+							stack[base + a] = val;
 							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
 						}
 						pc++;
 						break;
 					}
 
+					case OP_CALL_LUA: { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+						di.pc = pc - 1;
+						LuaValue val = stack[base + a];
+						if (val instanceof LuaInterpretedFunction && ((LuaInterpretedFunction) val).p.is_vararg == 0) {
+							function = (LuaInterpretedFunction) val;
+							di = setupCall(state, function, stack, base + a + 1, ((i >>> POS_B) & MAXARG_B) - 1, 0);
+							continue newFrame;
+						}
+
+						i = unquicken(p, code, pc - 1, i, OP_CALL);
+						// fall through
+					}
+
 					case OP_CALL: { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = ((i >> POS_C) & MAXARG_C);
 
-						LuaValue val = stack[a];
+						LuaValue val = stack[base + a];
 						if (val instanceof LuaInterpretedFunction) {
 							function = (LuaInterpretedFunction) val;
+							if (b != 0 && function.p.is_vararg == 0 && canQuicken(p, pc - 1)) {
+								code[pc - 1] = setOpcode(i, OP_CALL_LUA);
+							}
+
 							switch (b) {
 								case 1:
 									di = setupCall(state, function, 0);
 									break;
 								case 2:
-									di = setupCall(state, function, stack[a + 1], 0);
+									di = setupCall(state, function, stack[base + a + 1], 0);
 									break;
 								case 3:
-									di = setupCall(state, function, stack[a + 1], stack[a + 2], 0);
+									di = setupCall(state, function, stack[base + a + 1], stack[base + a + 2], 0);
 									break;
 								case 4:
-									di = setupCall(state, function, stack[a + 1], stack[a + 2], stack[a + 3], 0);
+									di = setupCall(state, function, stack[base + a + 1], stack[base + a + 2], stack[base + a + 3], 0);
 									break;
 								default:
 									di = b > 0
-										? setupCall(state, function, stack, a + 1, b - 1, NONE, 0) // exact arg count
-										: setupCall(state, function, stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras, 0); // from prev top
+										? setupCall(state, function, stack, base + a + 1, b - 1, NONE, 0) // exact arg count
+										: setupCall(state, function, stack, base + a + 1, di.top - di.extras.count() - (a + 1), di.extras, 0); // from prev top
 							}
 
 							continue newFrame;
@@ -400,7 +622,7 @@ public final class LuaInterpreter {
 								break;
 							}
 							case (2 << POS_B) | (0 << POS_C): {
-								Varargs v = di.extras = OperationHelper.invoke(state, val, stack[a + 1], a);
+								Varargs v = di.extras = OperationHelper.invoke(state, val, stack[base + a + 1], a);
 								di.top = a + v.count();
 								break;
 							}
@@ -408,33 +630,33 @@ public final class LuaInterpreter {
 								OperationHelper.call(state, val, a);
 								break;
 							case (2 << POS_B) | (1 << POS_C):
-								OperationHelper.call(state, val, stack[a + 1], a);
+								OperationHelper.call(state, val, stack[base + a + 1], a);
 								break;
 							case (3 << POS_B) | (1 << POS_C):
-								OperationHelper.call(state, val, stack[a + 1], stack[a + 2], a);
+								OperationHelper.call(state, val, stack[base + a + 1], stack[base + a + 2], a);
 								break;
 							case (4 << POS_B) | (1 << POS_C):
-								OperationHelper.call(state, val, stack[a + 1], stack[a + 2], stack[a + 3], a);
+								OperationHelper.call(state, val, stack[base + a + 1], stack[base + a + 2], stack[base + a + 3], a);
 								break;
 							case (1 << POS_B) | (2 << POS_C):
-								stack[a] = OperationHelper.call(state, val, a);
+								stack[base + a] = OperationHelper.call(state, val, a);
 								break;
 							case (2 << POS_B) | (2 << POS_C):
-								stack[a] = OperationHelper.call(state, val, stack[a + 1], a);
+								stack[base + a] = OperationHelper.call(state, val, stack[base + a + 1], a);
 								break;
 							case (3 << POS_B) | (2 << POS_C):
-								stack[a] = OperationHelper.call(state, val, stack[a + 1], stack[a + 2], a);
+								stack[base + a] = OperationHelper.call(state, val, stack[base + a + 1], stack[base + a + 2], a);
 								break;
 							case (4 << POS_B) | (2 << POS_C):
-								stack[a] = OperationHelper.call(state, val, stack[a + 1], stack[a + 2], stack[a + 3], a);
+								stack[base + a] = OperationHelper.call(state, val, stack[base + a + 1], stack[base + a + 2], stack[base + a + 3], a);
 								break;
 							default: {
 								Varargs args = b > 0 ?
-									ValueFactory.varargsOf(stack, a + 1, b - 1) : // exact arg count
-									ValueFactory.varargsOf(stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
+									ValueFactory.varargsOf(stack, base + a + 1, b - 1) : // exact arg count
+									ValueFactory.varargsOf(stack, base + a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
 								Varargs v = OperationHelper.invoke(state, val, args.asImmutable(), a);
 								if (c > 0) {
-									while (--c > 0) stack[a + c - 1] = v.arg(c);
+									while (--c > 0) stack[base + a + c - 1] = v.arg(c);
 									v = NONE;
 								} else {
 									di.top = a + v.count();
@@ -443,26 +665,29 @@ public final class LuaInterpreter {
 								break;
 							}
 						}
+
+						if (!hooked) hooked = checkHooks(handler, ds, di, pc - 1);
 						break;
 					}
 
 					case OP_TAILCALL: { // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 
-						LuaValue val = stack[a];
+						LuaValue val = stack[base + a];
 						Varargs args;
 						switch (b) {
 							case 1:
 								args = NONE;
 								break;
 							case 2:
-								args = stack[a + 1];
+								args = stack[base + a + 1];
 								break;
 							default: {
 								Varargs v = di.extras;
 								args = b > 0 ?
-									ValueFactory.varargsOf(stack, a + 1, b - 1) : // exact arg count
-									ValueFactory.varargsOf(stack, a + 1, di.top - v.count() - (a + 1), v); // from prev top
+									ValueFactory.varargsOf(stack, base + a + 1, b - 1) : // exact arg count
+									ValueFactory.varargsOf(stack, base + a + 1, di.top - v.count() - (a + 1), v); // from prev top
 							}
 						}
 
@@ -470,7 +695,7 @@ public final class LuaInterpreter {
 						if (val.isFunction()) {
 							functionVal = (LuaFunction) val;
 						} else {
-							LuaValue meta = val.metatag(state, Constants.CALL);
+							LuaValue meta = val.metatag(state, CachedMetamethod.CALL);
 							if (!meta.isFunction()) throw ErrorFactory.operandError(state, val, "call", a);
 
 							functionVal = (LuaFunction) meta;
@@ -478,8 +703,9 @@ public final class LuaInterpreter {
 						}
 
 						if (functionVal instanceof LuaInterpretedFunction) {
+							// Copy the arguments before our registers are released.
+							args = args.asImmutable();
 							int flags = di.flags;
-							closeAll(openups);
 							ds.popInfo();
 
 							// Replace the current frame with a new one.
@@ -496,29 +722,50 @@ public final class LuaInterpreter {
 					}
 
 					case OP_RETURN: { // A B: return R(A), ... ,R(A+B-2) (see note)
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
+						int flags = di.flags;
 
-						int flags = di.flags, top = di.top;
-						Varargs v = di.extras;
-						closeAll(openups);
-						handler.onReturn(ds, di);
+						if ((flags & FLAG_FRESH) == 0 && !ds.hookrtrn && handler == DebugHandler.INSTANCE) {
+							// If we're returning to another Lua function, copy our results directly into its registers.
+							// This overwrites our own registers, so is only done when there is no return hook to see them.
+							DebugFrame caller = di.previous;
+							if (b == 0) {
+								Varargs v = di.extras;
+								returnTo(caller, stack, base + a, di.top - v.count() - a, v);
+							} else {
+								returnTo(caller, stack, base + a, b - 1, NONE);
+							}
+
+							handler.onReturn(ds, di);
+
+							di = caller;
+							function = (LuaInterpretedFunction) di.closure;
+							di.pc++;
+							continue newFrame;
+						}
 
+						// Copy the return values before our registers are released.
 						Varargs ret;
 						switch (b) {
-							case 0:
-								ret = ValueFactory.varargsOf(stack, a, top - v.count() - a, v).asImmutable();
+							case 0: {
+								Varargs v = di.extras;
+								ret = ValueFactory.varargsOf(stack, base + a, di.top - v.count() - a, v).asImmutable();
 								break;
+							}
 							case 1:
 								ret = NONE;
 								break;
 							case 2:
-								ret = stack[a];
+								ret = stack[base + a];
 								break;
 							default:
-								ret = ValueFactory.varargsOf(stack, a, b - 1).asImmutable();
+								ret = ValueFactory.varargsOf(stack, base + a, b - 1).asImmutable();
 								break;
 						}
 
+						handler.onReturn(ds, di);
+
 						if ((flags & FLAG_FRESH) != 0) {
 							// If we're a fresh invocation then return to the parent.
 							return ret;
@@ -530,62 +777,88 @@ public final class LuaInterpreter {
 						}
 					}
 
+					case OP_FORLOOP_I: { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
+						LuaValue value = stack[base + a], limit = stack[base + a + 1], step = stack[base + a + 2];
+						if (value instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+							int iStep = ((LuaInteger) step).v, iLimit = ((LuaInteger) limit).v;
+							long idx = (long) ((LuaInteger) value).v + iStep;
+							if (0 < iStep ? idx <= iLimit : iLimit <= idx) {
+								stack[base + a + 3] = stack[base + a] = LuaInteger.valueOf((int) idx);
+								if (!hooked) hooked = checkHooks(handler, ds, di, pc - 1);
+								pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							}
+							break;
+						}
+
+						code[pc - 1] = i = setOpcode(i, OP_FORLOOP);
+						// fall through
+					}
+
 					case OP_FORLOOP: { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
-						double limit = stack[a + 1].checkDouble();
-						double step = stack[a + 2].checkDouble();
-						double value = stack[a].checkDouble();
+						di.pc = pc - 1;
+						double limit = stack[base + a + 1].checkDouble();
+						double step = stack[base + a + 2].checkDouble();
+						double value = stack[base + a].checkDouble();
 						double idx = step + value;
 						if (0 < step ? idx <= limit : limit <= idx) {
-							stack[a + 3] = stack[a] = valueOf(idx);
+							stack[base + a + 3] = stack[base + a] = valueOf(idx);
+							if (!hooked) hooked = checkHooks(handler, ds, di, pc - 1);
 							pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
 						}
 					}
 					break;
 
 					case OP_FORPREP: { // A sBx: R(A)-=R(A+2): pc+=sBx
-						LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
-						LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
-						LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
-						stack[a] = valueOf(init.toDouble() - step.toDouble());
-						stack[a + 1] = limit;
-						stack[a + 2] = step;
+						di.pc = pc - 1;
+						boolean integer = forPrep(stack, base + a);
 						pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+
+						// Step the loop using integers where possible. We always rewrite the FORLOOP instruction, as a
+						// previous execution may have left it in the generic form.
+						if (integer) code[pc] = setOpcode(code[pc], OP_FORLOOP_I);
 					}
 					break;
 
 					case OP_TFORLOOP: {
+						di.pc = pc - 1;
 							/*
 								A C R(A+3), ... ,R(A+2+C):= R(A)(R(A+1),
 								R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
 								else pc++
 							*/
-						Varargs v = di.extras = OperationHelper.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
+						int c = (i >> POS_C) & MAXARG_C;
+						int result = tforLoop(di, stack, base, a, c);
+						if (result != TFOR_CALL) {
+							if (result == TFOR_EXIT) pc++;
+							break;
+						}
+
+						Varargs v = di.extras = OperationHelper.invoke(state, stack[base + a], ValueFactory.varargsOf(stack[base + a + 1], stack[base + a + 2]), a);
 						LuaValue val = v.first();
 						if (val.isNil()) {
 							pc++;
 						} else {
-							stack[a + 2] = stack[a + 3] = val;
-							for (int c = (i >> POS_C) & MAXARG_C; c > 1; --c) {
-								stack[a + 2 + c] = v.arg(c);
-							}
+							stack[base + a + 2] = stack[base + a + 3] = val;
+							for (; c > 1; --c) stack[base + a + 2 + c] = v.arg(c);
 							di.extras = NONE;
 						}
 						break;
 					}
 
 					case OP_SETLIST: { // A B C: R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B
+						di.pc = pc - 1;
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (c == 0) c = code[pc++];
 
 						int offset = (c - 1) * LFIELDS_PER_FLUSH;
-						LuaTable tbl = stack[a].checkTable();
+						LuaTable tbl = stack[base + a].checkTable();
 						if (b == 0) {
 							b = di.top - a - 1;
 							int m = b - di.extras.count();
 							int j = 1;
 							for (; j <= m; j++) {
-								tbl.rawset(offset + j, stack[a + j]);
+								tbl.rawset(offset + j, stack[base + a + j]);
 							}
 							for (; j <= b; j++) {
 								tbl.rawset(offset + j, di.extras.arg(j - m));
@@ -593,20 +866,14 @@ public final class LuaInterpreter {
 						} else {
 							tbl.presize(offset + b);
 							for (int j = 1; j <= b; j++) {
-								tbl.rawset(offset + j, stack[a + j]);
+								tbl.rawset(offset + j, stack[base + a + j]);
 							}
 						}
 						break;
 					}
 
 					case OP_CLOSE: { // A : close all variables in the stack up to (>=) R(A)
-						for (int x = openups.length; --x >= a; ) {
-							Upvalue upvalue = openups[x];
-							if (upvalue != null) {
-								upvalue.close();
-								openups[x] = null;
-							}
-						}
+						if (di.openUpvalues != null) closeAll(di, base + a);
 						break;
 					}
 
@@ -618,9 +885,9 @@ public final class LuaInterpreter {
 							int b = (i >>> POS_B) & MAXARG_B;
 							newcl.upvalues[j] = (i & 4) != 0
 								? upvalues[b] // OP_GETUPVAL
-								: openups[b] != null ? openups[b] : (openups[b] = new Upvalue(stack, b)); // OP_MOVE
+								: findUpvalue(di, stack, base + b); // OP_MOVE
 						}
-						stack[a] = newcl;
+						stack[base + a] = newcl;
 						break;
 					}
 
@@ -631,7 +898,7 @@ public final class LuaInterpreter {
 							di.extras = varargs;
 						} else {
 							for (int j = 1; j < b; ++j) {
-								stack[a + j - 1] = varargs.arg(j);
+								stack[base + a + j - 1] = varargs.arg(j);
 							}
 						}
 					}
@@ -640,11 +907,211 @@ public final class LuaInterpreter {
 		}
 	}
 
-	private static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int top, int total) throws LuaError, UnwindThrowable {
+	/**
+	 * Step a generic for loop over the built-in {@code next} or {@code inext} functions (as returned by {@code pairs}
+	 * and {@code ipairs}) without calling them.
+	 *
+	 * {@code next} loops remember the position of the previous key in {@link DebugFrame#cursors}, so the table does not
+	 * need to find it again on each step.
+	 *
+	 * @param di    The current frame.
+	 * @param stack The current stack.
+	 * @param base  The frame's first register within the stack.
+	 * @param a     The loop's first register, relative to {@code base}.
+	 * @param c     The number of loop variables.
+	 * @return {@link #TFOR_CONTINUE} if the loop variables were updated, {@link #TFOR_EXIT} if there are no more
+	 * entries, or {@link #TFOR_CALL} if the iterator must be called as normal.
+	 * @throws LuaError If the previous key is not in the table.
+	 */
+	static int tforLoop(DebugFrame di, LuaValue[] stack, int base, int a, int c) throws LuaError {
+		LuaValue iterator = stack[base + a], state = stack[base + a + 1];
+		if (!(state instanceof LuaTable)) return TFOR_CALL;
+		LuaTable table = (LuaTable) state;
+
+		if (BaseLib.isNext(iterator)) {
+			int[] cursors = di.cursors;
+			if (cursors == null || cursors.length <= a) {
+				cursors = di.cursors = new int[Math.max(a + 1, di.closure.getPrototype().maxstacksize)];
+			}
+
+			// Write the key and value to R(A+3) and R(A+4). R(A+4) is always free, even if there is only one variable.
+			int cursor = table.next(stack[base + a + 2], cursors[a], stack, base + a + 3);
+			if (cursor < 0) return TFOR_EXIT;
+
+			cursors[a] = cursor;
+			stack[base + a + 2] = stack[base + a + 3];
+			if (c == 1) stack[base + a + 4] = NIL;
+		} else if (BaseLib.isINext(iterator)) {
+			LuaValue control = stack[base + a + 2];
+			if (!(control instanceof LuaInteger)) return TFOR_CALL;
+
+			int k = ((LuaInteger) control).v + 1;
+			LuaValue value = table.rawget(k);
+			if (value.isNil()) return TFOR_EXIT;
+
+			stack[base + a + 2] = stack[base + a + 3] = LuaInteger.valueOf(k);
+			if (c > 1) stack[base + a + 4] = value;
+		} else {
+			return TFOR_CALL;
+		}
+
+		for (; c > 2; --c) stack[base + a + 2 + c] = NIL;
+		return TFOR_CONTINUE;
+	}
+
+	/**
+	 * Prepare a numeric for loop, setting R(A) to R(A) - R(A+2). If the initial value, limit and step are all integers
+	 * (and subtracting the step does not overflow), they are stored as {@link LuaInteger}s so the loop may be stepped
+	 * without converting to doubles.
+	 *
+	 * @param stack The current stack.
+	 * @param a     The index of the loop's first register within the stack.
+	 * @return Whether the loop's registers are all integers.
+	 * @throws LuaError If the loop variables are not numbers.
+	 */
+	static boolean forPrep(LuaValue[] stack, int a) throws LuaError {
+		LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
+		LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
+		LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
+
+		double dInit = init.toDouble(), dLimit = limit.toDouble(), dStep = step.toDouble();
+		int iInit = (int) dInit, iLimit = (int) dLimit, iStep = (int) dStep;
+		long start = (long) iInit - iStep;
+		if (iInit == dInit && iLimit == dLimit && iStep == dStep && start == (int) start) {
+			stack[a] = LuaInteger.valueOf((int) start);
+			stack[a + 1] = limit instanceof LuaInteger ? limit : LuaInteger.valueOf(iLimit);
+			stack[a + 2] = step instanceof LuaInteger ? step : LuaInteger.valueOf(iStep);
+			return true;
+		}
+
+		stack[a] = valueOf(dInit - dStep);
+		stack[a + 1] = limit;
+		stack[a + 2] = step;
+		return false;
+	}
+
+	/**
+	 * Copy the results of a function into the registers of the Lua function which called it, as the caller's
+	 * {@link Lua#OP_CALL} instruction expects. This avoids constructing a {@link Varargs} for the results, unless they
+	 * extend past the end of the caller's registers (including {@link DebugState#EXTRA_REGISTERS}).
+	 *
+	 * @param caller The calling frame. This must be executing an {@link Lua#OP_CALL} instruction.
+	 * @param values The register stack holding the results.
+	 * @param offset The index of the first result within {@code values}.
+	 * @param count  The number of results in {@code values}.
+	 * @param extra  Additional results following those in {@code values}.
+	 */
+	private static void returnTo(DebugFrame caller, LuaValue[] values, int offset, int count, Varargs extra) {
+		Prototype p = caller.closure.getPrototype();
+		int i = p.code[caller.pc];
+		int a = (i >>> POS_A) & MAXARG_A;
+		int c = (i >>> POS_C) & MAXARG_C;
+
+		LuaValue[] stack = caller.stack;
+		int start = caller.base + a;
+		if (c > 0) {
+			int wanted = c - 1, j = 0;
+			for (int n = Math.min(wanted, count); j < n; j++) stack[start + j] = values[offset + j];
+			for (; j < wanted; j++) stack[start + j] = extra.arg(j - count + 1);
+			caller.extras = NONE;
+		} else {
+			int total = count + extra.count();
+			if (a + total <= p.maxstacksize + DebugState.EXTRA_REGISTERS) {
+				System.arraycopy(values, offset, stack, start, count);
+				for (int j = count; j < total; j++) stack[start + j] = extra.arg(j - count + 1);
+				caller.extras = NONE;
+				caller.top = a + total;
+			} else {
+				Varargs v = ValueFactory.varargsOf(values, offset, count, extra).asImmutable();
+				caller.extras = v;
+				caller.top = a + v.count();
+			}
+		}
+	}
+
+	/**
+	 * Determine whether we need to call {@link DebugHandler#onInstruction(DebugState, DebugFrame, int)} before each
+	 * instruction. This is required for line and count hooks, custom debug handlers, or when resuming from a hook
+	 * which yielded.
+	 *
+	 * @param handler The current debug handler.
+	 * @param ds      The current thread's debug state.
+	 * @param di      The current frame.
+	 * @return Whether the instruction hook must be called.
+	 */
+	private static boolean isHooked(DebugHandler handler, DebugState ds, DebugFrame di) {
+		return handler != DebugHandler.INSTANCE || ds.hookline || ds.hookcount > 0
+			|| (di.flags & (FLAG_HOOKYIELD | FLAG_HOOKYIELD_LINE)) != 0;
+	}
+
+	/**
+	 * Check whether a hook was installed while running without the instruction hook. If so, we mark the previous
+	 * instruction as the last one seen by the hook, so line hooks behave as if they had been called all along.
+	 *
+	 * @param handler The current debug handler.
+	 * @param ds      The current thread's debug state.
+	 * @param di      The current frame.
+	 * @param lastPc  The instruction which has just been executed.
+	 * @return Whether the instruction hook must now be called.
+	 */
+	private static boolean checkHooks(DebugHandler handler, DebugState ds, DebugFrame di, int lastPc) {
+		if (!isHooked(handler, ds, di)) return false;
+		di.oldPc = lastPc;
+		return true;
+	}
+
+	private static int setOpcode(int instruction, int opcode) {
+		return (instruction & MASK_NOT_OP) | (opcode << POS_OP);
+	}
+
+	/**
+	 * Determine whether an instruction may be rewritten to its specialised form.
+	 *
+	 * @param p  The prototype containing this instruction.
+	 * @param pc The index of the instruction.
+	 * @return Whether this instruction has fallen back fewer than {@link #MAX_QUICKEN_MISSES} times.
+	 */
+	private static boolean canQuicken(Prototype p, int pc) {
+		byte[] misses = p.quickenMisses;
+		return misses == null || misses[pc] < MAX_QUICKEN_MISSES;
+	}
+
+	/**
+	 * Rewrite a specialised instruction back to its generic form, recording the miss.
+	 *
+	 * @param p           The prototype containing this instruction.
+	 * @param code        The prototype's quickened code.
+	 * @param pc          The index of the instruction.
+	 * @param instruction The current instruction.
+	 * @param opcode      The generic opcode to use.
+	 * @return The rewritten instruction.
+	 */
+	private static int unquicken(Prototype p, int[] code, int pc, int instruction, int opcode) {
+		byte[] misses = p.quickenMisses;
+		if (misses == null) misses = p.quickenMisses = new byte[p.code.length];
+		if (misses[pc] < MAX_QUICKEN_MISSES) misses[pc]++;
+		return code[pc] = setOpcode(instruction, opcode);
+	}
+
+	private static void addKeyCache(Prototype p, int pc, LuaString key) {
+		LuaTable.KeyCache[] caches = p.keyCaches;
+		if (caches == null) caches = p.keyCaches = new LuaTable.KeyCache[p.code.length];
+		if (caches[pc] == null) caches[pc] = new LuaTable.KeyCache(key);
+	}
+
+	static LuaTable newTable(Prototype p, int pc, int narray, int nhash) {
+		LuaTable.AllocationSite[] sites = p.allocationSites;
+		if (sites == null) sites = p.allocationSites = new LuaTable.AllocationSite[p.code.length];
+		LuaTable.AllocationSite site = sites[pc];
+		if (site == null) site = sites[pc] = new LuaTable.AllocationSite();
+		return site.create(narray, nhash);
+	}
+
+	static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int base, int top, int total) throws LuaError, UnwindThrowable {
 		try {
 			do {
-				LuaValue left = stack[top - 2];
-				LuaValue right = stack[top - 1];
+				LuaValue left = stack[base + top - 2];
+				LuaValue right = stack[base + top - 1];
 
 				LuaString lString, rString;
 
@@ -652,18 +1119,18 @@ public final class LuaInterpreter {
 
 				if (!left.isString() || !right.isString()) {
 					// If one of these isn't convertible to a string then use the metamethod
-					stack[top - 2] = OperationHelper.concatNonStrings(state, left, right, top - 2, top - 1);
+					stack[base + top - 2] = OperationHelper.concatNonStrings(state, left, right, top - 2, top - 1);
 				} else if ((rString = right.checkLuaString()).length == 0) {
-					stack[top - 2] = left.checkLuaString();
+					stack[base + top - 2] = left.checkLuaString();
 				} else if ((lString = left.checkLuaString()).length == 0) {
-					stack[top - 2] = rString;
+					stack[base + top - 2] = rString;
 				} else {
 					int length = rString.length + lString.length;
-					stack[top - 2] = lString;
-					stack[top - 1] = rString;
+					stack[base + top - 2] = lString;
+					stack[base + top - 1] = rString;
 
 					for (; n < total; n++) {
-						LuaValue value = stack[top - n - 1];
+						LuaValue value = stack[base + top - n - 1];
 						if (!value.isString()) break;
 
 						LuaString string = value.checkLuaString();
@@ -672,20 +1139,11 @@ public final class LuaInterpreter {
 						if (string.length > Integer.MAX_VALUE - length) throw new LuaError("string length overflow");
 
 						// Otherwise increment the length and store this converted string
-						stack[top - n - 1] = string;
-						length += string.length;
-					}
-
-					byte[] buffer = new byte[length];
-					length = 0;
-					for (int j = n; j > 0; j--) {
-						LuaString string = (LuaString) stack[top - j];
-						System.arraycopy(string.bytes, string.offset, buffer, length, string.length);
+						stack[base + top - n - 1] = string;
 						length += string.length;
 					}
 
-					stack[top - n] = LuaString.valueOf(buffer);
-
+					stack[base + top - n] = state.stringCache.concat(stack, base + top - n, n, length);
 				}
 
 				// Got "n" strings and created one new one
@@ -698,9 +1156,50 @@ public final class LuaInterpreter {
 		}
 	}
 
-	public static void closeAll(Upvalue[] upvalues) {
-		if (upvalues == null) return;
-		for (Upvalue upvalue : upvalues) if (upvalue != null) upvalue.close();
+	/**
+	 * Find the open upvalue for a register, creating it if needed.
+	 *
+	 * @param frame The frame which owns this register.
+	 * @param stack The frame's stack.
+	 * @param index The absolute index of the register within {@code stack}.
+	 * @return The upvalue for this register.
+	 * @see DebugFrame#openUpvalues
+	 */
+	static Upvalue findUpvalue(DebugFrame frame, LuaValue[] stack, int index) {
+		Upvalue previous = null, upvalue = frame.openUpvalues;
+		while (upvalue != null && upvalue.index > index) {
+			previous = upvalue;
+			upvalue = upvalue.next;
+		}
+
+		if (upvalue != null && upvalue.index == index) return upvalue;
+
+		Upvalue created = new Upvalue(stack, index);
+		created.next = upvalue;
+		if (previous == null) {
+			frame.openUpvalues = created;
+		} else {
+			previous.next = created;
+		}
+		return created;
+	}
+
+	/**
+	 * Close all of a frame's open upvalues at or above a register.
+	 *
+	 * @param frame The frame whose upvalues should be closed.
+	 * @param from  The absolute index of the first register to close.
+	 * @see DebugFrame#openUpvalues
+	 */
+	public static void closeAll(DebugFrame frame, int from) {
+		Upvalue upvalue = frame.openUpvalues;
+		while (upvalue != null && upvalue.index >= from) {
+			Upvalue next = upvalue.next;
+			upvalue.close();
+			upvalue.next = null;
+			upvalue = next;
+		}
+		frame.openUpvalues = upvalue;
 	}
 
 	public static void resume(LuaState state, DebugFrame di, LuaInterpretedFunction function, Varargs varargs) throws LuaError, UnwindThrowable {
@@ -710,7 +1209,7 @@ public final class LuaInterpreter {
 		switch (((i >> POS_OP) & MAX_OP)) {
 			case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW: case OP_UNM:
 			case OP_GETTABLE: case OP_GETGLOBAL: case OP_SELF: {
-				di.stack[(i >> POS_A) & MAXARG_A] = varargs.first();
+				di.stack[di.base + ((i >> POS_A) & MAXARG_A)] = varargs.first();
 				break;
 			}
 
@@ -736,7 +1235,8 @@ public final class LuaInterpreter {
 				int c = (i >>> POS_C) & MAXARG_C;
 				if (c > 0) {
 					LuaValue[] stack = di.stack;
-					while (--c > 0) stack[a + c - 1] = varargs.arg(c);
+					int base = di.base;
+					while (--c > 0) stack[base + a + c - 1] = varargs.arg(c);
 					di.extras = NONE;
 				} else {
 					di.extras = varargs;
@@ -756,9 +1256,10 @@ public final class LuaInterpreter {
 				} else {
 					int a = (i >>> POS_A) & MAXARG_A;
 					LuaValue[] stack = di.stack;
-					stack[a + 2] = stack[a + 3] = o;
+					int base = di.base;
+					stack[base + a + 2] = stack[base + a + 3] = o;
 					for (int c = (i >>> POS_C) & MAXARG_C; c > 1; --c) {
-						stack[a + 2 + c] = varargs.arg(c);
+						stack[base + a + 2 + c] = varargs.arg(c);
 					}
 					di.extras = Constants.NONE;
 				}
@@ -769,17 +1270,18 @@ public final class LuaInterpreter {
 				int b = (i >>> POS_B) & MAXARG_B;
 
 				LuaValue[] stack = di.stack;
+				int base = di.base;
 				int top = di.top - 1;
 
-				stack[top - 1] = varargs.first();
+				stack[base + top - 1] = varargs.first();
 				int total = top - b;
 				if (total > 1) {
 					// Rewind time, we may end up executing this instruction multiple times.
 					di.pc--;
-					concat(state, di, stack, top, total);
+					concat(state, di, stack, base, top, total);
 					di.pc++;
 				}
-				stack[a] = stack[b];
+				stack[base + a] = stack[base + b];
 				di.top = top;
 
 				break;
@@ -802,16 +1304,16 @@ public final class LuaInterpreter {
 				Varargs ret;
 				switch (b) {
 					case 0:
-						ret = ValueFactory.varargsOf(di.stack, a, di.top - di.extras.count() - a, di.extras).asImmutable();
+						ret = ValueFactory.varargsOf(di.stack, di.base + a, di.top - di.extras.count() - a, di.extras).asImmutable();
 						break;
 					case 1:
 						ret = NONE;
 						break;
 					case 2:
-						ret = di.stack[a];
+						ret = di.stack[di.base + a];
 						break;
 					default:
-						ret = ValueFactory.varargsOf(di.stack, a, b - 1).asImmutable();
+						ret = ValueFactory.varargsOf(di.stack, di.base + a, b - 1).asImmutable();
 						break;
 				}
 
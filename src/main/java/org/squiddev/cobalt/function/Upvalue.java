@@ -35,7 +35,14 @@ import org.squiddev.cobalt.Prototype;
  */
 public final class Upvalue {
 	private LuaValue[] array; // initially the stack, becomes a holder
-	private int index;
+	int index;
+
+	/**
+	 * The next open upvalue in the owning frame's list, with a lower stack index.
+	 *
+	 * @see org.squiddev.cobalt.debug.DebugFrame#openUpvalues
+	 */
+	Upvalue next;
 
 	/**
 	 * Create an upvalue relative to a stack
@@ -164,6 +164,26 @@ public class BaseLib implements LuaLibrary {
 		return f;
 	}
 
+	/**
+	 * Determine whether a function is the built-in {@code next}, as returned by {@code pairs}.
+	 *
+	 * @param function The function to check.
+	 * @return Whether this is {@code next}.
+	 */
+	public static boolean isNext(LuaValue function) {
+		return BaseLibV.is(function, 18);
+	}
+
+	/**
+	 * Determine whether a function is the built-in {@code inext}, as returned by {@code ipairs}.
+	 *
+	 * @param function The function to check.
+	 * @return Whether this is {@code inext}.
+	 */
+	public static boolean isINext(LuaValue function) {
+		return BaseLibV.is(function, 19);
+	}
+
 	private static final class BaseLibV extends VarArgFunction {
 		private final BaseLib baselib;
 
@@ -171,6 +191,10 @@ public class BaseLib implements LuaLibrary {
 			this.baselib = baselib;
 		}
 
+		static boolean is(LuaValue function, int opcode) {
+			return function instanceof BaseLibV && ((BaseLibV) function).opcode == opcode;
+		}
+
 		@Override
 		public Varargs invoke(LuaState state, Varargs args) throws LuaError, UnwindThrowable {
 			// Note: Only dofile and tostring throw UnwindThrowable. This is safe, as it's a tail call.
@@ -201,7 +225,7 @@ public class BaseLib implements LuaLibrary {
 				case 3: // "getmetatable", // ( object ) -> table
 				{
 					LuaTable mt = args.checkValue(1).getMetatable(state);
-					return mt != null ? mt.rawget(Constants.METATABLE).optValue(mt) : Constants.NIL;
+					return mt != null ? mt.rawget(CachedMetamethod.METATABLE).optValue(mt) : Constants.NIL;
 				}
 				case 4: // "loadfile", // ( [filename] ) -> chunk | nil, msg
 				{
@@ -274,7 +298,7 @@ public class BaseLib implements LuaLibrary {
 				case 13: { // "setmetatable", // (table, metatable) -> table
 					final LuaValue t = args.first();
 					final LuaTable mt0 = t.getMetatable(state);
-					if (mt0 != null && !mt0.rawget(Constants.METATABLE).isNil()) {
+					if (mt0 != null && !mt0.rawget(CachedMetamethod.METATABLE).isNil()) {
 						throw new LuaError("cannot change a protected metatable");
 					}
 					final LuaValue mt = args.checkValue(2);
@@ -283,7 +307,7 @@ public class BaseLib implements LuaLibrary {
 				}
 				case 14: { // "tostring", // (e) -> value
 					LuaValue arg = args.checkValue(1);
-					LuaValue h = arg.metatag(state, Constants.TOSTRING);
+					LuaValue h = arg.metatag(state, CachedMetamethod.TOSTRING);
 					if (!h.isNil()) {
 						return OperationHelper.call(state, h, arg);
 					}
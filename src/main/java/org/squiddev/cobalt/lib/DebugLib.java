@@ -326,7 +326,7 @@ public class DebugLib extends VarArgFunction implements LuaLibrary {
 
 			LuaString name = di.getLocalName(local);
 			if (name == null || di.stack == null) return NIL;
-			LuaValue value = di.stack[local - 1];
+			LuaValue value = di.getRegister(local - 1);
 			return varargsOf(name, value);
 		}
 	}
@@ -346,7 +346,7 @@ public class DebugLib extends VarArgFunction implements LuaLibrary {
 		LuaString name = di.getLocalName(local);
 		if (name == null || di.stack == null) return NIL;
 
-		di.stack[local - 1] = value;
+		di.setRegister(local - 1, value);
 		return name;
 	}
 
@@ -45,6 +45,20 @@ public class FormatDesc {
 
 	private static boolean useOracleFormatting = true;
 
+	/**
+	 * The maximum number of digits a long can be written with (in octal).
+	 */
+	private static final int MAX_DIGITS = 22;
+
+	/**
+	 * The largest double which {@code %f} formats as an integer, without going through {@link FormattedFloatingDecimal}.
+	 * Every integer up to this can be represented exactly.
+	 */
+	private static final double MAX_EXACT_INTEGER = 1L << 53;
+
+	private static final byte[] LOWER_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+	private static final byte[] UPPER_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
 	FormatDesc(LuaString strfrmt, final int start) throws LuaError {
 		int p = start, n = strfrmt.length();
 		int c = 0;
@@ -125,32 +139,35 @@ public class FormatDesc {
 	}
 
 	public void format(Buffer buf, long number) {
-		String digits;
+		// Digits are written to the end of this array, so we never need to build an intermediate string.
+		byte[] digits = new byte[MAX_DIGITS];
+		int end = digits.length, start;
 		boolean hasSign = false;
 
 		switch (conversion) {
 			case 'x':
-				digits = Long.toHexString(number);
+				start = writeUnsigned(digits, end, number, 4, LOWER_DIGITS);
 				break;
 			case 'X':
-				digits = Long.toHexString(number).toUpperCase();
+				start = writeUnsigned(digits, end, number, 4, UPPER_DIGITS);
 				break;
 			case 'o':
-				digits = Long.toOctalString(number);
+				start = writeUnsigned(digits, end, number, 3, LOWER_DIGITS);
 				break;
 			case 'u': {
-				// In order to remain safe with Java 8 we inline Long.toUnsignedString
 				if (number >= 0) {
-					digits = Long.toString(number);
+					start = writeDecimal(digits, end, number);
 				} else {
+					// Split off the last digit, so the remainder fits within a signed long.
 					long quot = (number >>> 1) / 5;
 					long rem = number - quot * 10;
-					digits = Long.toString(quot) + rem;
+					digits[end - 1] = (byte) ('0' + rem);
+					start = writeDecimal(digits, end - 1, quot);
 				}
 				break;
 			}
 			default:
-				digits = Long.toString(number);
+				start = writeDecimal(digits, end, number);
 				hasSign = true;
 				break;
 		}
@@ -158,21 +175,14 @@ public class FormatDesc {
 		if (number == 0) {
 			// "%.0d" and "%.0o" will be "".
 			// "%#.0d" will be "", but "%#.0o" will be "0".
-			if (precision == 0 && (conversion != 'o' || !alternateForm)) digits = "";
+			if (precision == 0 && (conversion != 'o' || !alternateForm)) start = end;
 		}
 
-		int minWidth = digits.length();
-		int nDigits = minWidth;
+		int nDigits = end - start;
+		int minWidth = nDigits;
 		int nZeros;
 
-		if (hasSign) {
-			if (number < 0) {
-				nDigits--;
-				digits = digits.substring(1);
-			} else if (explicitPlus || space) {
-				minWidth++;
-			}
-		}
+		if (hasSign && (number < 0 || explicitPlus || space)) minWidth++;
 
 		String prefix = "";
 		if (number != 0 && alternateForm) {
@@ -219,11 +229,40 @@ public class FormatDesc {
 
 		buf.append(prefix);
 		if (nZeros > 0) pad(buf, '0', nZeros);
-		buf.append(digits);
+		buf.append(digits, start, end - start);
 
 		if (leftAdjust) pad(buf, ' ', nSpaces);
 	}
 
+	/**
+	 * Write the decimal digits of a number's magnitude, ending at {@code end}.
+	 *
+	 * @return The index of the first digit.
+	 */
+	private static int writeDecimal(byte[] digits, int end, long number) {
+		// Work with negative numbers, so Long.MIN_VALUE does not overflow.
+		if (number > 0) number = -number;
+		do {
+			digits[--end] = (byte) ('0' - number % 10);
+			number /= 10;
+		} while (number != 0);
+		return end;
+	}
+
+	/**
+	 * Write the digits of a number treated as unsigned, in a power-of-two base, ending at {@code end}.
+	 *
+	 * @return The index of the first digit.
+	 */
+	private static int writeUnsigned(byte[] digits, int end, long number, int shift, byte[] alphabet) {
+		int mask = (1 << shift) - 1;
+		do {
+			digits[--end] = alphabet[(int) number & mask];
+			number >>>= shift;
+		} while (number != 0);
+		return end;
+	}
+
 	public void format(Buffer buf, double number) {
 		int effectiveWidth = width;
 		if (number < 0 || explicitPlus || space) effectiveWidth--;
@@ -238,6 +277,8 @@ public class FormatDesc {
 			appendSign(buf, number);
 			buf.append(Character.isUpperCase(conversion) ? "INF" : "inf");
 			if (leftAdjust) pad(buf, ' ', effectiveWidth - 3);
+		} else if (conversion == 'f' && Math.abs(number) < MAX_EXACT_INTEGER && number == Math.rint(number)) {
+			formatInteger(buf, number, effectiveWidth);
 		} else {
 			if (useOracleFormatting) {
 				try {
@@ -264,6 +305,37 @@ public class FormatDesc {
 		}
 	}
 
+	/**
+	 * Format a double with an integer value using {@code %f}. As the number is exact, we can write the digits directly
+	 * rather than converting it to a decimal string first.
+	 *
+	 * @param buf            The buffer to write to
+	 * @param number         The number to write
+	 * @param effectiveWidth The width remaining after emitting the sign
+	 */
+	private void formatInteger(Buffer buf, double number, int effectiveWidth) {
+		int precision = this.precision == -1 ? 6 : this.precision;
+
+		byte[] digits = new byte[MAX_DIGITS];
+		int end = digits.length, start = writeDecimal(digits, end, (long) number);
+
+		effectiveWidth -= end - start;
+		if (precision > 0 || alternateForm) effectiveWidth -= 1 + precision;
+
+		// Spaces must occur before the sign but 0s afterwards
+		if (!zeroPad && !leftAdjust) pad(buf, ' ', effectiveWidth);
+		appendSign(buf, number);
+		if (zeroPad && !leftAdjust) pad(buf, '0', effectiveWidth);
+
+		buf.append(digits, start, end - start);
+		if (precision > 0 || alternateForm) {
+			buf.append('.');
+			pad(buf, '0', precision);
+		}
+
+		if (leftAdjust) pad(buf, ' ', effectiveWidth);
+	}
+
 	/**
 	 * Java's handling of format strings isn't entirely correct, so we attempt to roll our own.
 	 *
@@ -313,12 +385,8 @@ public class FormatDesc {
 			addZeros(mantissaBuilder, precision);
 		} else if (conversion == 'f') {
 			FormattedFloatingDecimal fd = FormattedFloatingDecimal.valueOf(Math.abs(number), precision, FormattedFloatingDecimal.Form.DECIMAL_FLOAT);
-			mantissa = fd.getMantissa();
-			exp = null;
-
-			mantissaBuilder = new StringBuilder(mantissa.length);
-			mantissaBuilder.append(mantissa);
-			addZeros(mantissaBuilder, precision);
+			formatFixed(buf, number, effectiveWidth, precision, fd.getMantissa());
+			return;
 		} else {
 			throw new IllegalStateException("Unknown converter " + conversion);
 		}
@@ -347,20 +415,57 @@ public class FormatDesc {
 		if (leftAdjust) pad(buf, ' ', effectiveWidth);
 	}
 
+	/**
+	 * Write the mantissa of a {@code %f} conversion, padding the fractional part with zeros. This is equivalent to
+	 * {@link #addZeros(StringBuilder, int)}, but writes directly to the buffer.
+	 *
+	 * @param buf            The buffer to write to
+	 * @param number         The number to write
+	 * @param effectiveWidth The width remaining after emitting the sign
+	 * @param precision      The number of digits after the decimal point
+	 * @param mantissa       The digits of the number, which may have fewer than {@code precision} fractional digits.
+	 */
+	private void formatFixed(Buffer buf, double number, int effectiveWidth, int precision, char[] mantissa) {
+		int dot = mantissa.length;
+		for (int i = 0; i < mantissa.length; i++) {
+			if (mantissa[i] == '.') {
+				dot = i;
+				break;
+			}
+		}
+
+		int fraction = dot == mantissa.length ? 0 : mantissa.length - dot - 1;
+		int zeros = precision - fraction;
+		boolean needDot = dot == mantissa.length && zeros > 0;
+
+		effectiveWidth -= mantissa.length + zeros + (needDot ? 1 : 0);
+		if (alternateForm && precision == 0) effectiveWidth--;
+
+		// Spaces must occur before the sign but 0s afterwards
+		if (!zeroPad && !leftAdjust) pad(buf, ' ', effectiveWidth);
+		appendSign(buf, number);
+		if (zeroPad && !leftAdjust) pad(buf, '0', effectiveWidth);
+
+		buf.append(mantissa);
+		if (needDot) buf.append('.');
+		pad(buf, '0', zeros);
+
+		// If the precision is zero and the '#' flag is set, add the requested decimal point.
+		if (alternateForm && precision == 0) buf.append('.');
+
+		if (leftAdjust) pad(buf, ' ', effectiveWidth);
+	}
+
 	public void format(Buffer buf, LuaString s) {
+		int length = s.length();
 		int nullindex = s.indexOf((byte) '\0', 0);
-		if (nullindex != -1) {
-			s = s.substring(0, nullindex);
-		}
-		if (precision >= 0 && s.length() > precision) {
-			s = s.substring(0, precision);
-		}
+		if (nullindex != -1) length = nullindex;
+		if (precision >= 0 && length > precision) length = precision;
 
-		int minwidth = s.length();
-		int nspaces = width > minwidth ? width - minwidth : 0;
+		int nspaces = width > length ? width - length : 0;
 		if (!leftAdjust) pad(buf, ' ', nspaces);
 
-		buf.append(s);
+		buf.append(s.bytes, s.offset, length);
 
 		if (leftAdjust) pad(buf, ' ', nspaces);
 	}
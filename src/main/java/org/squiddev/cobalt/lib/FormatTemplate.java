@@ -0,0 +1,192 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.*;
+
+import java.util.Arrays;
+
+/**
+ * A format string for {@code string.format}, which has been split into literal text and {@link FormatDesc}s ahead of
+ * time.
+ *
+ * Invalid conversions are not reported when the string is parsed. Instead, we stop parsing and throw the error after
+ * the preceding conversions have been formatted, so arguments are checked in the same order as before.
+ *
+ * @see LuaState#formatCache
+ */
+public final class FormatTemplate {
+	private static final int L_ESC = '%';
+
+	private final int length;
+
+	/**
+	 * The literal text before each conversion, and the text after the last one. Entries are {@code null} when there
+	 * is no text.
+	 */
+	private final LuaString[] literals;
+
+	private final FormatDesc[] conversions;
+
+	/**
+	 * The error to throw after formatting every conversion, or {@code null}.
+	 */
+	private final String error;
+
+	FormatTemplate(LuaString format) {
+		final int n = length = format.length();
+
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (format.luaByte(i) == L_ESC) count++;
+		}
+
+		LuaString[] literals = new LuaString[count + 1];
+		FormatDesc[] conversions = new FormatDesc[count];
+		String error = null;
+
+		byte[] literal = new byte[n];
+		int literalLength = 0;
+		int conversion = 0;
+		int i = 0;
+		while (i < n) {
+			int c = format.luaByte(i++);
+			if (c != L_ESC) {
+				literal[literalLength++] = (byte) c;
+			} else if (i >= n) {
+				error = "invalid option '%' to 'format'";
+				break;
+			} else if (format.luaByte(i) == L_ESC) {
+				++i;
+				literal[literalLength++] = (byte) L_ESC;
+			} else {
+				FormatDesc desc;
+				try {
+					desc = new FormatDesc(format, i);
+				} catch (LuaError e) {
+					error = e.getMessage();
+					break;
+				}
+
+				if (!isValid(desc.conversion)) {
+					error = "invalid option '%" + (char) desc.conversion + "' to 'format'";
+					break;
+				}
+
+				i += desc.length;
+				literals[conversion] = literal(literal, literalLength);
+				literalLength = 0;
+				conversions[conversion++] = desc;
+			}
+		}
+
+		literals[conversion] = literal(literal, literalLength);
+
+		this.literals = conversion < count ? Arrays.copyOf(literals, conversion + 1) : literals;
+		this.conversions = conversion < count ? Arrays.copyOf(conversions, conversion) : conversions;
+		this.error = error;
+	}
+
+	/**
+	 * Get the approximate number of bytes used by this parsed format string.
+	 *
+	 * @return The size of this format string.
+	 */
+	public int size() {
+		return length + (literals.length << 5) + (conversions.length << 6);
+	}
+
+	private static boolean isValid(int conversion) {
+		switch (conversion) {
+			case 'c':
+			case 'i': case 'd': case 'o': case 'u': case 'x': case 'X':
+			case 'e': case 'E': case 'f': case 'g': case 'G':
+			case 'q':
+			case 's':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static LuaString literal(byte[] bytes, int length) {
+		return length == 0 ? null : LuaString.valueOf(Arrays.copyOf(bytes, length));
+	}
+
+	LuaString format(Varargs args) throws LuaError {
+		Buffer result = new Buffer(length);
+		int arg = 1;
+
+		LuaString[] literals = this.literals;
+		FormatDesc[] conversions = this.conversions;
+		for (int i = 0; i < conversions.length; i++) {
+			LuaString literal = literals[i];
+			if (literal != null) result.append(literal);
+
+			FormatDesc fdsc = conversions[i];
+			arg++;
+			switch (fdsc.conversion) {
+				case 'c':
+					fdsc.format(result, (byte) args.arg(arg).checkLong());
+					break;
+				case 'i':
+				case 'd':
+				case 'o':
+				case 'u':
+				case 'x':
+				case 'X':
+					fdsc.format(result, args.arg(arg).checkLong());
+					break;
+				case 'e':
+				case 'E':
+				case 'f':
+				case 'g':
+				case 'G':
+					fdsc.format(result, args.arg(arg).checkDouble());
+					break;
+				case 'q':
+					StringLib.addQuoted(result, arg, args.arg(arg));
+					break;
+				case 's': {
+					LuaString s = OperationHelper.toString(args.arg(arg));
+					if (fdsc.precision == -1 && s.length() >= 100) {
+						result.append(s);
+					} else {
+						fdsc.format(result, s);
+					}
+					break;
+				}
+				default:
+					throw new IllegalStateException("Unknown conversion " + fdsc.conversion);
+			}
+		}
+
+		LuaString literal = literals[conversions.length];
+		if (literal != null) result.append(literal);
+
+		if (error != null) throw new LuaError(error);
+		return result.toLuaString();
+	}
+}
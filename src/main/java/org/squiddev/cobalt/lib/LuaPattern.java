@@ -0,0 +1,474 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.LuaError;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.LuaString;
+import org.squiddev.cobalt.StringSearch;
+
+import java.util.Arrays;
+
+/**
+ * A Lua pattern which has been decoded ahead of time, ready for use by {@link StringLib.MatchState}.
+ *
+ * Each item of the pattern is stored at the offset it starts at, along with the offset of the item which follows it.
+ * Character classes are converted to 256-bit sets, so matching a character is a single lookup rather than re-parsing
+ * the class each time. Items which match a single literal character store that character instead of a set.
+ *
+ * Malformed items are not reported when the pattern is compiled, but are instead stored as {@link #ERROR} items, so
+ * errors are only thrown when the matcher reaches them, as with the original interpreter.
+ *
+ * Patterns longer than {@link #MAX_COMPILED_LENGTH} are not compiled at all, and are instead matched directly against
+ * their source (see {@link #compiled}).
+ *
+ * @see LuaState#patternCache
+ */
+public final class LuaPattern {
+	private static final int L_ESC = '%';
+
+	/**
+	 * The maximum length of pattern which will be compiled.
+	 */
+	static final int MAX_COMPILED_LENGTH = 1024;
+
+	static final byte SINGLE = 1;
+	static final byte START_CAPTURE = 2;
+	static final byte POSITION_CAPTURE = 3;
+	static final byte END_CAPTURE = 4;
+	static final byte BALANCE = 5;
+	static final byte FRONTIER = 6;
+	static final byte BACK_REFERENCE = 7;
+	static final byte END_ANCHOR = 8;
+	static final byte ERROR = 9;
+
+	static final byte ONE = 0;
+	static final byte OPTIONAL = 1;
+	static final byte MANY = 2;
+	static final byte SOME = 3;
+	static final byte LAZY = 4;
+
+	/**
+	 * The source of this pattern.
+	 */
+	final LuaString pattern;
+
+	/**
+	 * The length of the pattern.
+	 */
+	final int length;
+
+	/**
+	 * If this pattern starts with {@code ^}.
+	 */
+	final boolean anchored;
+
+	/**
+	 * If this pattern has been compiled. When {@code false}, none of the item arrays are present and the pattern
+	 * should be matched against {@link #pattern} directly.
+	 */
+	final boolean compiled;
+
+	/**
+	 * The kind of each item, or {@code 0} if no item starts at this offset.
+	 */
+	final byte[] kinds;
+
+	/**
+	 * The quantifier of each {@link #SINGLE} item.
+	 */
+	final byte[] quantifiers;
+
+	/**
+	 * The offset of the item following each item.
+	 */
+	final int[] next;
+
+	/**
+	 * Additional data for each item:
+	 * <ul>
+	 * <li>The character for {@link #SINGLE} items which match one literal character.</li>
+	 * <li>The index of the character set, bitwise negated, for other {@link #SINGLE} items and {@link #FRONTIER}s.</li>
+	 * <li>The capture character for {@link #BACK_REFERENCE}s.</li>
+	 * <li>The opening and closing characters for {@link #BALANCE}s.</li>
+	 * </ul>
+	 */
+	final int[] args;
+
+	/**
+	 * The character sets used by this pattern, stored as four words per set.
+	 */
+	private long[] sets;
+	private int setCount;
+
+	private String[] errors;
+
+	/**
+	 * A searcher for the literal string every match must start with, or {@code null}.
+	 */
+	private final StringSearch prefix;
+
+	/**
+	 * The offset of the item every match must start with, or {@code -1}.
+	 */
+	private final int first;
+
+	/**
+	 * The single character every match must start with, or {@code -1}.
+	 */
+	private final int firstLiteral;
+
+	LuaPattern(LuaString pattern) {
+		this.pattern = pattern;
+		length = pattern.length();
+		anchored = length > 0 && pattern.luaByte(0) == '^';
+		compiled = length <= MAX_COMPILED_LENGTH;
+
+		if (!compiled) {
+			kinds = quantifiers = null;
+			next = args = null;
+			first = firstLiteral = -1;
+			prefix = null;
+			return;
+		}
+
+		kinds = new byte[length];
+		quantifiers = new byte[length];
+		next = new int[length];
+		args = new int[length];
+
+		compileFrom(0);
+		if (anchored) compileFrom(1);
+
+		// Find the first item which consumes a character. Every match (when not anchored) must start with it.
+		int offset = 0, captures = 0;
+		while (offset < length && (kinds[offset] == START_CAPTURE || kinds[offset] == POSITION_CAPTURE)) {
+			offset = next[offset];
+			captures++;
+		}
+
+		// Opening too many captures is an error, so we must attempt every position.
+		if (captures >= StringLib.MAX_CAPTURES || offset == length || kinds[offset] != SINGLE ||
+			(quantifiers[offset] != ONE && quantifiers[offset] != SOME)) {
+			first = firstLiteral = -1;
+			prefix = null;
+			return;
+		}
+
+		first = offset;
+		firstLiteral = literal(offset);
+
+		byte[] literals = new byte[length];
+		int literalCount = 0;
+		for (; offset < length; offset = next[offset]) {
+			byte kind = kinds[offset];
+			if (kind == START_CAPTURE || kind == POSITION_CAPTURE) {
+				if (++captures >= StringLib.MAX_CAPTURES) break;
+				continue;
+			}
+
+			int literal = kind == SINGLE && quantifiers[offset] == ONE ? literal(offset) : -1;
+			if (literal == -1) break;
+			literals[literalCount++] = (byte) literal;
+		}
+		prefix = literalCount > 1 ? new StringSearch(LuaString.valueOf(Arrays.copyOf(literals, literalCount))) : null;
+	}
+
+	/**
+	 * Get the approximate number of bytes used by this pattern's compiled form.
+	 *
+	 * @return The size of this pattern.
+	 */
+	public int size() {
+		return compiled ? length * 10 + (setCount << 5) : 0;
+	}
+
+	/**
+	 * Determine if a character is in the set for the item at this offset.
+	 *
+	 * @param offset The offset of the item.
+	 * @param c      The character to check.
+	 * @return If the character is in the item's set.
+	 */
+	boolean matches(int offset, int c) {
+		int arg = args[offset];
+		if (arg >= 0) return arg == c;
+		return (sets[(~arg << 2) | (c >>> 6)] & (1L << c)) != 0;
+	}
+
+	String error(int offset) {
+		return errors[offset];
+	}
+
+	/**
+	 * Find the first position at or after {@code start} where an unanchored match could begin.
+	 *
+	 * @param s     The string to search.
+	 * @param start The first position to consider.
+	 * @return The candidate position, or {@code -1} if no match can start at or after {@code start}.
+	 */
+	int find(LuaString s, int start) {
+		int length = s.length();
+		if (start > length) return -1;
+		if (prefix != null) return prefix.indexOf(s, start);
+		if (first == -1) return start;
+		if (firstLiteral != -1) return s.indexOf((byte) firstLiteral, start);
+
+		for (int i = start; i < length; i++) {
+			if (matches(first, s.luaByte(i))) return i;
+		}
+		return -1;
+	}
+
+	private int literal(int offset) {
+		int arg = args[offset];
+		if (arg >= 0) return arg;
+
+		int base = ~arg << 2, literal = -1;
+		for (int i = 0; i < 4; i++) {
+			long word = sets[base + i];
+			if (word == 0) continue;
+			if (literal != -1 || Long.bitCount(word) != 1) return -1;
+			literal = (i << 6) | Long.numberOfTrailingZeros(word);
+		}
+		return literal;
+	}
+
+	private void compileFrom(int offset) {
+		while (offset < length && kinds[offset] == 0) {
+			compile(offset);
+			if (kinds[offset] == ERROR || kinds[offset] == END_ANCHOR) return;
+			offset = next[offset];
+		}
+	}
+
+	private void compile(int offset) {
+		switch (pattern.luaByte(offset)) {
+			case '(':
+				if (offset + 1 < length && pattern.luaByte(offset + 1) == ')') {
+					item(offset, POSITION_CAPTURE, offset + 2);
+				} else {
+					item(offset, START_CAPTURE, offset + 1);
+				}
+				return;
+			case ')':
+				item(offset, END_CAPTURE, offset + 1);
+				return;
+			case L_ESC:
+				if (offset + 1 == length) {
+					error(offset, "malformed pattern (ends with '%')");
+					return;
+				}
+				switch (pattern.luaByte(offset + 1)) {
+					case 'b':
+						if (offset + 3 >= length) {
+							error(offset, "unbalanced pattern");
+						} else {
+							item(offset, BALANCE, offset + 4);
+							args[offset] = pattern.luaByte(offset + 2) | (pattern.luaByte(offset + 3) << 8);
+						}
+						return;
+					case 'f': {
+						int start = offset + 2;
+						if (start == length || pattern.luaByte(start) != '[') {
+							error(offset, "missing '[' after '%f' in pattern");
+							return;
+						}
+
+						int end;
+						try {
+							end = classEnd(start);
+						} catch (LuaError e) {
+							error(offset, e.getMessage());
+							return;
+						}
+
+						item(offset, FRONTIER, end);
+						bracketSet(newSet(offset), start, end - 1);
+						return;
+					}
+					default: {
+						int c = pattern.luaByte(offset + 1);
+						if (Character.isDigit((char) c)) {
+							item(offset, BACK_REFERENCE, offset + 2);
+							args[offset] = c;
+							return;
+						}
+					}
+				}
+				break;
+			case '$':
+				if (offset + 1 == length) {
+					item(offset, END_ANCHOR, length);
+					return;
+				}
+		}
+
+		int end;
+		try {
+			end = classEnd(offset);
+		} catch (LuaError e) {
+			error(offset, e.getMessage());
+			return;
+		}
+
+		switch (pattern.luaByte(offset)) {
+			case '.': {
+				int set = newSet(offset);
+				for (int i = 0; i < 4; i++) sets[set + i] = -1L;
+				break;
+			}
+			case L_ESC: {
+				int cl = pattern.luaByte(offset + 1), set = newSet(offset);
+				for (int c = 0; c < 256; c++) {
+					if (StringLib.MatchState.match_class(c, cl)) set(set, c);
+				}
+				break;
+			}
+			case '[':
+				bracketSet(newSet(offset), offset, end - 1);
+				break;
+			default:
+				args[offset] = pattern.luaByte(offset);
+				break;
+		}
+
+		byte quantifier;
+		switch (end < length ? pattern.luaByte(end) : '\0') {
+			case '?':
+				quantifier = OPTIONAL;
+				break;
+			case '*':
+				quantifier = MANY;
+				break;
+			case '+':
+				quantifier = SOME;
+				break;
+			case '-':
+				quantifier = LAZY;
+				break;
+			default:
+				quantifier = ONE;
+				break;
+		}
+
+		item(offset, SINGLE, quantifier == ONE ? end : end + 1);
+		quantifiers[offset] = quantifier;
+	}
+
+	private void item(int offset, byte kind, int next) {
+		kinds[offset] = kind;
+		this.next[offset] = next;
+	}
+
+	private void error(int offset, String message) {
+		if (errors == null) errors = new String[length];
+		kinds[offset] = ERROR;
+		errors[offset] = message;
+	}
+
+	/**
+	 * Allocate a new character set for an item.
+	 *
+	 * @param offset The offset of the item.
+	 * @return The index of the set's first word in {@link #sets}.
+	 */
+	private int newSet(int offset) {
+		int index = setCount++;
+		if (sets == null) {
+			sets = new long[16];
+		} else if (index << 2 == sets.length) {
+			sets = Arrays.copyOf(sets, sets.length << 1);
+		}
+
+		args[offset] = ~index;
+		return index << 2;
+	}
+
+	private void set(int set, int c) {
+		sets[set | (c >>> 6)] |= 1L << c;
+	}
+
+	private int classEnd(int offset) throws LuaError {
+		LuaString p = pattern;
+		switch (p.luaByte(offset++)) {
+			case L_ESC:
+				if (offset == length) {
+					throw new LuaError("malformed pattern (ends with %)");
+				}
+				return offset + 1;
+
+			case '[':
+				if (offset == length) throw new LuaError("malformed pattern (missing ']')");
+
+				if (p.luaByte(offset) == '^') {
+					offset++;
+					if (offset == length) throw new LuaError("malformed pattern (missing ']')");
+				}
+
+				do {
+					if (p.luaByte(offset++) == L_ESC && offset < length) offset++;
+					if (offset == length) throw new LuaError("malformed pattern (missing ']')");
+				} while (p.luaByte(offset) != ']');
+				return offset + 1;
+			default:
+				return offset;
+		}
+	}
+
+	/**
+	 * Fill in the set for a bracket class ({@code [...]}).
+	 *
+	 * @param set  The index of the set to fill in.
+	 * @param poff The offset of the opening {@code [}.
+	 * @param ec   The offset of the closing {@code ]}.
+	 */
+	private void bracketSet(int set, int poff, int ec) {
+		LuaString p = pattern;
+		boolean sig = true;
+		if (p.luaByte(poff + 1) == '^') {
+			sig = false;
+			poff++;
+		}
+		while (++poff < ec) {
+			if (p.luaByte(poff) == L_ESC) {
+				poff++;
+				int cl = p.luaByte(poff);
+				for (int c = 0; c < 256; c++) {
+					if (StringLib.MatchState.match_class(c, cl)) set(set, c);
+				}
+			} else if ((p.luaByte(poff + 1) == '-') && (poff + 2 < ec)) {
+				poff += 2;
+				for (int c = p.luaByte(poff - 2), end = p.luaByte(poff); c <= end; c++) set(set, c);
+			} else {
+				set(set, p.luaByte(poff));
+			}
+		}
+
+		if (!sig) {
+			for (int i = 0; i < 4; i++) sets[set + i] = ~sets[set + i];
+		}
+	}
+}
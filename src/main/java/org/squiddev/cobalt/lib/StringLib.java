@@ -85,7 +85,7 @@ public class StringLib implements LuaLibrary {
 						byte c = value[i];
 						if (c >= 'A' && c <= 'Z') value[i] = (byte) (c | 0x20);
 					}
-					return valueOf(value);
+					return state.stringCache.valueOf(value);
 				}
 
 				case 2: { // reverse (function)
@@ -95,7 +95,7 @@ public class StringLib implements LuaLibrary {
 					for (int i = 0, j = n - 1; i < n; i++, j--) {
 						b[j] = (byte) s.luaByte(i);
 					}
-					return LuaString.valueOf(b);
+					return state.stringCache.valueOf(b);
 				}
 				case 3: { // upper (function)
 					LuaString string = arg.checkLuaString();
@@ -107,7 +107,7 @@ public class StringLib implements LuaLibrary {
 						byte c = value[i];
 						if (c >= 'a' && c <= 'z') value[i] = (byte) (c & ~0x20);
 					}
-					return valueOf(value);
+					return state.stringCache.valueOf(value);
 				}
 			}
 			return NIL;
@@ -123,19 +123,19 @@ public class StringLib implements LuaLibrary {
 				case 1:
 					return byte_(args);
 				case 2:
-					return StringLib.char_(args);
+					return StringLib.char_(state, args);
 				case 3:
 					return StringLib.find(state, args);
 				case 4:
-					return StringLib.format(args);
+					return StringLib.format(state, args);
 				case 5:
 					return StringLib.gmatch(state, args);
 				case 6:
 					return StringLib.match(state, args);
 				case 7:
-					return StringLib.rep(args);
+					return StringLib.rep(state, args);
 				case 8:
-					return StringLib.sub(args);
+					return StringLib.sub(state, args);
 			}
 			return NONE;
 		}
@@ -212,11 +212,28 @@ public class StringLib implements LuaLibrary {
 	 *
 	 * Note that numerical codes are not necessarily portable across platforms.
 	 *
+	 * @param state The current Lua state
+	 * @param args  the calling VM
+	 * @return The characters for this string
+	 * @throws LuaError If the argument is not a number or is out of bounds.
+	 */
+	public static Varargs char_(LuaState state, Varargs args) throws LuaError {
+		return state.stringCache.valueOf(charBytes(args));
+	}
+
+	/**
+	 * string.char (...), using the shared string cache rather than a state's one.
+	 *
 	 * @param args the calling VM
 	 * @return The characters for this string
 	 * @throws LuaError If the argument is not a number or is out of bounds.
+	 * @see #char_(LuaState, Varargs)
 	 */
 	public static Varargs char_(Varargs args) throws LuaError {
+		return LuaString.valueOf(charBytes(args));
+	}
+
+	private static byte[] charBytes(Varargs args) throws LuaError {
 		int n = args.count();
 		byte[] bytes = new byte[n];
 		for (int i = 0, a = 1; i < n; i++, a++) {
@@ -226,7 +243,7 @@ public class StringLib implements LuaLibrary {
 			}
 			bytes[i] = (byte) c;
 		}
-		return LuaString.valueOf(bytes);
+		return bytes;
 	}
 
 	/**
@@ -299,75 +316,12 @@ public class StringLib implements LuaLibrary {
 	 *
 	 * @throws LuaError On invalid arguments.
 	 */
-	static Varargs format(Varargs args) throws LuaError {
+	static Varargs format(LuaState state, Varargs args) throws LuaError {
 		LuaString fmt = args.arg(1).checkLuaString();
-		final int n = fmt.length();
-		Buffer result = new Buffer(n);
-		int arg = 1;
-		int c;
-
-		for (int i = 0; i < n; ) {
-			switch (c = fmt.luaByte(i++)) {
-				case '\n':
-					result.append("\n");
-					break;
-				default:
-					result.append((byte) c);
-					break;
-				case L_ESC:
-					if (i < n) {
-						if (fmt.luaByte(i) == L_ESC) {
-							++i;
-							result.append((byte) L_ESC);
-						} else {
-							arg++;
-							FormatDesc fdsc = new FormatDesc(fmt, i);
-							i += fdsc.length;
-							switch (fdsc.conversion) {
-								case 'c':
-									fdsc.format(result, (byte) args.arg(arg).checkLong());
-									break;
-								case 'i':
-								case 'd':
-								case 'o':
-								case 'u':
-								case 'x':
-								case 'X':
-									fdsc.format(result, args.arg(arg).checkLong());
-									break;
-								case 'e':
-								case 'E':
-								case 'f':
-								case 'g':
-								case 'G':
-									fdsc.format(result, args.arg(arg).checkDouble());
-									break;
-								case 'q':
-									addQuoted(result, arg, args.arg(arg));
-									break;
-								case 's': {
-									LuaString s = OperationHelper.toString(args.arg(arg));
-									if (fdsc.precision == -1 && s.length() >= 100) {
-										result.append(s);
-									} else {
-										fdsc.format(result, s);
-									}
-								}
-								break;
-								default:
-									throw new LuaError("invalid option '%" + (char) fdsc.conversion + "' to 'format'");
-							}
-						}
-					} else {
-						throw new LuaError("invalid option '%' to 'format'");
-					}
-			}
-		}
-
-		return result.toLuaString();
+		return state.formatCache.get(fmt, FormatTemplate::new).format(args);
 	}
 
-	private static void addQuoted(Buffer buf, int arg, LuaValue s) throws LuaError {
+	static void addQuoted(Buffer buf, int arg, LuaValue s) throws LuaError {
 		switch (s.type()) {
 			case TSTRING:
 				addQuoted(buf, s.checkLuaString());
@@ -451,13 +405,20 @@ public class StringLib implements LuaLibrary {
 
 		public GMatchAux(LuaState state, LuaString src, LuaString pat) {
 			this.srclen = src.length();
-			this.ms = new MatchState(state.debug, src, pat);
+			this.ms = new MatchState(state.debug, src, pattern(state, pat));
 			this.soffset = 0;
 		}
 
 		@Override
 		public Varargs invoke(LuaState state, Varargs args) throws LuaError {
 			for (; soffset < srclen; soffset++) {
+				// Skip to the next position where a match could start.
+				soffset = ms.p.find(ms.s, soffset);
+				if (soffset == -1) {
+					soffset = srclen;
+					break;
+				}
+
 				ms.reset();
 				int res = ms.match(soffset, 0);
 				if (res >= 0) {
@@ -520,13 +481,12 @@ public class StringLib implements LuaLibrary {
 	static Varargs gsubRun(LuaState state, GSubState gsub, Varargs result) throws LuaError, UnwindThrowable {
 		LuaString src = gsub.string;
 		final int srclen = src.length();
-		LuaString p = gsub.pattern;
 		LuaValue repl = gsub.replace;
 		int max_s = gsub.maxS;
-		final boolean anchor = p.length() > 0 && p.charAt(0) == '^';
+		MatchState ms = gsub.ms;
+		final boolean anchor = ms.p.anchored;
 
 		Buffer lbuf = gsub.buffer;
-		MatchState ms = gsub.ms;
 
 		int soffset = 0;
 		while (gsub.n < max_s) {
@@ -534,6 +494,17 @@ public class StringLib implements LuaLibrary {
 			int res;
 
 			if (gsub.count == GSubState.EMPTY) {
+				if (!anchor) {
+					// Skip to the next position where a match could start, copying everything before it.
+					int next = ms.p.find(src, soffset);
+					if (next == -1) break;
+
+					if (next > soffset) {
+						lbuf.append(src.bytes, src.offset + soffset, next - soffset);
+						soffset = next;
+					}
+				}
+
 				// We haven't matched so we'll match here
 				gsub.count = res = ms.match(soffset, anchor ? 1 : 0);
 
@@ -570,7 +541,6 @@ public class StringLib implements LuaLibrary {
 
 		final Buffer buffer;
 		final LuaString string;
-		final LuaString pattern;
 		final LuaValue replace;
 		final int maxS;
 		int n;
@@ -581,11 +551,10 @@ public class StringLib implements LuaLibrary {
 		GSubState(LuaState state, LuaString src, LuaString pattern, LuaValue replace, int maxS) {
 			this.buffer = new Buffer(src.length);
 			this.string = src;
-			this.pattern = pattern;
 			this.replace = replace;
 			this.maxS = maxS;
 
-			ms = new MatchState(state.debug, src, pattern);
+			ms = new MatchState(state.debug, src, pattern(state, pattern));
 			count = EMPTY;
 		}
 	}
@@ -608,7 +577,7 @@ public class StringLib implements LuaLibrary {
 	 *
 	 * Returns a string that is the concatenation of n copies of the string s.
 	 */
-	static Varargs rep(Varargs args) throws LuaError {
+	static Varargs rep(LuaState state, Varargs args) throws LuaError {
 		LuaString s = args.arg(1).checkLuaString();
 		int n = args.arg(2).checkInteger();
 		int len = s.length();
@@ -622,7 +591,7 @@ public class StringLib implements LuaLibrary {
 			for (int offset = 0; offset < bytes.length; offset += len) {
 				s.copyTo(0, bytes, offset, len);
 			}
-			return LuaString.valueOf(bytes);
+			return state.stringCache.valueOf(bytes);
 		}
 	}
 
@@ -637,7 +606,7 @@ public class StringLib implements LuaLibrary {
 	 * string.sub(s, -i)
 	 * returns a suffix of s with length i.
 	 */
-	static Varargs sub(Varargs args) throws LuaError {
+	static Varargs sub(LuaState state, Varargs args) throws LuaError {
 		final LuaString s = args.arg(1).checkLuaString();
 		final int l = s.length();
 
@@ -648,12 +617,22 @@ public class StringLib implements LuaLibrary {
 		if (start < 1) start = 1;
 		if (end > l) end = l;
 		if (start <= end) {
-			return s.substring(start - 1, end);
+			return state.stringCache.valueOf(s.bytes, s.offset + start - 1, end - start + 1);
 		} else {
 			return EMPTYSTRING;
 		}
 	}
 
+	/**
+	 * Get the compiled form of a pattern, using the state's pattern cache. Patterns which are too long to be compiled
+	 * are not cached.
+	 */
+	private static LuaPattern pattern(LuaState state, LuaString pattern) {
+		return pattern.length() > LuaPattern.MAX_COMPILED_LENGTH
+			? new LuaPattern(pattern)
+			: state.patternCache.get(pattern, LuaPattern::new);
+	}
+
 	/**
 	 * This utility method implements both string.find and string.match.
 	 */
@@ -676,17 +655,14 @@ public class StringLib implements LuaLibrary {
 				return varargsOf(valueOf(result + 1), valueOf(result + pat.length()));
 			}
 		} else {
-			MatchState ms = new MatchState(state.debug, s, pat);
+			LuaPattern pattern = pattern(state, pat);
+			MatchState ms = new MatchState(state.debug, s, pattern);
 
-			boolean anchor = false;
-			int poff = 0;
-			if (pat.length() > 0 && pat.luaByte(0) == '^') {
-				anchor = true;
-				poff = 1;
-			}
+			boolean anchor = pattern.anchored;
+			int poff = anchor ? 1 : 0;
 
-			int soff = init;
-			do {
+			int soff = anchor ? init : pattern.find(s, init);
+			while (soff != -1) {
 				int res;
 				ms.reset();
 				if ((res = ms.match(soff, poff)) != -1) {
@@ -696,7 +672,10 @@ public class StringLib implements LuaLibrary {
 						return ms.push_captures(true, soff, res);
 					}
 				}
-			} while (soff++ < s.length() && !anchor);
+
+				if (anchor) break;
+				soff = pattern.find(s, soff + 1);
+			}
 		}
 		return NIL;
 	}
@@ -709,7 +688,7 @@ public class StringLib implements LuaLibrary {
 
 	private static final int L_ESC = '%';
 	private static final LuaString SPECIALS = valueOf("^$*+?.([%-");
-	private static final int MAX_CAPTURES = 32;
+	static final int MAX_CAPTURES = 32;
 
 	private static final int CAP_UNFINISHED = -1;
 	private static final int CAP_POSITION = -2;
@@ -760,12 +739,12 @@ public class StringLib implements LuaLibrary {
 	static class MatchState {
 		private final DebugHandler handler;
 		final LuaString s;
-		final LuaString p;
+		final LuaPattern p;
 		int level;
 		int[] cinit;
 		int[] clen;
 
-		MatchState(DebugHandler handler, LuaString s, LuaString pattern) {
+		MatchState(DebugHandler handler, LuaString s, LuaPattern pattern) {
 			this.handler = handler;
 			this.s = s;
 			this.p = pattern;
@@ -887,32 +866,6 @@ public class StringLib implements LuaLibrary {
 			throw new LuaError("invalid pattern capture");
 		}
 
-		int classend(int poffset) throws LuaError {
-			switch (p.luaByte(poffset++)) {
-				case L_ESC:
-					if (poffset == p.length()) {
-						throw new LuaError("malformed pattern (ends with %)");
-					}
-					return poffset + 1;
-
-				case '[':
-					if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
-
-					if (p.luaByte(poffset) == '^') {
-						poffset++;
-						if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
-					}
-
-					do {
-						if (p.luaByte(poffset++) == L_ESC && poffset < p.length()) poffset++;
-						if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
-					} while (p.luaByte(poffset) != ']');
-					return poffset + 1;
-				default:
-					return poffset;
-			}
-		}
-
 		static boolean match_class(int c, int cl) {
 			final char lcl = Character.toLowerCase((char) cl);
 			int cdata = CHAR_TABLE[c];
@@ -955,52 +908,93 @@ public class StringLib implements LuaLibrary {
 			return (lcl == cl) ? res : !res;
 		}
 
-		boolean matchbracketclass(int c, int poff, int ec) {
-			boolean sig = true;
-			if (p.luaByte(poff + 1) == '^') {
-				sig = false;
-				poff++;
-			}
-			while (++poff < ec) {
-				if (p.luaByte(poff) == L_ESC) {
-					poff++;
-					if (match_class(c, p.luaByte(poff))) {
-						return sig;
-					}
-				} else if ((p.luaByte(poff + 1) == '-') && (poff + 2 < ec)) {
-					poff += 2;
-					if (p.luaByte(poff - 2) <= c && c <= p.luaByte(poff)) {
-						return sig;
-					}
-				} else if (p.luaByte(poff) == c) return sig;
-			}
-			return !sig;
-		}
-
-		boolean singlematch(int c, int poff, int ep) {
-			switch (p.luaByte(poff)) {
-				case '.':
-					return true;
-				case L_ESC:
-					return match_class(c, p.luaByte(poff + 1));
-				case '[':
-					return matchbracketclass(c, poff, ep - 1);
-				default:
-					return p.luaByte(poff) == c;
-			}
-		}
-
 		/**
 		 * Perform pattern matching. If there is a match, returns offset into s
 		 * where match ends, otherwise returns -1.
 		 */
 		int match(int soffset, int poffset) throws LuaError {
+			final LuaPattern p = this.p;
+			if (!p.compiled) return matchDirect(soffset, poffset);
+
 			while (true) {
 				handler.poll();
 
 				// Check if we are at the end of the pattern -
 				// equivalent to the '\0' case in the C version, but our pattern
 				// string is not NUL-terminated.
+				if (poffset == p.length) {
+					return soffset;
+				}
+
+				int next = p.next[poffset];
+				switch (p.kinds[poffset]) {
+					case LuaPattern.START_CAPTURE:
+						return start_capture(soffset, next, CAP_UNFINISHED);
+					case LuaPattern.POSITION_CAPTURE:
+						return start_capture(soffset, next, CAP_POSITION);
+					case LuaPattern.END_CAPTURE:
+						return end_capture(soffset, next);
+					case LuaPattern.BALANCE:
+						soffset = matchbalance(soffset, p.args[poffset]);
+						if (soffset == -1) return -1;
+						poffset = next;
+						continue;
+					case LuaPattern.FRONTIER: {
+						int previous = (soffset == 0) ? 0 : s.luaByte(soffset - 1);
+						if (p.matches(poffset, previous) || (soffset < s.length && !p.matches(poffset, s.luaByte(soffset)))) {
+							return -1;
+						}
+						poffset = next;
+						continue;
+					}
+					case LuaPattern.BACK_REFERENCE:
+						soffset = match_capture(soffset, p.args[poffset]);
+						if (soffset == -1) {
+							return -1;
+						}
+						poffset = next;
+						continue;
+					case LuaPattern.END_ANCHOR:
+						return (soffset == s.length()) ? soffset : -1;
+					case LuaPattern.ERROR:
+						throw new LuaError(p.error(poffset));
+				}
+
+				boolean m = soffset < s.length() && p.matches(poffset, s.luaByte(soffset));
+				switch (p.quantifiers[poffset]) {
+					case LuaPattern.OPTIONAL:
+						int res;
+						if (m && ((res = match(soffset + 1, next)) != -1)) {
+							return res;
+						}
+						poffset = next;
+						continue;
+					case LuaPattern.MANY:
+						return max_expand(soffset, poffset, next);
+					case LuaPattern.SOME:
+						return (m ? max_expand(soffset + 1, poffset, next) : -1);
+					case LuaPattern.LAZY:
+						return min_expand(soffset, poffset, next);
+					default:
+						if (!m) {
+							return -1;
+						}
+						soffset++;
+						poffset = next;
+				}
+			}
+		}
+
+		/**
+		 * Match a pattern which has not been compiled, reading each item from the pattern's source as it is reached.
+		 *
+		 * @see #match(int, int)
+		 */
+		private int matchDirect(int soffset, int poffset) throws LuaError {
+			final LuaString p = this.p.pattern;
+			while (true) {
+				handler.poll();
+
 				if (poffset == p.length()) {
 					return soffset;
 				}
@@ -1019,7 +1013,8 @@ public class StringLib implements LuaLibrary {
 						}
 						switch (p.luaByte(poffset + 1)) {
 							case 'b':
-								soffset = matchbalance(soffset, poffset + 2);
+								if (poffset + 3 >= p.length()) throw new LuaError("unbalanced pattern");
+								soffset = matchbalance(soffset, p.luaByte(poffset + 2) | (p.luaByte(poffset + 3) << 8));
 								if (soffset == -1) return -1;
 								poffset += 4;
 								continue;
@@ -1028,7 +1023,7 @@ public class StringLib implements LuaLibrary {
 								if (poffset == p.length() || p.luaByte(poffset) != '[') {
 									throw new LuaError("missing '[' after '%f' in pattern");
 								}
-								int ep = classend(poffset);
+								int ep = classEnd(poffset);
 								int previous = (soffset == 0) ? 0 : s.luaByte(soffset - 1);
 								if (matchbracketclass(previous, poffset, ep - 1) || (soffset < s.length && !matchbracketclass(s.luaByte(soffset), poffset, ep - 1))) {
 									return -1;
@@ -1043,7 +1038,8 @@ public class StringLib implements LuaLibrary {
 									if (soffset == -1) {
 										return -1;
 									}
-									return match(soffset, poffset + 2);
+									poffset += 2;
+									continue;
 								}
 							}
 						}
@@ -1053,7 +1049,7 @@ public class StringLib implements LuaLibrary {
 							return (soffset == s.length()) ? soffset : -1;
 						}
 				}
-				int ep = classend(poffset);
+				int ep = classEnd(poffset);
 				boolean m = soffset < s.length() && singlematch(s.luaByte(soffset), poffset, ep);
 				int pc = (ep < p.length()) ? p.luaByte(ep) : '\0';
 
@@ -1066,11 +1062,11 @@ public class StringLib implements LuaLibrary {
 						poffset = ep + 1;
 						continue;
 					case '*':
-						return max_expand(soffset, poffset, ep);
+						return max_expand(soffset, poffset, ep + 1);
 					case '+':
-						return (m ? max_expand(soffset + 1, poffset, ep) : -1);
+						return (m ? max_expand(soffset + 1, poffset, ep + 1) : -1);
 					case '-':
-						return min_expand(soffset, poffset, ep);
+						return min_expand(soffset, poffset, ep + 1);
 					default:
 						if (!m) {
 							return -1;
@@ -1081,14 +1077,87 @@ public class StringLib implements LuaLibrary {
 			}
 		}
 
-		int max_expand(int soff, int poff, int ep) throws LuaError {
+		private int classEnd(int poffset) throws LuaError {
+			LuaString p = this.p.pattern;
+			switch (p.luaByte(poffset++)) {
+				case L_ESC:
+					if (poffset == p.length()) {
+						throw new LuaError("malformed pattern (ends with %)");
+					}
+					return poffset + 1;
+
+				case '[':
+					if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
+					if (p.luaByte(poffset) == '^') {
+						poffset++;
+						if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
+					}
+					do {
+						if (p.luaByte(poffset++) == L_ESC && poffset < p.length()) poffset++;
+						if (poffset == p.length()) throw new LuaError("malformed pattern (missing ']')");
+					} while (p.luaByte(poffset) != ']');
+					return poffset + 1;
+				default:
+					return poffset;
+			}
+		}
+
+		private boolean matchbracketclass(int c, int poff, int ec) {
+			LuaString p = this.p.pattern;
+			boolean sig = true;
+			if (p.luaByte(poff + 1) == '^') {
+				sig = false;
+				poff++;
+			}
+			while (++poff < ec) {
+				if (p.luaByte(poff) == L_ESC) {
+					poff++;
+					if (match_class(c, p.luaByte(poff))) {
+						return sig;
+					}
+				} else if ((p.luaByte(poff + 1) == '-') && (poff + 2 < ec)) {
+					poff += 2;
+					if (p.luaByte(poff - 2) <= c && c <= p.luaByte(poff)) {
+						return sig;
+					}
+				} else if (p.luaByte(poff) == c) return sig;
+			}
+			return !sig;
+		}
+
+		/**
+		 * Determine if a character matches a single item of the pattern.
+		 *
+		 * @param c    The character to match.
+		 * @param poff The offset of the item.
+		 * @param ep   The end of the item's character class. This is only used if the pattern is not compiled.
+		 * @return Whether this character matches.
+		 */
+		private boolean singlematch(int c, int poff, int ep) {
+			LuaPattern pattern = this.p;
+			if (pattern.compiled) return pattern.matches(poff, c);
+
+			LuaString p = pattern.pattern;
+			switch (p.luaByte(poff)) {
+				case '.':
+					return true;
+				case L_ESC:
+					return match_class(c, p.luaByte(poff + 1));
+				case '[':
+					return matchbracketclass(c, poff, ep - 1);
+				default:
+					return p.luaByte(poff) == c;
+			}
+		}
+
+		int max_expand(int soff, int poff, int next) throws LuaError {
 			int i = 0;
 			while (soff + i < s.length() &&
-				singlematch(s.luaByte(soff + i), poff, ep)) {
+				singlematch(s.luaByte(soff + i), poff, next - 1)) {
 				i++;
 			}
 			while (i >= 0) {
-				int res = match(soff + i, ep + 1);
+				int res = match(soff + i, next);
 				if (res != -1) {
 					return res;
 				}
@@ -1097,12 +1166,12 @@ public class StringLib implements LuaLibrary {
 			return -1;
 		}
 
-		int min_expand(int soff, int poff, int ep) throws LuaError {
+		int min_expand(int soff, int poff, int next) throws LuaError {
 			for (; ; ) {
-				int res = match(soff, ep + 1);
+				int res = match(soff, next);
 				if (res != -1) {
 					return res;
-				} else if (soff < s.length() && singlematch(s.luaByte(soff), poff, ep)) {
+				} else if (soff < s.length() && singlematch(s.luaByte(soff), poff, next - 1)) {
 					soff++;
 				} else {
 					return -1;
@@ -1146,16 +1215,12 @@ public class StringLib implements LuaLibrary {
 			}
 		}
 
-		int matchbalance(int soff, int poff) throws LuaError {
-			final int plen = p.length();
-			if (poff == plen || poff + 1 == plen) {
-				throw new LuaError("unbalanced pattern");
-			}
-			if (soff >= s.length() || s.luaByte(soff) != p.luaByte(poff)) {
+		int matchbalance(int soff, int delimiters) {
+			int b = delimiters & 0xFF;
+			int e = delimiters >>> 8;
+			if (soff >= s.length() || s.luaByte(soff) != b) {
 				return -1;
 			} else {
-				int b = p.luaByte(poff);
-				int e = p.luaByte(poff + 1);
 				int cont = 1;
 				while (++soff < s.length()) {
 					if (s.luaByte(soff) == e) {
@@ -115,10 +115,10 @@ public class TableLib implements LuaLibrary {
 					LuaTable table = args.arg(1).checkTable();
 					LuaValue compare = args.isNoneOrNil(2) ? NIL : args.arg(2).checkFunction();
 					int n = table.prepSort();
-					if (n > 1) {
+					if (n > 1 && (!compare.isNil() || !table.sortPrimitive(n))) {
 						SortState res = new SortState(table, n, compare);
 						di.state = res;
-						heapSort(state, table, n, compare, res, 0, n / 2 - 1);
+						sort(state, res);
 					}
 					return NONE;
 				}
@@ -165,22 +165,10 @@ public class TableLib implements LuaLibrary {
 		protected Varargs resumeThis(LuaState state, Object object, Varargs value) throws LuaError, UnwindThrowable {
 			switch (opcode) {
 				case 0: { // "sort" (table [, comp]) -> void
+					// Finish the comparison which yielded, and continue sorting.
 					SortState res = (SortState) object;
-					LuaTable table = res.table;
-					LuaValue compare = res.compare;
-					int count = res.count;
-
-					// We attempt to recover from sifting the state
-					if (res.siftState != -1) {
-						int root = stateSiftDown(state, table, compare, res, value.first().toBoolean());
-						res.siftState = -1;
-
-						// Continue sifting here
-						if (root != -1) normalSiftDown(state, table, root, res.end, compare, res);
-					}
-
-					// And continue sorting
-					heapSort(state, table, count, compare, res, res.sortState, res.counter);
+					res.apply(value.first().toBoolean());
+					sort(state, res);
 					return NONE;
 				}
 
@@ -297,119 +285,221 @@ public class TableLib implements LuaLibrary {
 		return NIL;
 	}
 
+	private static void sort(LuaState state, SortState res) throws LuaError, UnwindThrowable {
+		LuaValue compare = res.compare;
+		while (res.next()) {
+			LuaValue left = res.left, right = res.right;
+
+			boolean lessThan;
+			if (left.isNil() || right.isNil()) {
+				lessThan = false;
+			} else if (compare.isNil()) {
+				lessThan = OperationHelper.lt(state, left, right);
+			} else {
+				lessThan = OperationHelper.call(state, compare, left, right).toBoolean();
+			}
+
+			res.apply(lessThan);
+		}
+
+		LuaValue[] items = res.items;
+		LuaTable table = res.table;
+		for (int i = 0; i < items.length; i++) table.rawset(i + 1, items[i]);
+	}
+
+	/**
+	 * The state of a merge sort, which can be suspended at any comparison.
+	 *
+	 * We sort a copy of the list, first sorting small runs with an insertion sort and then merging them together. All
+	 * state is stored in this object, and the sort is driven by {@link #next()} (which finds the next pair of values
+	 * to compare) and {@link #apply(boolean)} (which consumes the result of that comparison). This means that, if the
+	 * comparison yields, we can continue from exactly the same point once it is resumed.
+	 */
 	private static final class SortState {
+		private static final int RUN = 8;
+
+		private static final int INSERT = 0;
+		private static final int MERGE = 1;
+		private static final int MERGE_CHECK = 2;
+		private static final int DONE = 3;
+
 		final LuaTable table;
-		final int count;
 		final LuaValue compare;
 
-		// Top level state
-		int sortState = 0;
-		int counter = -1;
+		/**
+		 * The current items to sort, and the buffer to merge them into.
+		 */
+		LuaValue[] items, buffer;
+
+		/**
+		 * The two values to compare. We want to determine if {@code left < right}.
+		 */
+		LuaValue left, right;
+
+		private int phase = INSERT;
+
+		// The current run or pair of runs being sorted.
+		private int start, middle, end;
 
-		int siftState = -1;
-		int root;
-		int child;
-		int end;
+		// Positions within the current run(s).
+		private int i, j, k;
+		private LuaValue current;
+		private int width = RUN;
 
 		private SortState(LuaTable table, int count, LuaValue compare) {
 			this.table = table;
-			this.count = count;
 			this.compare = compare;
+
+			LuaValue[] items = this.items = new LuaValue[count];
+			for (int i = 0; i < count; i++) items[i] = table.rawget(i + 1);
+
+			startInsert(0);
 		}
-	}
 
-	private static void heapSort(LuaState state, LuaTable table, int count, LuaValue compare, SortState res, int sortState, int counter) throws LuaError, UnwindThrowable {
-		switch (sortState) {
-			case 0: {
-				int start = counter;
-				try {
-					for (; start >= 0; --start) {
-						normalSiftDown(state, table, start, count - 1, compare, res);
-					}
-				} catch (UnwindThrowable e) {
-					res.sortState = 0;
-					res.counter = start - 1;
-					throw e;
+		/**
+		 * Advance the sort until the next comparison.
+		 *
+		 * @return If there is a comparison to perform, or {@code false} if the list is sorted.
+		 */
+		boolean next() {
+			LuaValue[] items = this.items;
+			while (true) {
+				switch (phase) {
+					case INSERT:
+						if (j > start) {
+							left = current;
+							right = items[j - 1];
+							return true;
+						}
+
+						items[j] = current;
+						nextInsert();
+						break;
+
+					case MERGE_CHECK:
+						// If the two runs are already in order, we can skip merging them.
+						left = items[middle];
+						right = items[middle - 1];
+						return true;
+
+					case MERGE:
+						if (i < middle && j < end) {
+							left = items[j];
+							right = items[i];
+							return true;
+						}
+
+						// One run is exhausted, so copy the remainder of the other.
+						if (i < middle) System.arraycopy(items, i, buffer, k, middle - i);
+						if (j < end) System.arraycopy(items, j, buffer, k, end - j);
+						nextMerge(end);
+						break;
+
+					case DONE:
+						left = right = null;
+						return false;
+
+					default:
+						throw new IllegalStateException("No such state " + phase);
 				}
-
-				// Allow explicit fall-through into the next state
-				// Therefore we want to reset all the various counters.
-				counter = count - 1;
 			}
+		}
 
-			case 1: {
-				int end = counter;
-				try {
-					for (; end > 0; ) {
-						table.swap(end, 0);
-						normalSiftDown(state, table, 0, --end, compare, res);
+		/**
+		 * Consume the result of the comparison set up by {@link #next()}.
+		 *
+		 * @param lessThan Whether {@code left < right}.
+		 */
+		void apply(boolean lessThan) {
+			LuaValue[] items = this.items;
+			switch (phase) {
+				case INSERT:
+					if (lessThan) {
+						items[j] = items[j - 1];
+						j--;
+					} else {
+						items[j] = current;
+						nextInsert();
 					}
-				} catch (UnwindThrowable e) {
-					res.sortState = 1;
-					res.counter = end;
-					throw e;
-				}
+					break;
+
+				case MERGE_CHECK:
+					if (lessThan) {
+						phase = MERGE;
+					} else {
+						System.arraycopy(items, start, buffer, start, end - start);
+						nextMerge(end);
+					}
+					break;
+
+				case MERGE:
+					// Take from the left run unless the right value is strictly smaller, keeping the sort stable.
+					buffer[k++] = lessThan ? items[j++] : items[i++];
+					break;
+
+				default:
+					throw new IllegalStateException("No such state " + phase);
 			}
 		}
-	}
 
-	private static void normalSiftDown(LuaState state, LuaTable table, int root, int end, LuaValue compare, SortState res) throws LuaError, UnwindThrowable {
-		int siftState = -1, child = -1;
-		try {
-			for (; root * 2 + 1 <= end; ) {
-				siftState = 0;
+		private void startInsert(int start) {
+			this.start = start;
+			end = Math.min(start + RUN, items.length);
+			i = start;
+			nextInsert();
+		}
 
-				child = root * 2 + 1;
-				if (child < end && table.compare(state, child, child + 1, compare)) {
-					++child;
-				}
+		private void nextInsert() {
+			if (++i < end) {
+				current = items[i];
+				j = i;
+			} else if (end < items.length) {
+				startInsert(end);
+			} else {
+				startPass();
+			}
+		}
+
+		private void startPass() {
+			if (width >= items.length) {
+				phase = DONE;
+				return;
+			}
 
-				siftState = 1;
+			if (buffer == null) buffer = new LuaValue[items.length];
+			startMerge(0);
+		}
 
-				if (table.compare(state, root, child, compare)) {
-					table.swap(root, child);
-					root = child;
-				} else {
-					return;
-				}
+		private void startMerge(int start) {
+			int length = items.length;
+			this.start = start;
+			middle = Math.min(start + width, length);
+			end = Math.min(start + width * 2, length);
+			i = start;
+			j = middle;
+			k = start;
+
+			if (middle < end) {
+				phase = MERGE_CHECK;
+			} else {
+				// Only a single run left, so just copy it.
+				System.arraycopy(items, start, buffer, start, end - start);
+				nextMerge(end);
 			}
-		} catch (UnwindThrowable e) {
-			res.root = root;
-			res.child = child;
-			res.siftState = siftState;
-			res.end = end;
-			throw e;
 		}
-	}
 
-	private static int stateSiftDown(LuaState state, LuaTable table, LuaValue compare, SortState res, boolean value) throws LuaError, UnwindThrowable {
-		int siftState = res.siftState;
-		int child = res.child;
-		int root = res.root;
-
-		switch (siftState) {
-			case 0:
-				if (value) child++;
-
-				// This is technically state 1 now, but we care about the exit
-				// point rather than the entry point
-				try {
-					value = table.compare(state, root, child, compare);
-				} catch (UnwindThrowable e) {
-					res.child = child;
-					res.siftState = 1;
-					throw e;
-				}
-				// Allow fall through
-			case 1:
-				if (value) {
-					table.swap(root, child);
-					return child;
-				} else {
-					return -1;
-				}
-			default:
-				throw new IllegalStateException("No such state " + siftState);
+		private void nextMerge(int next) {
+			if (next < items.length) {
+				startMerge(next);
+				return;
+			}
+
+			// Finished this pass, so swap the buffers and merge runs twice the size.
+			LuaValue[] merged = buffer;
+			buffer = items;
+			items = merged;
+			width *= 2;
+			startPass();
 		}
 	}
 }
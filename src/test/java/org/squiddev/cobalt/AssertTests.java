@@ -55,6 +55,8 @@ public class AssertTests {
 		"debug",
 		"debug-coroutine-hook",
 		"debug-getinfo",
+		"debug-hook-install",
+		"debug-return-hook",
 		"debug-upvalue",
 		"gc",
 		"immutable",
@@ -62,12 +64,15 @@ public class AssertTests {
 		"lex-context",
 		"lex-number",
 		"load-error",
+		"metamethod-cache",
 		"modulo-large",
 		"no-unwind",
 		"number-format",
 		"string-compare",
 		"string-issues",
 		"table",
+		"table-iterate",
+		"table-sort",
 		"time",
 		"tonumber",
 		"traceback",
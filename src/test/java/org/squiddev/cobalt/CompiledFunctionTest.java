@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+import org.squiddev.cobalt.function.ZeroArgFunction;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Runs various tests with every function compiled to JVM bytecode.
+ */
+public class CompiledFunctionTest {
+	@Test
+	public void compilesOnFirstCall() throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/");
+		helpers.setup(x -> x.compileThreshold(0));
+
+		String script = "local t = {} for i = 1, 10 do t[#t + 1] = i * 2 end local x = 0 for _, v in ipairs(t) do x = x + v end return x";
+		LuaInterpretedFunction function = (LuaInterpretedFunction) LoadState.load(helpers.state, new ByteArrayInputStream(script.getBytes()), "script", helpers.globals);
+		Varargs result = LuaThread.runMain(helpers.state, function);
+
+		assertNotNull(function.getPrototype().compiled);
+		assertEquals(110, result.first().toInteger());
+	}
+
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"baselib", "coroutinelib", "debuglib", "errors", "functions", "manyupvals", "mathlib", "metatags",
+		"stringlib", "tablelib", "tailcalls", "traceback", "upvalues", "vm",
+	})
+	public void compare(String name) throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/compare/");
+		helpers.setup(x -> x.compileThreshold(0));
+		helpers.runComparisonTest(name);
+	}
+
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"calls", "closure", "constructs", "db", "events", "locals", "math", "nextvar", "sort", "strings", "vararg",
+	})
+	public void lua51(String name) throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/assert/lua5.1/");
+		helpers.setup(x -> x.compileThreshold(0));
+		((LuaTable) helpers.globals.rawget("debug")).rawset("debug", new ZeroArgFunction() {
+			@Override
+			public LuaValue call(LuaState state) {
+				return Constants.NONE;
+			}
+		});
+		helpers.runWithDump(name);
+	}
+
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {"binarytrees", "fannkuch", "nbody", "nsieve"})
+	public void perf(String name) throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/perf/");
+		helpers.setupQuiet(x -> x.compileThreshold(0));
+		LuaThread.runMain(helpers.state, helpers.loadScript(name));
+	}
+}
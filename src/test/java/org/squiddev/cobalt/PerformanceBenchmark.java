@@ -43,22 +43,74 @@ public class PerformanceBenchmark {
 	public static class ScriptScope {
 		final ScriptHelper helpers = new ScriptHelper("/perf/");
 
+		/**
+		 * The number of calls before a function is compiled, or {@code -1} to only use the interpreter.
+		 */
+		@Param({"-1", "100"})
+		int compileThreshold;
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			helpers.setupQuiet(x -> x.compileThreshold(compileThreshold));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class StringScope {
+		final ScriptHelper helpers = new ScriptHelper("/perf/");
+
+		/**
+		 * The number of strings in each state's string cache, or {@code 0} to disable it.
+		 */
+		@Param({"0", "128"})
+		int stringCacheSize;
+
 		@Setup(Level.Iteration)
 		public void setup() {
-			helpers.setupQuiet();
+			helpers.setupQuiet(x -> x.stringCacheSize(stringCacheSize));
 		}
 	}
 
+	@Benchmark
+	public void append(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("append"), valueOf(10));
+	}
+
 	@Benchmark
 	public void binarytrees(ScriptScope scope) throws Exception {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("binarytrees"), valueOf(10));
 	}
 
+	@Benchmark
+	public void calls(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("calls"), valueOf(20));
+	}
+
+	@Benchmark
+	public void concat(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("concat"), valueOf(100000));
+	}
+
 	@Benchmark
 	public void fannkuch(ScriptScope scope) throws Exception {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("fannkuch"), valueOf(8));
 	}
 
+	@Benchmark
+	public void format(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("format"), valueOf(20));
+	}
+
+	@Benchmark
+	public void globals(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("globals"), valueOf(100));
+	}
+
+	@Benchmark
+	public void iterate(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("iterate"), valueOf(10));
+	}
+
 	@Benchmark
 	public void nbody(ScriptScope scope) throws Exception {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("nbody"), valueOf(50000));
@@ -69,6 +121,60 @@ public class PerformanceBenchmark {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("nsieve"), valueOf(8));
 	}
 
+	@Benchmark
+	public void patterns(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("patterns"), valueOf(50));
+	}
+
+	@Benchmark
+	public void presize(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("presize"), valueOf(10));
+	}
+
+	@Benchmark
+	public void search(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("search"), valueOf(5));
+	}
+
+	@Benchmark
+	public void sort(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("sort"), valueOf(3));
+	}
+
+	@Benchmark
+	public void strings(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("strings"), valueOf(50));
+	}
+
+	/**
+	 * Run {@link #strings(ScriptScope)} from several threads, each with its own state, so that any contention between
+	 * states shows up. This is run with and without each state's string cache.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void stringsThreaded4(StringScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("strings"), valueOf(50));
+	}
+
+	/**
+	 * As {@link #stringsThreaded4(StringScope)}, but with more threads than most machines have cores.
+	 */
+	@Benchmark
+	@Threads(16)
+	public void stringsThreaded16(StringScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("strings"), valueOf(50));
+	}
+
+	@Benchmark
+	public void tablehash(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("tablehash"), valueOf(100));
+	}
+
+	@Benchmark
+	public void vectors(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("vectors"), valueOf(200));
+	}
+
 	public static void main(String... args) throws RunnerException {
 		Options opts = new OptionsBuilder()
 			.include("org.squiddev.cobalt.PerformanceBenchmark.*")
@@ -44,7 +44,26 @@ public class PerformanceTest {
 	}
 
 	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
-	@ValueSource(strings = {"binarytrees", "fannkuch", "nbody", "nsieve", "primes"})
+	@ValueSource(strings = {
+		"append",
+		"binarytrees",
+		"calls",
+		"concat",
+		"fannkuch",
+		"format",
+		"globals",
+		"iterate",
+		"nbody",
+		"nsieve",
+		"patterns",
+		"presize",
+		"primes",
+		"search",
+		"sort",
+		"strings",
+		"tablehash",
+		"vectors",
+	})
 	public void run(String name) throws IOException, CompileException, LuaError, InterruptedException {
 		System.out.println("[" + name + "]");
 
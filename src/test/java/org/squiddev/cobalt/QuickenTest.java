@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.compiler.CompileException;
+import org.squiddev.cobalt.compiler.DumpState;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the interpreter's rewriting of instructions into specialised forms.
+ */
+public class QuickenTest {
+	private ScriptHelper helpers;
+
+	@BeforeEach
+	public void setup() {
+		helpers = new ScriptHelper("/");
+		helpers.setup();
+	}
+
+	private LuaInterpretedFunction load(String script) throws IOException, CompileException {
+		return (LuaInterpretedFunction) LoadState.load(helpers.state, new ByteArrayInputStream(script.getBytes()), "script", helpers.globals);
+	}
+
+	private static String print(Prototype proto) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Print.printCode(new PrintStream(output), proto);
+		return output.toString();
+	}
+
+	private static byte[] dump(Prototype proto) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		DumpState.dump(proto, output, false);
+		return output.toByteArray();
+	}
+
+	@Test
+	public void originalCodeUnchanged() throws Exception {
+		LuaInterpretedFunction function = load(
+			"local function add(a, b, c) return a + b - c end\n" +
+				"local t = { x = 1 }\n" +
+				"local y = 0\n" +
+				"for i = 1, 10 do y = add(y, t.x, i) end\n" +
+				"return y"
+		);
+		Prototype proto = function.getPrototype();
+		int[] code = proto.code.clone();
+		String printed = print(proto);
+		byte[] dumped = dump(proto);
+
+		assertEquals(-45, LuaThread.runMain(helpers.state, function).first().toInteger());
+
+		assertArrayEquals(code, proto.code);
+		assertNotNull(proto.quickened);
+		assertFalse(java.util.Arrays.equals(proto.code, proto.quickened), "Expected some instructions to be rewritten");
+		assertEquals(printed, print(proto));
+		assertArrayEquals(dumped, dump(proto));
+	}
+
+	@Test
+	public void deoptimises() throws Exception {
+		LuaInterpretedFunction function = load(
+			"local function get(t) return t.len end\n" +
+				"local function add(a, b) return a + b end\n" +
+				"local function call(f, x) return f(x) end\n" +
+				"local results = {}\n" +
+				"for i = 1, 3 do\n" +
+				"  results[#results + 1] = get({ len = i })\n" +
+				"  results[#results + 1] = add(i, 1)\n" +
+				"  results[#results + 1] = call(function(x) return x * 2 end, i)\n" +
+				"end\n" +
+				"assert(get('abc') == string.len)\n" +
+				"assert(add(1.5, 1) == 2.5)\n" +
+				"assert(add(2147483647, 1) == 2147483648)\n" +
+				"assert(add(setmetatable({}, { __add = function() return 'meta' end }), 1) == 'meta')\n" +
+				"assert(call(tostring, 1) == '1')\n" +
+				"assert(call(function(...) return select('#', ...) end, 1) == 1)\n" +
+				"assert(add(1, 2) == 3 and get({ len = 4 }) == 4 and call(function(x) return x end, 5) == 5)\n" +
+				"return table.concat(results, ',')"
+		);
+
+		assertEquals("1,2,2,2,3,4,3,4,6", LuaThread.runMain(helpers.state, function).first().toString());
+	}
+
+	@Test
+	public void numericForLoops() throws Exception {
+		LuaInterpretedFunction function = load(
+			"local function count(a, b, c) local n, last = 0; for i = a, b, c do n = n + 1; last = i end; return n .. ':' .. tostring(last) end\n" +
+				"local results = {\n" +
+				"  count(1, 1000, 1), count(10, 1, -3), count(1, 2, 0.5), count(1, 1000, 1),\n" +
+				"  count(2147483640, 2147483647, 3), count(-2147483647, -2147483648, -1),\n" +
+				"  count(1, 3.5, 1), count(1, 0, 1), count('1', '3', '1'),\n" +
+				"}\n" +
+				"return table.concat(results, ',')"
+		);
+
+		assertEquals("1000:1000,4:1,3:2,1000:1000,3:2147483646,2:-2147483648,3:3,0:nil,3:3", LuaThread.runMain(helpers.state, function).first().toString());
+	}
+}
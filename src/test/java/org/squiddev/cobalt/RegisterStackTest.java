@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.compiler.CompileException;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks frames sharing the thread's register stack.
+ */
+public class RegisterStackTest {
+	private ScriptHelper helpers;
+
+	@BeforeEach
+	public void setup() {
+		helpers = new ScriptHelper("/");
+		helpers.setup();
+	}
+
+	private LuaValue run(String script) throws IOException, CompileException, LuaError, InterruptedException {
+		LuaInterpretedFunction function = (LuaInterpretedFunction) LoadState.load(helpers.state, new ByteArrayInputStream(script.getBytes()), "script", helpers.globals);
+		return LuaThread.runMain(helpers.state, function).first();
+	}
+
+	@Test
+	public void recursionAcrossSegments() throws Exception {
+		// Each call captures a local, so open upvalues exist on every segment.
+		assertEquals(5050, run(
+			"local function sum(n)\n" +
+				"  if n == 0 then return 0 end\n" +
+				"  local x = n\n" +
+				"  local get = function() return x end\n" +
+				"  local rest = sum(n - 1)\n" +
+				"  x = x + 0\n" +
+				"  return get() + rest\n" +
+				"end\n" +
+				"local total = 0\n" +
+				"for _ = 1, 3 do total = sum(100) end\n" +
+				"return total"
+		).toInteger());
+	}
+
+	@Test
+	public void upvaluesClosedOnReturn() throws Exception {
+		assertEquals("1,2,3,4,5", run(
+			"local fns = {}\n" +
+				"local function make(i) local v = i; return function() return v end end\n" +
+				"for i = 1, 5 do fns[i] = make(i) end\n" +
+				"-- Reuse the registers the closures captured from.\n" +
+				"local function clobber(a, b, c, d) return a, b, c, d end\n" +
+				"for i = 1, 5 do clobber('x', 'y', 'z', 'w') end\n" +
+				"local out = {}\n" +
+				"for i = 1, 5 do out[i] = fns[i]() end\n" +
+				"return table.concat(out, ',')"
+		).toString());
+	}
+
+	@Test
+	public void upvaluesSharedAndClosedByBlock() throws Exception {
+		// Captures out of order, shared captures and per-iteration captures closed by OP_CLOSE.
+		assertEquals("3,13,2,1,2,3|20,10", run(
+			"local a, b, c = 1, 2, 3\n" +
+				"local getC = function() return c end\n" +
+				"local setA = function(v) a = v end\n" +
+				"local getA = function() return a end\n" +
+				"local getB = function() return b end\n" +
+				"local fns = {}\n" +
+				"for i = 1, 3 do local x = i; fns[i] = function() return x end end\n" +
+				"setA(13)\n" +
+				"local out = { getC(), getA(), getB(), fns[1](), fns[2](), fns[3]() }\n" +
+				"local function pair() local v = 10; local w = 20; return function() return w end, function() return v end end\n" +
+				"local w, v = pair()\n" +
+				"return table.concat(out, ',') .. '|' .. w() .. ',' .. v()"
+		).toString());
+	}
+
+	@Test
+	public void errorsReleaseRegisters() throws Exception {
+		assertEquals("nil,nil,3", run(
+			"local function fail(n) local a, b = 'a', 'b'; if n == 0 then error('x') end; return fail(n - 1), a end\n" +
+				"for _ = 1, 10 do pcall(fail, 50) end\n" +
+				"local function fresh() local a, b; return tostring(a), tostring(b) end\n" +
+				"local x, y = fresh()\n" +
+				"return x .. ',' .. y .. ',' .. select('#', 1, 2, 3)"
+		).toString());
+	}
+
+	@Test
+	public void coroutinesHaveSeparateStacks() throws Exception {
+		assertEquals(30, run(
+			"local function gen(n)\n" +
+				"  return coroutine.wrap(function() for i = 1, n do local x = i; coroutine.yield(function() return x end) end end)\n" +
+				"end\n" +
+				"local a, b = gen(5), gen(5)\n" +
+				"local total = 0\n" +
+				"for _ = 1, 5 do total = total + a()() + b()() end\n" +
+				"return total"
+		).toInteger());
+	}
+
+	@Test
+	public void multipleResults() throws Exception {
+		assertEquals("1,2,nil|3|1,2,3,4,5,6,7,8,9,10,11,12|x,a,b,c|40", run(
+			"local function two() return 1, 2 end\n" +
+				"local function many() return 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 end\n" +
+				"local function mixed() return 'x', string.match('abc', '(a)(b)(c)') end\n" +
+				"local function count(...) return select('#', ...) end\n" +
+				"local function big(n) local t = {} for i = 1, n do t[i] = i end return unpack(t) end\n" +
+				"local function pass(...) return ... end\n" +
+				"local a, b, c = two()\n" +
+				"return table.concat({ tostring(a), tostring(b), tostring(c) }, ',')\n" +
+				"  .. '|' .. count(two(), 3, 4)\n" +
+				"  .. '|' .. table.concat({ many() }, ',')\n" +
+				"  .. '|' .. table.concat({ pass(mixed()) }, ',')\n" +
+				"  .. '|' .. count(pass(big(40)))"
+		).toString());
+	}
+}
@@ -70,7 +70,12 @@ public class ScriptHelper extends FileResourceManipulator {
 	}
 
 	public void setupQuiet() {
-		setupCommon(LuaState.builder()
+		setupQuiet(x -> {
+		});
+	}
+
+	public void setupQuiet(Consumer<LuaState.Builder> extend) {
+		LuaState.Builder builder = LuaState.builder()
 			.resourceManipulator(this)
 			.stdout(new PrintStream(new OutputStream() {
 				@Override
@@ -80,8 +85,9 @@ public class ScriptHelper extends FileResourceManipulator {
 				@Override
 				public void write(byte[] b, int off, int len) {
 				}
-			}))
-			.build());
+			}));
+		extend.accept(builder);
+		setupCommon(builder.build());
 	}
 
 	private void setupCommon(LuaState state) {
@@ -172,7 +178,7 @@ public class ScriptHelper extends FileResourceManipulator {
 				Prototype proto = frame.closure.getPrototype();
 				for (int local = 0; local < proto.maxstacksize; local++) {
 					LuaString name = frame.getLocalName(local + 1);
-					if (name != null) System.out.printf("  %02x | %10s = %s\n", local, name, frame.stack[local]);
+					if (name != null) System.out.printf("  %02x | %10s = %s\n", local, name, frame.getRegister(local));
 				}
 			}
 			throw e;
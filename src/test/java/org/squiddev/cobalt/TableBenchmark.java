@@ -0,0 +1,213 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Measures {@link LuaTable}'s Java APIs, which cannot be reached from the Lua scripts run by
+ * {@link PerformanceBenchmark}.
+ *
+ * The {@code *Loop} benchmarks do the same work as the bulk API they are named after, one {@code rawset} or
+ * {@code rawget} at a time. Lists have 10,000 elements, and maps 1,000 string keys.
+ *
+ * The {@code iterate*} benchmarks sum the values of a table with 100,000 list entries and 100,000 string keys, using
+ * the {@link LuaTable#next(LuaValue)} loop, {@link LuaTable#entryIterator()} and {@link LuaTable#entrySpliterator()}.
+ * The first two also read every key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class TableBenchmark {
+	@State(Scope.Thread)
+	public static class DataScope {
+		final double[] doubles = new double[10000];
+		final int[] ints = new int[10000];
+		final List<LuaValue> values = new ArrayList<>();
+		final double[] doublesOut = new double[10000];
+		final LuaValue[] valuesOut = new LuaValue[10000];
+		final Map<LuaValue, LuaValue> entries = new HashMap<>();
+		final LuaTable mixed = new LuaTable();
+		LuaTable list;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			for (int i = 0; i < doubles.length; i++) {
+				doubles[i] = i * 0.5;
+				ints[i] = i;
+				values.add(valueOf("v" + i));
+			}
+			for (int i = 0; i < 1000; i++) entries.put(valueOf("key" + i), valueOf(i));
+			list = ValueFactory.listOf(doubles);
+
+			for (int i = 1; i <= 100000; i++) {
+				mixed.rawset(i, valueOf(i));
+				mixed.rawset("k" + i, valueOf(i));
+			}
+		}
+	}
+
+	@Benchmark
+	public LuaTable listOfDoublesLoop(DataScope scope) {
+		double[] doubles = scope.doubles;
+		LuaTable table = new LuaTable();
+		for (int i = 0; i < doubles.length; i++) table.rawset(i + 1, valueOf(doubles[i]));
+		return table;
+	}
+
+	@Benchmark
+	public LuaTable listOfDoubles(DataScope scope) {
+		return ValueFactory.listOf(scope.doubles);
+	}
+
+	@Benchmark
+	public LuaTable listOfIntsLoop(DataScope scope) {
+		int[] ints = scope.ints;
+		LuaTable table = new LuaTable();
+		for (int i = 0; i < ints.length; i++) table.rawset(i + 1, valueOf(ints[i]));
+		return table;
+	}
+
+	@Benchmark
+	public LuaTable listOfInts(DataScope scope) {
+		return ValueFactory.listOf(scope.ints);
+	}
+
+	@Benchmark
+	public LuaTable listOfCollectionLoop(DataScope scope) {
+		LuaTable table = new LuaTable();
+		int i = 0;
+		for (LuaValue value : scope.values) table.rawset(++i, value);
+		return table;
+	}
+
+	@Benchmark
+	public LuaTable listOfCollection(DataScope scope) {
+		return ValueFactory.listOf(scope.values);
+	}
+
+	@Benchmark
+	public double[] copyToDoublesLoop(DataScope scope) throws LuaError {
+		double[] out = scope.doublesOut;
+		LuaTable table = scope.list;
+		for (int i = 0; i < out.length; i++) out[i] = table.rawget(i + 1).checkDouble();
+		return out;
+	}
+
+	@Benchmark
+	public double[] copyToDoubles(DataScope scope) throws LuaError {
+		scope.list.copyTo(1, scope.doublesOut, 0, scope.doublesOut.length);
+		return scope.doublesOut;
+	}
+
+	@Benchmark
+	public LuaValue[] copyToValuesLoop(DataScope scope) {
+		LuaValue[] out = scope.valuesOut;
+		LuaTable table = scope.list;
+		for (int i = 0; i < out.length; i++) out[i] = table.rawget(i + 1);
+		return out;
+	}
+
+	@Benchmark
+	public LuaValue[] copyToValues(DataScope scope) {
+		scope.list.copyTo(1, scope.valuesOut, 0, scope.valuesOut.length);
+		return scope.valuesOut;
+	}
+
+	@Benchmark
+	public LuaTable tableOfMapLoop(DataScope scope) {
+		LuaTable table = new LuaTable();
+		for (Map.Entry<LuaValue, LuaValue> entry : scope.entries.entrySet()) table.rawset(entry.getKey(), entry.getValue());
+		return table;
+	}
+
+	@Benchmark
+	public LuaTable tableOfMap(DataScope scope) {
+		return ValueFactory.tableOf(scope.entries);
+	}
+
+	@Benchmark
+	public LuaTable rawsetAll(DataScope scope) {
+		LuaTable table = new LuaTable();
+		table.rawsetAll(scope.entries);
+		return table;
+	}
+
+	@Benchmark
+	public long iterateNext(DataScope scope) throws LuaError {
+		long sum = 0;
+		LuaValue k = Constants.NIL;
+		while (true) {
+			Varargs n = scope.mixed.next(k);
+			if ((k = n.first()).isNil()) break;
+			sum += n.arg(2).toInteger() + (k.isString() ? 1 : 0);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long iterateAdvance(DataScope scope) {
+		long sum = 0;
+		LuaTable.EntryIterator iterator = scope.mixed.entryIterator();
+		while (iterator.advance()) sum += iterator.value().toInteger() + (iterator.key().isString() ? 1 : 0);
+		return sum;
+	}
+
+	@Benchmark
+	public long iterateSpliterator(DataScope scope) {
+		return StreamSupport.stream(scope.mixed.entrySpliterator(), false).mapToLong(x -> x.getValue().toInteger()).sum();
+	}
+
+	@Benchmark
+	public long iterateParallelStream(DataScope scope) {
+		return StreamSupport.stream(scope.mixed.entrySpliterator(), true).mapToLong(x -> x.getValue().toInteger()).sum();
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.TableBenchmark.*")
+			.warmupIterations(5)
+			.measurementIterations(5)
+			.measurementTime(TimeValue.milliseconds(5000))
+			.jvmArgsPrepend("-server")
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
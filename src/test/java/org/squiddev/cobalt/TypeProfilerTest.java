@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.debug.TypeProfiler;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.Lua.*;
+
+/**
+ * Checks the types and targets recorded by {@link TypeProfiler}.
+ */
+public class TypeProfilerTest {
+	private final TypeProfiler profiler = new TypeProfiler();
+	private ScriptHelper helpers;
+
+	@BeforeEach
+	public void setup() {
+		helpers = new ScriptHelper("/");
+		helpers.setup(x -> x.debug(profiler));
+	}
+
+	private Prototype run(String script) throws Exception {
+		LuaInterpretedFunction function = (LuaInterpretedFunction) LoadState.load(helpers.state, new ByteArrayInputStream(script.getBytes()), "script", helpers.globals);
+		LuaThread.runMain(helpers.state, function);
+		return function.getPrototype();
+	}
+
+	private TypeProfiler.Site site(Prototype proto, int opcode) {
+		TypeProfiler.FunctionProfile profile = profiler.getProfile(proto);
+		assertNotNull(profile, "Function was not profiled");
+		for (int pc = 0; pc < proto.code.length; pc++) {
+			if (GET_OPCODE(proto.code[pc]) == opcode) return profile.getSite(pc);
+		}
+		throw new AssertionError("No such instruction " + Print.OPNAMES[opcode]);
+	}
+
+	@Test
+	public void arithmeticTypes() throws Exception {
+		Prototype proto = run("local function add(a, b) return a + b end\n" +
+			"for i = 1, 10 do add(i, 1) end\n" +
+			"add(1.5, 2)"
+		);
+
+		TypeProfiler.Site site = site(proto.p[0], OP_ADD);
+		assertEquals(11, site.getCount());
+		assertEquals(TypeProfiler.INTEGER | 1 << Constants.TNUMBER, site.getTypes(0));
+		assertEquals(TypeProfiler.INTEGER, site.getTypes(1));
+		assertEquals("integer|double", TypeProfiler.typeNames(site.getTypes(0)));
+	}
+
+	@Test
+	public void tableHits() throws Exception {
+		Prototype proto = run("local t = setmetatable({ x = 1 }, { __index = function() return 2 end })\n" +
+			"local function get(t, k) return t[k] end\n" +
+			"for i = 1, 3 do get(t, 'x') end\n" +
+			"get(t, 'y')\n" +
+			"pcall(get, 'str', 'len')"
+		);
+
+		TypeProfiler.Site site = site(proto.p[1], OP_GETTABLE);
+		assertEquals(3, site.getHits());
+		assertEquals(2, site.getMisses());
+		assertEquals(1 << Constants.TTABLE | 1 << Constants.TSTRING, site.getTypes(0));
+		assertEquals(1 << Constants.TSTRING, site.getTypes(1));
+	}
+
+	@Test
+	public void callTargets() throws Exception {
+		Prototype proto = run("local function call(f) return f() end\n" +
+			"local function make() return function() end end\n" +
+			"for i = 1, 3 do call(make()) end\n" +
+			"local function poly(fs) for i = 1, #fs do fs[i]() end end\n" +
+			"poly({ print, function() end, function() end, function() end, function() end })"
+		);
+
+		TypeProfiler.Site mono = site(proto.p[0], OP_TAILCALL);
+		assertEquals(3, mono.getCount());
+		assertTrue(mono.isMonomorphic());
+
+		TypeProfiler.Site mega = site(proto.p[2], OP_CALL);
+		assertTrue(mega.isMegamorphic());
+		assertFalse(mega.isMonomorphic());
+	}
+
+	@Test
+	public void printsProfile() throws Exception {
+		Prototype proto = run("local x = 0 for i = 1, 3 do x = x + i end");
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Print.printCode(new PrintStream(output), proto, profiler);
+		String printed = output.toString();
+		assertTrue(printed.contains("ADD") && printed.contains("; count=3 left=integer right=integer"), printed);
+	}
+}
@@ -27,6 +27,9 @@ package org.squiddev.cobalt.table;
 import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -358,4 +361,148 @@ public class TableArrayTest {
 		}
 	}
 
+	@Test
+	public void testNumericValues() throws LuaError {
+		LuaTable t = new LuaTable();
+		LuaValue[] values = {
+			ValueFactory.valueOf(1), ValueFactory.valueOf(-5000), ValueFactory.valueOf(2.5), Constants.NIL,
+			ValueFactory.valueOf(1e300), LuaDouble.NAN, LuaDouble.NEGINF, ValueFactory.valueOf(Integer.MAX_VALUE),
+			ValueFactory.valueOf(4294967296.0),
+		};
+		for (int i = 0; i < values.length; i++) t.rawset(i + 1, values[i]);
+
+		for (int i = 0; i < values.length; i++) {
+			LuaValue value = t.rawget(i + 1);
+			assertEquals(values[i].getClass(), value.getClass(), "Type of value " + (i + 1));
+			if (values[i] != LuaDouble.NAN) assertEquals(values[i], value, "Value " + (i + 1));
+		}
+		assertTrue(Double.isNaN(t.rawget(6).toDouble()));
+
+		// Traversal skips the nil.
+		int count = 0;
+		for (LuaValue k = Constants.NIL; !(k = t.next(k).first()).isNil(); ) count++;
+		assertEquals(values.length - 1, count);
+	}
+
+	@Test
+	public void testNumericThenOther() throws LuaError {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 32; i++) t.rawset(i, ValueFactory.valueOf(i * 0.5));
+
+		t.rawset(3, ValueFactory.valueOf("string"));
+		t.rawset(33, new LuaTable());
+		t.rawset(5, Constants.NIL);
+
+		assertEquals(33, t.length());
+		for (int i = 1; i <= 32; i++) {
+			LuaValue expected = i == 3 ? ValueFactory.valueOf("string") : i == 5 ? Constants.NIL : ValueFactory.valueOf(i * 0.5);
+			assertEquals(expected, t.rawget(i), "Value " + i);
+		}
+		assertTrue(t.rawget(33).isTable());
+
+		// And back again
+		t.rawset(3, Constants.ONE);
+		t.rawset(33, Constants.NIL);
+		for (int i = 34; i <= 100; i++) t.rawset(i, ValueFactory.valueOf(i));
+		assertEquals(1, t.rawget(3).toInteger());
+		assertEquals(Constants.NIL, t.rawget(33));
+		assertEquals(100, t.rawget(100).toInteger());
+	}
+
+	@Test
+	public void testLengthBorder() {
+		LuaTable t = new LuaTable();
+		assertEquals(0, t.length());
+
+		// Appending and popping keep the length up to date.
+		for (int i = 1; i <= 100; i++) {
+			t.rawset(t.length() + 1, ValueFactory.valueOf(i));
+			assertEquals(i, t.length());
+		}
+		for (int i = 100; i > 50; i--) {
+			t.rawset(t.length(), Constants.NIL);
+			assertEquals(i - 1, t.length());
+		}
+
+		// Filling in past the end, or clearing a value before it, is still noticed.
+		t.rawset(52, Constants.ONE);
+		t.rawset(51, Constants.ONE);
+		assertEquals(52, t.length());
+
+		t.rawset(52, Constants.NIL);
+		t.rawset(51, Constants.NIL);
+		t.rawset(50, Constants.NIL);
+		assertEquals(49, t.length());
+
+		// Any border is valid once the list has holes.
+		t.rawset(20, Constants.NIL);
+		int border = t.length();
+		assertTrue(border == 19 || border == 49, "Got border " + border);
+		assertFalse(t.rawget(border).isNil());
+		assertTrue(t.rawget(border + 1).isNil());
+	}
+
+	@Test
+	public void testBulkLoad() throws LuaError {
+		LuaTable numbers = ValueFactory.listOf(new double[]{1.5, 2, Double.NaN, -4});
+		assertEquals(4, numbers.length());
+		assertEquals(ValueFactory.valueOf(1.5), numbers.rawget(1));
+		assertEquals(ValueFactory.valueOf(2), numbers.rawget(2));
+		assertTrue(Double.isNaN(numbers.rawget(3).toDouble()));
+
+		LuaTable ints = ValueFactory.listOf(new int[]{3, 2, 1});
+		assertEquals(3, ints.length());
+		assertEquals(ValueFactory.valueOf(2), ints.rawget(2));
+
+		// Appending after a bulk load grows the list as normal.
+		ints.rawset(4, ValueFactory.valueOf("x"));
+		ints.rawset(5, ValueFactory.valueOf(5));
+		assertEquals(5, ints.length());
+		assertEquals(ValueFactory.valueOf(3), ints.rawget(1));
+		assertEquals(ValueFactory.valueOf("x"), ints.rawget(4));
+
+		LuaTable longs = ValueFactory.listOf(new long[]{1L << 40});
+		assertEquals((double) (1L << 40), longs.rawget(1).toDouble());
+
+		LuaTable values = ValueFactory.listOf(Arrays.asList(ValueFactory.valueOf("a"), Constants.NIL, ValueFactory.valueOf("c")));
+		assertEquals(ValueFactory.valueOf("a"), values.rawget(1));
+		assertEquals(Constants.NIL, values.rawget(2));
+		assertEquals(ValueFactory.valueOf("c"), values.rawget(3));
+		assertEquals(0, ValueFactory.listOf(new double[0]).length());
+	}
+
+	@Test
+	public void testBulkExport() throws LuaError {
+		LuaTable t = ValueFactory.listOf(new double[]{1, 2, 3, 4});
+		t.rawset(5, ValueFactory.valueOf(5));
+
+		double[] out = new double[7];
+		t.copyTo(2, out, 1, 4);
+		assertArrayEquals(new double[]{0, 2, 3, 4, 5, 0, 0}, out);
+
+		t.rawset(3, ValueFactory.valueOf("x"));
+		assertThrows(LuaError.class, () -> t.copyTo(1, out, 0, 4));
+
+		LuaValue[] values = new LuaValue[3];
+		t.copyTo(2, values, 0, 3);
+		assertEquals(ValueFactory.valueOf("x"), values[1]);
+	}
+
+	@Test
+	public void testBulkMap() {
+		Map<LuaValue, LuaValue> map = new HashMap<>();
+		for (int i = 0; i < 100; i++) map.put(ValueFactory.valueOf("k" + i), ValueFactory.valueOf(i));
+		map.put(ValueFactory.valueOf(1), ValueFactory.valueOf("one"));
+
+		LuaTable t = ValueFactory.tableOf(map);
+		assertEquals(128, t.getHashLength());
+		for (int i = 0; i < 100; i++) assertEquals(ValueFactory.valueOf(i), t.rawget("k" + i));
+		assertEquals(ValueFactory.valueOf("one"), t.rawget(1));
+
+		// Adding to an existing table keeps its entries.
+		Map<LuaValue, LuaValue> more = new HashMap<>();
+		for (int i = 100; i < 200; i++) more.put(ValueFactory.valueOf("k" + i), ValueFactory.valueOf(i));
+		t.rawsetAll(more);
+		for (int i = 0; i < 200; i++) assertEquals(ValueFactory.valueOf(i), t.rawget("k" + i));
+	}
 }
@@ -29,6 +29,7 @@ import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.function.TwoArgFunction;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -250,4 +251,133 @@ public class TableHashTest {
 		assertEquals(ValueFactory.valueOf("bbb"), t.next(ValueFactory.valueOf("aa")).arg(2));
 		assertEquals(Constants.NIL, t.next(ValueFactory.valueOf("bb")));
 	}
+
+	@Test
+	public void testKeyCache() {
+		LuaString key = ValueFactory.valueOf("key");
+		LuaTable.KeyCache cache = new LuaTable.KeyCache(ValueFactory.valueOf("key"));
+
+		LuaTable t = new LuaTable();
+		assertEquals(Constants.NIL, cache.get(t));
+
+		t.rawset(key, ValueFactory.valueOf(1));
+		assertEquals(ValueFactory.valueOf(1), cache.get(t));
+		assertEquals(ValueFactory.valueOf(1), cache.get(t));
+
+		// Updating the value is visible through the cache
+		t.rawset(key, ValueFactory.valueOf(2));
+		assertEquals(ValueFactory.valueOf(2), cache.get(t));
+
+		// Growing the table moves the key around
+		for (int i = 0; i < 100; i++) t.rawset("k" + i, ValueFactory.valueOf(i));
+		assertEquals(ValueFactory.valueOf(2), cache.get(t));
+
+		// Another table with the same key object in the same slot
+		LuaTable other = new LuaTable();
+		other.rawset(key, ValueFactory.valueOf(3));
+		assertEquals(ValueFactory.valueOf(3), cache.get(other));
+
+		// A table which has a different key in the cached slot
+		LuaTable different = new LuaTable();
+		different.rawset("other", ValueFactory.valueOf(4));
+		assertEquals(Constants.NIL, cache.get(different));
+
+		t.rawset(key, Constants.NIL);
+		assertEquals(Constants.NIL, cache.get(t));
+	}
+
+	@Test
+	public void testShapes() throws LuaError {
+		String[] keys = {"x", "y", "z", "name", "kind", "parent", "children", "a", "b", "c", "d", "e", "f", "g", "h", "i", "j"};
+
+		// Build several tables with the same keys, and one with weak values (which never uses shapes).
+		LuaTable[] tables = new LuaTable[4];
+		for (int t = 0; t < tables.length; t++) {
+			LuaTable table = tables[t] = new LuaTable();
+			if (t == 0) table.useWeak(false, true);
+			for (int i = 0; i < keys.length; i++) table.rawset(keys[i], ValueFactory.valueOf(t * 100 + i));
+		}
+
+		// All tables have the same layout and iteration order
+		LuaValue[] order = tables[0].keys();
+		for (LuaTable table : tables) {
+			assertEquals(32, table.getHashLength());
+			assertArrayEquals(order, table.keys());
+		}
+
+		for (int t = 0; t < tables.length; t++) {
+			for (int i = 0; i < keys.length; i++) {
+				assertEquals(ValueFactory.valueOf(t * 100 + i), tables[t].rawget(keys[i]));
+			}
+		}
+
+		// Removing a key, or adding a non-string one, only affects that table.
+		tables[1].rawset("name", Constants.NIL);
+		tables[1].rawset("x", ValueFactory.valueOf("updated"));
+		tables[2].rawset(ValueFactory.valueOf(1.5), ValueFactory.valueOf("number"));
+		tables[3].rawset("k", ValueFactory.valueOf("new"));
+
+		assertEquals(Constants.NIL, tables[1].rawget("name"));
+		assertEquals(ValueFactory.valueOf("updated"), tables[1].rawget("x"));
+		assertEquals(ValueFactory.valueOf("number"), tables[2].rawget(ValueFactory.valueOf(1.5)));
+		assertEquals(ValueFactory.valueOf("new"), tables[3].rawget("k"));
+
+		assertEquals(ValueFactory.valueOf(203), tables[2].rawget("name"));
+		assertEquals(ValueFactory.valueOf(303), tables[3].rawget("name"));
+		assertEquals(ValueFactory.valueOf(300), tables[3].rawget("x"));
+		assertEquals(Constants.NIL, tables[2].rawget("k"));
+		assertEquals(keys.length - 1, tables[1].keyCount());
+		assertEquals(keys.length + 1, tables[2].keyCount());
+		assertEquals(keys.length + 1, tables[3].keyCount());
+
+		// A key can be re-added after being removed.
+		tables[1].rawset("name", ValueFactory.valueOf("back"));
+		assertEquals(ValueFactory.valueOf("back"), tables[1].rawget("name"));
+		assertEquals(keys.length, tables[1].keyCount());
+	}
+
+	@Test
+	public void testAllocationSite() {
+		LuaTable.AllocationSite site = new LuaTable.AllocationSite();
+
+		// The first table from a site is sampled, and reports its size as it grows.
+		LuaTable first = site.create(0, 0);
+		for (int i = 1; i <= 10; i++) first.rawset(i, ValueFactory.valueOf(i));
+		for (int i = 0; i < 5; i++) first.rawset("k" + i, ValueFactory.valueOf(i));
+
+		LuaTable second = site.create(0, 0);
+		assertEquals(16, second.getArrayLength());
+		assertEquals(8, second.getHashLength());
+		assertEquals(0, second.length());
+
+		// Later tables are unaffected by unsampled ones, but still behave normally.
+		for (int i = 1; i <= 100; i++) second.rawset(i, ValueFactory.valueOf("x"));
+		assertEquals(100, second.length());
+		assertEquals(16, site.create(0, 0).getArrayLength());
+
+		// Explicit sizes are never reduced.
+		assertEquals(32, site.create(32, 0).getArrayLength());
+
+		// Once later samples stay small, tables are no longer presized.
+		for (int i = 0; i < 16; i++) site.create(0, 0);
+		assertEquals(0, site.create(0, 0).getArrayLength());
+		assertEquals(0, site.create(0, 0).getHashLength());
+	}
+
+	@Test
+	public void testAllocationSiteLargeTable() {
+		LuaTable.AllocationSite site = new LuaTable.AllocationSite();
+		LuaTable first = site.create(0, 0);
+		for (int i = 1; i <= 2000; i++) first.rawset(i, ValueFactory.valueOf(i));
+		for (int i = 0; i < 2000; i++) first.rawset("k" + i, ValueFactory.valueOf(i));
+
+		// A single large table is capped, with hash parts capped far lower than arrays.
+		LuaTable second = site.create(0, 0);
+		assertEquals(1024, second.getArrayLength());
+		assertEquals(64, second.getHashLength());
+
+		// And is forgotten as soon as another sample stays small.
+		for (int i = 0; i < 16; i++) site.create(0, 0);
+		assertEquals(0, site.create(0, 0).getArrayLength());
+	}
 }
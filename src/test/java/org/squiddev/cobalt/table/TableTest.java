@@ -28,7 +28,16 @@ import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
 
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
 import java.util.Vector;
+import java.util.stream.StreamSupport;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
@@ -367,4 +376,80 @@ public class TableTest {
 		}
 	}
 
+	@Test
+	public void testEntryIterator() throws LuaError {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 20; i++) t.rawset(i, valueOf(i * 2));
+		for (int i = 0; i < 20; i++) t.rawset("k" + i, valueOf("v" + i));
+		t.rawset(5, Constants.NIL);
+
+		// Visits the same entries, in the same order, as next.
+		List<LuaValue> expected = new ArrayList<>();
+		LuaValue k = Constants.NIL;
+		while (true) {
+			Varargs n = t.next(k);
+			if ((k = n.first()).isNil()) break;
+			expected.add(k);
+			expected.add(n.arg(2));
+		}
+
+		List<LuaValue> actual = new ArrayList<>();
+		LuaTable.EntryIterator iterator = t.entryIterator();
+		while (iterator.advance()) {
+			actual.add(iterator.key());
+			actual.add(iterator.value());
+		}
+		assertEquals(expected, actual);
+		assertFalse(iterator.hasNext());
+		assertThrows(NoSuchElementException.class, iterator::next);
+
+		actual.clear();
+		for (Iterator<Map.Entry<LuaValue, LuaValue>> it = t.entryIterator(); it.hasNext(); ) {
+			Map.Entry<LuaValue, LuaValue> entry = it.next();
+			actual.add(entry.getKey());
+			actual.add(entry.getValue());
+		}
+		assertEquals(expected, actual);
+
+		assertFalse(new LuaTable().entryIterator().hasNext());
+	}
+
+	@Test
+	public void testEntryIteratorModification() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 4; i++) t.rawset(i, valueOf(i));
+		t.rawset("x", valueOf(1));
+
+		// Assigning to existing fields is fine
+		LuaTable.EntryIterator iterator = t.entryIterator();
+		while (iterator.advance()) t.rawset(iterator.key(), Constants.NIL);
+		assertEquals(0, t.length());
+
+		// But resizing the table is not.
+		for (int i = 1; i <= 4; i++) t.rawset(i, valueOf(i));
+		LuaTable.EntryIterator resized = t.entryIterator();
+		assertTrue(resized.advance());
+		for (int i = 0; i < 32; i++) t.rawset("k" + i, valueOf(i));
+		assertThrows(ConcurrentModificationException.class, resized::advance);
+	}
+
+	@Test
+	public void testEntrySpliterator() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 1000; i++) t.rawset(i, valueOf(i));
+		for (int i = 1; i <= 1000; i++) t.rawset("k" + i, valueOf(i));
+
+		long sum = StreamSupport.stream(t.entrySpliterator(), true)
+			.mapToLong(x -> x.getValue().toInteger())
+			.sum();
+		assertEquals(2 * 500500, sum);
+
+		Spliterator<Map.Entry<LuaValue, LuaValue>> first = t.entrySpliterator();
+		Spliterator<Map.Entry<LuaValue, LuaValue>> second = first.trySplit();
+		assertNotNull(second);
+		Set<LuaValue> keys = new HashSet<>();
+		first.forEachRemaining(x -> assertTrue(keys.add(x.getKey())));
+		second.forEachRemaining(x -> assertTrue(keys.add(x.getKey())));
+		assertEquals(2000, keys.size());
+	}
 }
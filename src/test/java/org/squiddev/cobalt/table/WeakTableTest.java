@@ -121,6 +121,20 @@ public abstract class WeakTableTest {
 			assertFalse(OperationHelper.getTable(state, t, ValueFactory.valueOf("string")).isNil(), "strings should not be in weak references");
 		}
 
+		@Test
+		public void testLengthAfterChangeMode() {
+			LuaTable t = new_Table();
+			for (int i = 1; i <= 3; i++) t.rawset(i, new LuaTable());
+
+			// Collected values must not leave the length pointing past the end of the list.
+			collectGarbage();
+			t.useWeak(false, false);
+
+			int border = t.length();
+			assertTrue(border == 0 || !t.rawget(border).isNil(), "Got border " + border);
+			assertTrue(t.rawget(border + 1).isNil(), "Got border " + border);
+		}
+
 		@Test
 		public void testChangeMode() throws LuaError, UnwindThrowable {
 			LuaTable table = new LuaTable();
@@ -169,6 +183,31 @@ public abstract class WeakTableTest {
 			assertNull(origval.get());
 		}
 
+		@Test
+		public void testDropsDeadValues() throws LuaError {
+			LuaTable t = ValueFactory.weakTable(true, false);
+
+			LuaTable[] keys = new LuaTable[100];
+			LuaTable value = new LuaTable();
+			WeakReference<LuaValue> origval = new WeakReference<>(value);
+			for (int i = 0; i < keys.length; i++) t.rawset(keys[i] = new LuaTable(), i == 0 ? value : ValueFactory.valueOf(i));
+
+			// Drop the first key. The table holds its value strongly, so it is not collected yet.
+			keys[0] = null;
+			value = null;
+			collectGarbage();
+			assertNotNull(origval.get());
+
+			// Adding another key clears entries whose key was collected, which allows the value to be collected.
+			LuaTable extra = new LuaTable();
+			t.rawset(extra, Constants.TRUE);
+			collectGarbage();
+			assertNull(origval.get());
+
+			for (int i = 1; i < keys.length; i++) assertEquals(ValueFactory.valueOf(i), t.rawget(keys[i]));
+			assertEquals(Constants.TRUE, t.rawget(extra));
+		}
+
 		@Test
 		public void testNext() throws LuaError, UnwindThrowable {
 			LuaTable t = ValueFactory.weakTable(true, true);
@@ -27,13 +27,13 @@ package org.squiddev.cobalt.vm;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LuaFunction;
 import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.IOException;
 import java.io.InputStream;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class StringTest {
 	private final LuaState state = new LuaState();
@@ -158,4 +158,151 @@ public class StringTest {
 		assertEquals(userFriendly("abc\0def"), userFriendly(after));
 
 	}
+
+	@Test
+	public void testStringCache() {
+		StringCache cache = new StringCache(100);
+		assertEquals(128, cache.size());
+
+		LuaString first = cache.valueOf(new byte[]{'a', 'b', 'c'});
+		assertSame(first, cache.valueOf(new byte[]{'a', 'b', 'c'}));
+		assertSame(first, cache.valueOf(new byte[]{'x', 'a', 'b', 'c'}, 1, 3));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// Long strings are never cached
+		byte[] long1 = new byte[64], long2 = new byte[64];
+		assertNotSame(cache.valueOf(long1), cache.valueOf(long2));
+		assertEquals(1, cache.getMisses());
+
+		StringCache disabled = new StringCache(0);
+		assertNotSame(disabled.valueOf(new byte[]{'a'}), disabled.valueOf(new byte[]{'a'}));
+	}
+
+	@Test
+	public void testStateStringCache() throws LuaError, UnwindThrowable {
+		LuaState state = LuaState.builder().stringCacheSize(16).build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		assertEquals(16, state.stringCache.size());
+
+		LuaFunction sub = globals.rawget("string").checkTable().rawget("sub").checkFunction();
+		LuaString string = LuaString.valueOf("hello world");
+		LuaValue a = sub.call(state, string, ValueFactory.valueOf(1), ValueFactory.valueOf(5));
+		LuaValue b = sub.call(state, string, ValueFactory.valueOf(1), ValueFactory.valueOf(5));
+		assertEquals(LuaString.valueOf("hello"), a);
+		assertSame(a, b);
+		assertTrue(state.stringCache.getHits() > 0);
+	}
+
+	@Test
+	public void testConcatAppend() {
+		LuaString base = LuaString.valueOf(new byte[LuaString.APPEND_MIN_LENGTH]);
+		LuaString a = LuaString.concat(base, LuaString.valueOf("a"));
+		LuaString ab = LuaString.concat(a, LuaString.valueOf("b"));
+		LuaString abc = LuaString.concat(ab, LuaString.valueOf("c"));
+		LuaString abd = LuaString.concat(ab, LuaString.valueOf("d"));
+
+		// A one-off concatenation is exactly sized, and only appending to it again allocates spare space.
+		assertEquals(LuaString.APPEND_MIN_LENGTH + 1, a.bytes.length);
+		assertNotSame(a.bytes, ab.bytes);
+		assertTrue(ab.bytes.length > ab.length());
+
+		// Appending to the most recent string reuses the backing array, but appending to an older one must copy.
+		assertSame(ab.bytes, abc.bytes);
+		assertNotSame(ab.bytes, abd.bytes);
+
+		assertEquals(LuaString.APPEND_MIN_LENGTH + 1, a.length());
+		assertEquals('a', a.luaByte(a.length() - 1));
+		assertEquals('b', ab.luaByte(ab.length() - 1));
+		assertEquals('c', abc.luaByte(abc.length() - 1));
+		assertEquals('d', abd.luaByte(abd.length() - 1));
+		assertEquals(LuaString.concat(base, LuaString.valueOf("abc")), abc);
+		assertEquals(LuaString.concat(base, LuaString.valueOf("abc")).hashCode(), abc.hashCode());
+	}
+
+	@Test
+	public void testPatternCache() throws LuaError, UnwindThrowable {
+		// Large enough for the first pattern, but not both.
+		LuaState state = LuaState.builder().patternCacheSize(300).build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		LuaFunction match = globals.rawget("string").checkTable().rawget("match").checkFunction();
+
+		LuaString subject = LuaString.valueOf("GET /index.html 200");
+		LuaString pattern = LuaString.valueOf("(%u+) (%S+) (%d+)");
+		assertEquals(LuaString.valueOf("GET"), match.call(state, subject, pattern));
+		assertEquals(LuaString.valueOf("GET"), match.call(state, subject, pattern));
+		assertEquals(1, state.patternCache.getMisses());
+		assertEquals(1, state.patternCache.getHits());
+
+		// Using another pattern evicts the first one.
+		assertEquals(LuaString.valueOf("200"), match.call(state, subject, LuaString.valueOf("%d+$")));
+		assertEquals(LuaString.valueOf("GET"), match.call(state, subject, pattern));
+		assertEquals(3, state.patternCache.getMisses());
+	}
+
+	@Test
+	public void testLongPattern() throws LuaError, UnwindThrowable {
+		LuaState state = new LuaState();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		LuaFunction find = globals.rawget("string").checkTable().rawget("find").checkFunction();
+
+		StringBuilder subject = new StringBuilder(), pattern = new StringBuilder("(");
+		for (int i = 0; i < 1000; i++) {
+			subject.append("ab");
+			pattern.append("a.");
+		}
+		pattern.append(")%f[%z]");
+
+		// Patterns which are too long to compile are matched directly, and not cached.
+		Varargs result = find.invoke(state, ValueFactory.varargsOf(LuaString.valueOf(subject.toString()), LuaString.valueOf(pattern.toString())));
+		assertEquals(1, result.arg(1).toInteger());
+		assertEquals(2000, result.arg(2).toInteger());
+		assertEquals(LuaString.valueOf(subject.toString()), result.arg(3));
+		assertEquals(0, state.patternCache.used());
+
+		assertEquals(Constants.NIL, find.call(state, LuaString.valueOf("bbbbbbbbbb"), LuaString.valueOf(pattern + "1")));
+		assertEquals(0, state.patternCache.used());
+	}
+
+	@Test
+	public void testFormatCache() throws LuaError, UnwindThrowable {
+		// Large enough for the first template, but not both.
+		LuaState state = LuaState.builder().formatCacheSize(600).build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		LuaFunction format = globals.rawget("string").checkTable().rawget("format").checkFunction();
+
+		LuaString template = LuaString.valueOf("%-5s|%5d|%x|%5.2f|%.1f");
+		LuaString expected = LuaString.valueOf("ab   |  -42|ff| 3.14|2.0");
+		Varargs args = ValueFactory.varargsOf(template, LuaString.valueOf("ab"), ValueFactory.valueOf(-42), ValueFactory.valueOf(255), ValueFactory.valueOf(3.14159), ValueFactory.valueOf(2));
+		assertEquals(expected, format.invoke(state, args).first());
+		assertEquals(expected, format.invoke(state, args).first());
+		assertEquals(1, state.formatCache.getMisses());
+		assertEquals(1, state.formatCache.getHits());
+
+		// Using another template evicts the first one.
+		assertEquals(LuaString.valueOf("-9223372036854775808"), format.call(state, LuaString.valueOf("%d"), ValueFactory.valueOf(Long.MIN_VALUE)));
+		assertEquals(expected, format.invoke(state, args).first());
+		assertEquals(3, state.formatCache.getMisses());
+	}
+
+	@Test
+	public void testIndexOf() {
+		byte[] bytes = new byte[1024];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) ('a' + i % 7);
+		bytes[900] = 'x';
+		bytes[901] = 'y';
+
+		// Use a string which does not start at the beginning of its array.
+		LuaString haystack = LuaString.valueOf(bytes, 10, bytes.length - 10);
+		assertEquals(890, haystack.indexOf((byte) 'x', 0));
+		assertEquals(-1, haystack.indexOf((byte) 'x', 891));
+		assertEquals(889, haystack.indexOf(LuaString.valueOf("dxy"), 0));
+		assertEquals(889, haystack.indexOf(LuaString.valueOf("dxyg"), 0));
+		assertEquals(889, new StringSearch(LuaString.valueOf("dxyg")).indexOf(haystack, 0));
+		assertEquals(-1, haystack.indexOf(LuaString.valueOf("dxyg"), 890));
+		assertEquals(0, haystack.indexOf(LuaString.valueOf("defgabc"), 0));
+		assertEquals(7, haystack.indexOf(LuaString.valueOf("defgabc"), 3));
+		assertEquals(5, haystack.indexOf(LuaString.valueOf(""), 5));
+		assertEquals(-1, haystack.indexOf(LuaString.valueOf("bcdefgabcdefgx"), 0));
+	}
 }
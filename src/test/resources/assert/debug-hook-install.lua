@@ -0,0 +1,38 @@
+-- Hooks installed part way through a function should take effect at the next call or loop iteration.
+local function assertEquals(expected, val, msg) assert(val == expected, (msg and (msg .. ": ") or "") .. "Got " .. tostring(val) .. ", expected " .. tostring(expected)) end
+
+-- Line hooks installed by a call.
+local lines = {}
+local function tracked()
+	local x = 0
+	debug.sethook(function(_, line) lines[#lines + 1] = line end, "l")
+	x = x + 1
+	x = x + 2
+	debug.sethook()
+	return x
+end
+
+assertEquals(3, tracked())
+assertEquals("9,10,11", table.concat(lines, ","))
+
+-- Count hooks installed by a metamethod, inside a loop with no other calls.
+local t = setmetatable({}, { __index = function()
+	debug.sethook(function() debug.sethook() error("stop", 0) end, "", 1)
+	return 1
+end })
+
+local ok, err = pcall(function()
+	local x = t.x
+	while true do x = x + 1 end
+end)
+assertEquals(false, ok)
+assertEquals("stop", err)
+
+-- Errors report the correct line without any hooks.
+local ok, err = pcall(function()
+	local a = nil
+	local b = 1
+	return a.field
+end)
+assertEquals(false, ok)
+assertEquals("debug-hook-install.lua:35: attempt to index local 'a' (a nil value)", err)
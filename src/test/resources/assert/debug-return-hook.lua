@@ -0,0 +1,56 @@
+-- Return hooks should run before the returning function's results are passed to its caller.
+local function assertEquals(expected, val, msg) assert(val == expected, (msg and (msg .. ": ") or "") .. "Got " .. tostring(val) .. ", expected " .. tostring(expected)) end
+
+local function f()
+	local a, b = "a", "b"
+	return "r1", "r2", "r3"
+end
+
+local function g(...)
+	local a, b = "a", "b"
+	return ...
+end
+
+local function callF()
+	local x, y, z = f()
+	return x .. " " .. y .. " " .. z
+end
+
+local function callG()
+	local t = { g("r1", "r2", "r3") }
+	return table.concat(t, " ")
+end
+
+--- Call a function with a return hook, recording the returning function's locals and the caller's registers as seen
+-- by the hook.
+local function hooked(target, caller, register)
+	local locals, callee
+	debug.sethook(function()
+		if debug.getinfo(2, "f").func ~= target then return end
+
+		locals = {}
+		for i = 1, 2 do
+			local name, value = debug.getlocal(2, i + (debug.getinfo(2, "u").isvararg and 1 or 0))
+			locals[i] = name .. "=" .. tostring(value)
+		end
+
+		local _, value = debug.getlocal(3, register)
+		callee = value
+	end, "r")
+
+	local result = caller()
+	debug.sethook()
+	return result, table.concat(locals, ","), callee
+end
+
+-- Returning a fixed number of results.
+local result, locals, callee = hooked(f, callF, 1)
+assertEquals("r1 r2 r3", result, "results")
+assertEquals("a=a,b=b", locals, "locals in hook")
+assertEquals(f, callee, "caller's register in hook")
+
+-- Returning a variable number of results.
+result, locals, callee = hooked(g, callG, 2)
+assertEquals("r1 r2 r3", result, "results")
+assertEquals("a=a,b=b", locals, "locals in hook")
+assertEquals(g, callee, "caller's register in hook")
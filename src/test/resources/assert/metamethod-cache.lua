@@ -0,0 +1,55 @@
+-- Metatables remember which metamethods they lack. Adding or removing one after it has been looked up must be seen.
+local function assertEquals(expected, val, msg) assert(val == expected, (msg and (msg .. ": ") or "") .. "Got " .. tostring(val) .. ", expected " .. tostring(expected)) end
+
+local mt = {}
+local a, b = setmetatable({}, mt), setmetatable({}, mt)
+
+-- Each event fails before it is defined, and works afterwards.
+local events = {
+	{ "__add", function() return a + b end },
+	{ "__sub", function() return a - b end },
+	{ "__mul", function() return a * b end },
+	{ "__div", function() return a / b end },
+	{ "__mod", function() return a % b end },
+	{ "__pow", function() return a ^ b end },
+	{ "__unm", function() return -a end },
+	{ "__concat", function() return a .. b end },
+	{ "__lt", function() return a < b end },
+	{ "__le", function() return a <= b end },
+	{ "__call", function() return a() end },
+}
+
+for _, event in ipairs(events) do
+	local name, fn = event[1], event[2]
+	assertEquals(false, (pcall(fn)), name .. " before definition")
+	assertEquals(false, (pcall(fn)), name .. " before definition (cached)")
+
+	mt[name] = function() return name end
+	local ok, res = pcall(fn)
+	assertEquals(true, ok, name .. " after definition")
+	if name == "__lt" or name == "__le" then assertEquals(true, res, name) else assertEquals(name, res, name) end
+
+	mt[name] = nil
+	assertEquals(false, (pcall(fn)), name .. " after removal")
+end
+
+-- __tostring and __metatable
+assert(tostring(a):find("^table: "))
+mt.__tostring = function() return "object" end
+assertEquals("object", tostring(a))
+
+assertEquals(mt, getmetatable(a))
+mt.__metatable = "locked"
+assertEquals("locked", getmetatable(a))
+assertEquals(false, (pcall(setmetatable, a, {})))
+
+-- __mode is read when a metatable is set.
+local weak = {}
+local wmt = {}
+setmetatable(weak, wmt)
+wmt.__mode = "k"
+setmetatable(weak, nil)
+setmetatable(weak, wmt)
+weak[{}] = true
+collectgarbage()
+assertEquals(nil, next(weak))
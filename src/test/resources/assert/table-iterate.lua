@@ -0,0 +1,89 @@
+-- Generic for loops over pairs and ipairs, which the interpreter steps without calling next/inext.
+local function assertEquals(expected, val, msg) assert(val == expected, (msg and (msg .. ": ") or "") .. "Got " .. tostring(val) .. ", expected " .. tostring(expected)) end
+
+local function count(t)
+	local n = 0
+	for _ in pairs(t) do n = n + 1 end
+	return n
+end
+
+-- Array and hash parts.
+local t = { 1, 2, 3, x = 4, y = 5, [10] = 6 }
+local sum, keys = 0, 0
+for k, v in pairs(t) do
+	assertEquals(v, t[k])
+	sum, keys = sum + v, keys + 1
+end
+assertEquals(21, sum)
+assertEquals(6, keys)
+
+-- Extra loop variables are nil.
+for k, v, extra in pairs({ 1 }) do
+	assertEquals(1, k)
+	assertEquals(1, v)
+	assertEquals(nil, extra)
+end
+
+-- Clearing fields during traversal is allowed.
+local big = {}
+for i = 1, 100 do big[i] = i; big["k" .. i] = i end
+for k in pairs(big) do big[k] = nil end
+assertEquals(nil, next(big))
+
+-- Nested loops over the same table.
+local pairsSeen = 0
+for _ in pairs(t) do
+	for _ in pairs(t) do pairsSeen = pairsSeen + 1 end
+end
+assertEquals(36, pairsSeen)
+
+-- Recursion reuses frames, so must not see each other's positions.
+local function walk(tbl, depth)
+	local n = 0
+	for _, v in pairs(tbl) do
+		n = n + 1
+		if depth > 0 then n = n + walk(tbl, depth - 1) end
+	end
+	return n
+end
+assertEquals(3 + 9 + 27, walk({ a = 1, b = 2, c = 3 }, 2))
+
+-- Custom iterators and explicit next.
+local visited = {}
+for k, v in next, { a = 1 } do visited[#visited + 1] = k .. v end
+assertEquals("a1", table.concat(visited, ","))
+
+local function range(n) return function(_, i) if i < n then return i + 1 end end, nil, 0 end
+local total = 0
+for i in range(4) do total = total + i end
+assertEquals(10, total)
+
+-- pairs over tables with weak keys and values.
+local weak = setmetatable({}, { __mode = "kv" })
+local keep = {}
+for i = 1, 10 do keep[i] = {}; weak[keep[i]] = i end
+assertEquals(10, count(weak))
+
+-- ipairs stops at the first nil.
+local out = {}
+for i, v in ipairs({ "a", "b", nil, "d" }) do out[i] = v end
+assertEquals("a,b", table.concat(out, ","))
+
+for i, v, extra in ipairs({ "a" }) do assertEquals(nil, extra) end
+
+-- Invalid keys are still reported.
+local ok, err = pcall(function()
+	for k in pairs({ a = 1 }) do k = "missing" end
+end)
+assertEquals(true, ok)
+
+ok, err = pcall(function()
+	local f, s = pairs({ a = 1 })
+	for k in f, s, "missing" do end
+end)
+assertEquals(false, ok)
+assert(err:find("invalid key to 'next'", 1, true), err)
+
+-- Non-table states fall back to calling the iterator.
+ok, err = pcall(function() for _ in next, "x" do end end)
+assertEquals(false, ok)
@@ -0,0 +1,69 @@
+-- table.sort, covering both the general sort and the specialised paths for lists of numbers or strings.
+local function assertEquals(expected, val, msg) assert(val == expected, (msg and (msg .. ": ") or "") .. "Got " .. tostring(val) .. ", expected " .. tostring(expected)) end
+
+local function assertSorted(t, lt, n)
+	lt = lt or function(a, b) return a < b end
+	for i = 2, n or #t do assert(not lt(t[i], t[i - 1]), "Not sorted at " .. i) end
+end
+
+local function random(n, f)
+	local t = {}
+	for i = 1, n do t[i] = f(math.random(1, n)) end
+	return t
+end
+
+local function identity(x) return x end
+
+for _, n in ipairs { 0, 1, 2, 7, 8, 9, 16, 17, 100, 1000, 5000 } do
+	-- Numbers, including floats
+	local t = random(n, function(x) return x / 4 end)
+	table.sort(t)
+	assertSorted(t)
+
+	-- Strings
+	t = random(n, function(x) return "s" .. x end)
+	table.sort(t)
+	assertSorted(t)
+
+	-- A custom comparator
+	t = random(n, identity)
+	table.sort(t, function(a, b) return a > b end)
+	assertSorted(t, function(a, b) return a > b end)
+
+	-- Already sorted and reversed input
+	t = {}
+	for i = 1, n do t[i] = n - i end
+	table.sort(t)
+	for i = 1, n do assertEquals(i - 1, t[i]) end
+	table.sort(t)
+	for i = 1, n do assertEquals(i - 1, t[i]) end
+end
+
+-- Numbers which have been boxed after storing another value in the list.
+local t = { "x", 3, 1, 2 }
+t[1] = 4
+table.sort(t)
+for i = 1, 4 do assertEquals(i, t[i]) end
+
+-- Values using __lt
+local mt = { __lt = function(a, b) return a.x < b.x end }
+t = random(200, function(x) return setmetatable({ x = x }, mt) end)
+table.sort(t)
+assertSorted(t)
+
+-- The general sort is stable. This is not required, but checks that every value is kept.
+t = {}
+for i = 1, 100 do t[i] = { key = i % 10, index = i } end
+table.sort(t, function(a, b) return a.key < b.key end)
+for i = 2, 100 do
+	assert(t[i - 1].key < t[i].key or (t[i - 1].key == t[i].key and t[i - 1].index < t[i].index), "Not stable at " .. i)
+end
+
+-- Mixed types cannot be compared
+assertEquals(false, (pcall(table.sort, { 1, "2", 3 })))
+assertEquals(false, (pcall(table.sort, { 1, 2, {} })))
+
+-- Errors in the comparator are propagated
+local ok, err = pcall(table.sort, { 3, 2, 1 }, function() error("oops", 0) end)
+assertEquals(false, ok)
+assertEquals("oops", err)
@@ -63,3 +63,23 @@ run(function()
 	assertEquals(13, x[3].x)
 	assertEquals(32, x[4].x)
 end)
+
+-- Test yielding inside table.sort comparator with enough values to need merging
+run(function()
+	local x, expected = {}, {}
+	for i = 1, 100 do
+		x[i] = (i * 37) % 101
+		expected[i] = x[i]
+	end
+	table.sort(expected)
+
+	table.sort(x, function(a, b)
+		local y, z = coroutine.yield(a, b)
+		assertEquals(a, y)
+		assertEquals(b, z)
+
+		return a < b
+	end)
+
+	for i = 1, 100 do assertEquals(expected[i], x[i]) end
+end)
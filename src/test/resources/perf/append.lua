@@ -0,0 +1,22 @@
+-- Building lists by appending with the length operator, and then removing every element again.
+
+local function append(size)
+	local t = {}
+	for i = 1, size do t[#t + 1] = i end
+	return t
+end
+
+local function pop(t)
+	local x = 0
+	while #t > 0 do
+		x = x + t[#t]
+		t[#t] = nil
+	end
+	return x
+end
+
+local n = tonumber((...)) or 2
+local x = 0
+for _ = 1, n do x = x + pop(append(100000)) end
+
+print(x)
@@ -0,0 +1,24 @@
+-- Calls between Lua functions with many arguments or results, and calls which forward every result of another call.
+
+local function args8(a, b, c, d, e, f, g, h) return a + h end
+local function returns4(a, b) return a, b, b, a end
+local function take4(a, b, c, d) return a + d end
+
+local function run(n)
+	local x = 0
+	for i = 1, n do
+		x = x + args8(i, 2, 3, 4, 5, 6, 7, i)
+
+		local a, b, c, d = returns4(i, 2)
+		x = x + a + d
+
+		x = x + take4(returns4(i, 2))
+	end
+	return x
+end
+
+local n = tonumber((...)) or 10
+local total = 0
+for _ = 1, n do total = total + run(10000) end
+
+print(total)
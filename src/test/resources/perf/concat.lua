@@ -0,0 +1,19 @@
+-- Building a large string by repeated concatenation, one piece and two pieces at a time.
+
+local function append(n, x)
+	local s = ""
+	for _ = 1, n do s = s .. x end
+	return s
+end
+
+local function appendMany(n, x)
+	local s = ""
+	for _ = 1, n do s = s .. x .. x end
+	return s
+end
+
+local n = tonumber((...)) or 10000
+local a = append(n, ("x"):rep(100))
+local b = appendMany(n, ("x"):rep(50))
+
+print(#a, #b)
@@ -0,0 +1,24 @@
+-- Formatting report lines with string.format, using integer and string conversions, and with fixed-point numbers.
+
+local format = string.format
+
+local function integers(n)
+	local x = 0
+	for i = 1, n do x = x + #format("%-10s %5d %x", "row", i, i * 31) end
+	return x
+end
+
+local function mixed(n)
+	local x = 0
+	for i = 1, n do x = x + #format("%-10s %5d %8.2f %5.2f%%", "row", i, i / 7, i % 100) end
+	return x
+end
+
+local n = tonumber((...)) or 10
+local a, b = 0, 0
+for _ = 1, n do
+	a = a + integers(10000)
+	b = b + mixed(10000)
+end
+
+print(a, b)
@@ -0,0 +1,22 @@
+-- Calling a library function looked up through globals, compared with the same function held in a local.
+
+local function global(n)
+	local x = 0
+	for i = 1, n do x = x + math.floor(i / 3) end
+	return x
+end
+
+local function cached(n)
+	local floor, x = math.floor, 0
+	for i = 1, n do x = x + floor(i / 3) end
+	return x
+end
+
+local n = tonumber((...)) or 10
+local a, b = 0, 0
+for _ = 1, n do
+	a = a + global(10000)
+	b = b + cached(10000)
+end
+
+print(a, b)
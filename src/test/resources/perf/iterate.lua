@@ -0,0 +1,30 @@
+-- Iterating over large tables with pairs and ipairs.
+
+local size = 100000
+local hash, array = {}, {}
+for i = 1, size do
+	hash["k" .. i] = i
+	array[i] = i
+end
+
+local function sumPairs(t)
+	local x = 0
+	for _, v in pairs(t) do x = x + v end
+	return x
+end
+
+local function sumIpairs(t)
+	local x = 0
+	for _, v in ipairs(t) do x = x + v end
+	return x
+end
+
+local n = tonumber((...)) or 2
+local a, b, c = 0, 0, 0
+for _ = 1, n do
+	a = a + sumPairs(hash)
+	b = b + sumPairs(array)
+	c = c + sumIpairs(array)
+end
+
+print(a, b, c)
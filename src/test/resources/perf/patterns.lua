@@ -0,0 +1,33 @@
+-- Matching the same few patterns against many lines, as done when parsing logs.
+
+local lines = {}
+for i = 1, 1000 do
+	lines[i] = ('127.0.0.%d - - [10/Oct/2000:13:55:36] "GET /page/%d.html HTTP/1.0" %d %d'):format(i % 256, i, 200 + i % 3, i * 7)
+end
+
+local function match()
+	local x = 0
+	for i = 1, #lines do
+		local ip, path, status = lines[i]:match('^(%d+%.%d+%.%d+%.%d+) .-"%u+ (%S+) [^"]*" (%d+)')
+		if status == "200" then x = x + #path end
+	end
+	return x
+end
+
+local function gsub()
+	local x = 0
+	for i = 1, #lines do
+		local line = lines[i]:gsub("%[[^%]]*%]", "[-]")
+		x = x + #line
+	end
+	return x
+end
+
+local n = tonumber((...)) or 10
+local a, b = 0, 0
+for _ = 1, n do
+	a = a + match()
+	b = b + gsub()
+end
+
+print(a, b)
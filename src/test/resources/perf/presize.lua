@@ -0,0 +1,40 @@
+-- Building tables which are filled after their constructor: records with several fields, and short lists filled in
+-- a loop.
+
+local function newPoint(x, y)
+	local self = {}
+	self.x = x
+	self.y = y
+	self.dx = 0
+	self.dy = 0
+	self.name = "point"
+	self.alive = true
+	self.age = 0
+	self.parent = false
+	return self
+end
+
+local function records(n)
+	local x = 0
+	for i = 1, n do x = x + newPoint(i, i).x end
+	return x
+end
+
+local function lists(n)
+	local x = 0
+	for i = 1, n do
+		local t = {}
+		for j = 1, 20 do t[j] = j * i end
+		x = x + t[20]
+	end
+	return x
+end
+
+local n = tonumber((...)) or 10
+local a, b = 0, 0
+for _ = 1, n do
+	a = a + records(10000)
+	b = b + lists(5000)
+end
+
+print(a, b)
@@ -0,0 +1,27 @@
+-- Searching a large string for literal text: a plain find, replacing a word, and a pattern with a literal prefix.
+
+local text = ("the quick brown fox jumps over the lazy dog\n"):rep(100000) .. "needle=42"
+
+local function find()
+	return text:find("needle", 1, true)
+end
+
+local function gsub()
+	return select(2, text:gsub("lazy", "sleepy"))
+end
+
+local function match()
+	return tonumber(text:match("needle=(%d+)"))
+end
+
+local n = tonumber((...)) or 1
+local a, b, c = 0, 0, 0
+for _ = 1, n do
+	for _ = 1, 4 do
+		a = a + find()
+		c = c + match()
+	end
+	b = b + gsub()
+end
+
+print(a, b, c)
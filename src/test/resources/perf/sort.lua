@@ -0,0 +1,35 @@
+-- Sorting lists of random numbers and strings, with the default ordering and with a comparison function.
+
+local size = 100000
+math.randomseed(123)
+local numbers, strings = {}, {}
+for i = 1, size do
+	numbers[i] = math.random()
+	strings[i] = tostring(math.random(1000000000))
+end
+
+local function copy(t)
+	local result = {}
+	for i = 1, #t do result[i] = t[i] end
+	return result
+end
+
+local function descending(a, b) return a > b end
+
+local n = tonumber((...)) or 1
+local sorted
+for _ = 1, n do
+	sorted = copy(numbers)
+	table.sort(sorted)
+	assert(sorted[1] <= sorted[size])
+
+	sorted = copy(strings)
+	table.sort(sorted)
+	assert(sorted[1] <= sorted[size])
+
+	sorted = copy(numbers)
+	table.sort(sorted, descending)
+	assert(sorted[1] >= sorted[size])
+end
+
+print(sorted[1], sorted[size])
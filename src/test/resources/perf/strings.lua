@@ -0,0 +1,17 @@
+-- Creating many short strings with string.sub and concatenation.
+
+local function run(n)
+	local s, x = "abcdefghijklmnopqrstuvwxyz", 0
+	for i = 1, n do
+		local j = i % 20 + 1
+		local str = s:sub(j, j + 4) .. "x"
+		x = x + #str
+	end
+	return x
+end
+
+local n = tonumber((...)) or 10
+local x = 0
+for _ = 1, n do x = x + run(10000) end
+
+print(x)
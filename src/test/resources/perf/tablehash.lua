@@ -0,0 +1,42 @@
+-- Looking up and inserting string and sparse integer keys in a table's hash part, and building small records.
+
+local size = 1024
+local strings, integers = {}, {}
+local stringTable, integerTable = {}, {}
+for i = 1, size do
+	strings[i] = "key" .. i
+	integers[i] = i * 7919 + 100000
+	stringTable[strings[i]] = integers[i]
+	integerTable[integers[i]] = strings[i]
+end
+
+local function lookup()
+	local x = 0
+	for i = 1, size do
+		x = x + stringTable[strings[i]] + #integerTable[integers[i]]
+	end
+	return x
+end
+
+local function build()
+	local t = {}
+	for i = 1, size do t[strings[i]] = integers[i] end
+	return t
+end
+
+local function records()
+	local x = 0
+	for i = 1, size do
+		local record = { x = i, y = i, z = i, name = strings[i] }
+		x = x + record.x
+	end
+	return x
+end
+
+local n = tonumber((...)) or 10
+local x = 0
+for _ = 1, n do
+	x = x + lookup() + build()[strings[size]] + records()
+end
+
+print(x)
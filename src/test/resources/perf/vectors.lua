@@ -0,0 +1,62 @@
+-- Object-oriented vector arithmetic, exercising metatables and metamethods.
+
+local Vector = {}
+Vector.__index = Vector
+
+function Vector.new(x, y)
+	return setmetatable({ x = x, y = y }, Vector)
+end
+
+function Vector.__add(a, b) return Vector.new(a.x + b.x, a.y + b.y) end
+function Vector.__sub(a, b) return Vector.new(a.x - b.x, a.y - b.y) end
+function Vector.__unm(a) return Vector.new(-a.x, -a.y) end
+function Vector.__eq(a, b) return a.x == b.x and a.y == b.y end
+function Vector.__lt(a, b) return a:length2() < b:length2() end
+function Vector.__tostring(a) return "(" .. a.x .. ", " .. a.y .. ")" end
+
+function Vector.__mul(a, b)
+	if type(a) == "number" then return Vector.new(a * b.x, a * b.y) end
+	if type(b) == "number" then return Vector.new(a.x * b, a.y * b) end
+	return a.x * b.x + a.y * b.y
+end
+
+function Vector:length2() return self * self end
+
+-- A subclass, which inherits methods but has its own metatable.
+local Particle = setmetatable({}, { __index = Vector })
+Particle.__index = Particle
+for _, event in ipairs { "__add", "__sub", "__mul", "__unm", "__eq", "__lt", "__tostring" } do
+	Particle[event] = Vector[event]
+end
+
+function Particle.new(x, y, vx, vy)
+	local p = setmetatable(Vector.new(x, y), Particle)
+	p.velocity = Vector.new(vx, vy)
+	return p
+end
+
+function Particle:step(dt)
+	local pos = self + self.velocity * dt
+	self.x, self.y = pos.x, pos.y
+end
+
+local n = tonumber((...)) or 200
+local particles = {}
+for i = 1, 100 do
+	particles[i] = Particle.new(i, -i, (i % 7) - 3, (i % 5) - 2)
+end
+
+local closest, same = 0, 0
+for _ = 1, n do
+	local origin = Vector.new(0, 0)
+	for i = 1, #particles do
+		local p = particles[i]
+		p:step(0.1)
+		if -(-p) == p then same = same + 1 end
+		if Vector.new(p.x, p.y) < Vector.new(50, 50) then closest = closest + 1 end
+		origin = origin + (p - origin) * 0.5
+	end
+	if getmetatable(origin) ~= Vector then error("Bad metatable") end
+end
+
+print(closest, same, tostring(particles[1]) ~= nil)